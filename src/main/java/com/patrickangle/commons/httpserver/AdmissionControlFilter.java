@@ -0,0 +1,386 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.httpserver;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Rejects exchanges before they reach the handler when the server is
+ * overloaded or a client is sending too many requests, so that the cost of an
+ * abusive client falls on that client rather than on everyone else.
+ *
+ * In the order they are checked:
+ * <ul>
+ * <li>Exchanges that waited longer than the maximum queue time for a thread
+ * are shed with 503, as their client has likely given up already. Queue time
+ * is only known for servers built by {@link HttpServerBuilder}.</li>
+ * <li>Each client has a token bucket refilled at the request rate up to the
+ * burst size. Clients without a token are rejected with 429. A client is
+ * identified by its remote address, since filters run before the context's
+ * authenticator. To identify clients by their authenticated principal
+ * instead, wrap the context's authenticator with
+ * {@link #authenticator(Authenticator)}, as {@link HttpServerBuilder} does
+ * for contexts given both, and the check moves to just after
+ * authentication.</li>
+ * <li>Exchanges beyond the maximum number running at once are rejected with
+ * 503. An exchange counts as running until its handler returns, so responses
+ * completed asynchronously afterwards are not counted.</li>
+ * </ul>
+ *
+ * Rejections carry a Retry-After header. A limit of zero disables its check.
+ *
+ * @author Patrick Angle
+ */
+public class AdmissionControlFilter extends Filter {
+
+    public static final double DEFAULT_REQUESTS_PER_SECOND = 20;
+    public static final int DEFAULT_BURST = 40;
+    public static final int DEFAULT_MAXIMUM_CONCURRENT_REQUESTS = 64;
+    public static final Duration DEFAULT_MAXIMUM_QUEUE_TIME = Duration.ofSeconds(1);
+    public static final Duration DEFAULT_RETRY_AFTER = Duration.ofSeconds(1);
+    public static final int DEFAULT_MAXIMUM_CLIENTS = 10000;
+
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static class TokenBucket {
+
+        private double tokens;
+        private long updatedNanos;
+
+        TokenBucket(double tokens, long now) {
+            this.tokens = tokens;
+            this.updatedNanos = now;
+        }
+
+        /**
+         * @return Zero if a token was taken, or else how long until one will
+         * be available, in nanoseconds.
+         */
+        synchronized long take(double tokensPerNano, int burst, long now) {
+            tokens = Math.min(burst, tokens + (now - updatedNanos) * tokensPerNano);
+            updatedNanos = now;
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            return (long) Math.ceil((1 - tokens) / tokensPerNano);
+        }
+
+        synchronized boolean isFull(double tokensPerNano, int burst, long now) {
+            return tokens + (now - updatedNanos) * tokensPerNano >= burst;
+        }
+    }
+
+    protected volatile double requestsPerSecond = DEFAULT_REQUESTS_PER_SECOND;
+    protected volatile int burst = DEFAULT_BURST;
+    protected volatile int maximumConcurrentRequests = DEFAULT_MAXIMUM_CONCURRENT_REQUESTS;
+    protected volatile Duration maximumQueueTime = DEFAULT_MAXIMUM_QUEUE_TIME;
+    protected volatile Duration retryAfter = DEFAULT_RETRY_AFTER;
+    protected volatile int maximumClients = DEFAULT_MAXIMUM_CLIENTS;
+
+    private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweepNanos = new AtomicLong(System.nanoTime());
+    private final AtomicInteger running = new AtomicInteger();
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder concurrencyRejected = new LongAdder();
+    private final LongAdder queueTimeShed = new LongAdder();
+
+    public double getRequestsPerSecond() {
+        return requestsPerSecond;
+    }
+
+    /**
+     * Set the rate at which each client's tokens are refilled.
+     *
+     * @param requestsPerSecond
+     */
+    public void setRequestsPerSecond(double requestsPerSecond) {
+        this.requestsPerSecond = requestsPerSecond;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * Set the number of tokens a client's bucket holds, and so how many
+     * requests an idle client may make at once.
+     *
+     * @param burst
+     */
+    public void setBurst(int burst) {
+        this.burst = burst;
+    }
+
+    public int getMaximumConcurrentRequests() {
+        return maximumConcurrentRequests;
+    }
+
+    public void setMaximumConcurrentRequests(int maximumConcurrentRequests) {
+        this.maximumConcurrentRequests = maximumConcurrentRequests;
+    }
+
+    public Duration getMaximumQueueTime() {
+        return maximumQueueTime;
+    }
+
+    public void setMaximumQueueTime(Duration maximumQueueTime) {
+        this.maximumQueueTime = maximumQueueTime;
+    }
+
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+
+    /**
+     * Set the Retry-After sent when the server is overloaded. Clients that
+     * are rate limited are told when their next token will be available
+     * instead.
+     *
+     * @param retryAfter
+     */
+    public void setRetryAfter(Duration retryAfter) {
+        this.retryAfter = retryAfter;
+    }
+
+    public int getMaximumClients() {
+        return maximumClients;
+    }
+
+    /**
+     * Set how many clients' token buckets are kept before those that have
+     * refilled are discarded.
+     *
+     * @param maximumClients
+     */
+    public void setMaximumClients(int maximumClients) {
+        this.maximumClients = maximumClients;
+    }
+
+    public long getAdmitted() {
+        return admitted.sum();
+    }
+
+    public long getRateLimited() {
+        return rateLimited.sum();
+    }
+
+    public long getConcurrencyRejected() {
+        return concurrencyRejected.sum();
+    }
+
+    public long getQueueTimeShed() {
+        return queueTimeShed.sum();
+    }
+
+    public long getRejected() {
+        return getRateLimited() + getConcurrencyRejected() + getQueueTimeShed();
+    }
+
+    public int getRunning() {
+        return running.get();
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("admitted", getAdmitted());
+        snapshot.put("rateLimited", getRateLimited());
+        snapshot.put("concurrencyRejected", getConcurrencyRejected());
+        snapshot.put("queueTimeShed", getQueueTimeShed());
+        snapshot.put("running", getRunning());
+        snapshot.put("clients", buckets.size());
+        return snapshot;
+    }
+
+    @Override
+    public String description() {
+        return "Rejects requests when the server is overloaded or a client exceeds its request rate.";
+    }
+
+    @Override
+    public void doFilter(HttpExchange he, Chain chain) throws IOException {
+        long maximumQueueNanos = maximumQueueTime.toNanos();
+        if (maximumQueueNanos > 0 && QueueTimeExecutor.queueTimeNanos() > maximumQueueNanos) {
+            queueTimeShed.increment();
+            reject(he, 503, retryAfter.toNanos());
+            return;
+        }
+
+        if (!checksAfterAuthentication(he)) {
+            long waitNanos = takeToken(clientKey(he, null));
+            if (waitNanos > 0) {
+                rateLimited.increment();
+                reject(he, 429, waitNanos);
+                return;
+            }
+        }
+
+        int limit = maximumConcurrentRequests;
+        if (limit > 0 && running.incrementAndGet() > limit) {
+            running.decrementAndGet();
+            concurrencyRejected.increment();
+            reject(he, 503, retryAfter.toNanos());
+            return;
+        }
+
+        admitted.increment();
+        try {
+            chain.doFilter(he);
+        } finally {
+            if (limit > 0) {
+                running.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Wrap an authenticator so that the per-client rate limit is checked
+     * after it, with clients identified by the principal it authenticates.
+     * Requests that fail authentication are counted against their remote
+     * address, which also limits the rate of password guessing. Contexts
+     * using the returned authenticator are not rate limited by the filter
+     * itself.
+     *
+     * @param authenticator
+     * @return
+     */
+    public Authenticator authenticator(Authenticator authenticator) {
+        return new RateLimitingAuthenticator(authenticator);
+    }
+
+    /**
+     * @param he
+     * @param principal The authenticated principal, or null if there is none.
+     * @return The key a client's requests are counted under: the name of the
+     * principal if there is one, or else the remote address.
+     */
+    protected String clientKey(HttpExchange he, HttpPrincipal principal) {
+        if (principal != null) {
+            return "principal:" + principal.getName();
+        }
+        InetSocketAddress remoteAddress = he.getRemoteAddress();
+        if (remoteAddress == null) {
+            return "unknown";
+        }
+        return remoteAddress.getAddress() != null ? remoteAddress.getAddress().getHostAddress() : remoteAddress.getHostString();
+    }
+
+    private boolean checksAfterAuthentication(HttpExchange he) {
+        Authenticator authenticator = he.getHttpContext().getAuthenticator();
+        while (authenticator instanceof RateLimitingAuthenticator) {
+            RateLimitingAuthenticator rateLimiting = (RateLimitingAuthenticator) authenticator;
+            if (rateLimiting.getFilter() == this) {
+                return true;
+            }
+            authenticator = rateLimiting.authenticator;
+        }
+        return false;
+    }
+
+    /**
+     * @return Zero if the client may proceed, or else how long until it may,
+     * in nanoseconds.
+     */
+    private long takeToken(String key) {
+        double rate = requestsPerSecond;
+        int size = burst;
+        if (rate <= 0 || size <= 0) {
+            return 0;
+        }
+        return bucket(key, rate / 1e9, size).take(rate / 1e9, size, System.nanoTime());
+    }
+
+    private TokenBucket bucket(String key, double tokensPerNano, int size) {
+        TokenBucket bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() >= maximumClients) {
+                sweep(tokensPerNano, size);
+            }
+            bucket = buckets.computeIfAbsent(key, (k) -> new TokenBucket(size, System.nanoTime()));
+        }
+        return bucket;
+    }
+
+    private void sweep(double tokensPerNano, int size) {
+        long now = System.nanoTime();
+        long last = lastSweepNanos.get();
+        // Sweeping is linear in the number of clients, so it is done at most once per interval by one thread.
+        if (now - last < SWEEP_INTERVAL_NANOS || !lastSweepNanos.compareAndSet(last, now)) {
+            return;
+        }
+        // A bucket that has refilled behaves the same as a new one, so it can be discarded.
+        for (Iterator<TokenBucket> iterator = buckets.values().iterator(); iterator.hasNext();) {
+            if (iterator.next().isFull(tokensPerNano, size, now)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static void reject(HttpExchange he, int statusCode, long retryAfterNanos) throws IOException {
+        setRetryAfter(he, retryAfterNanos);
+        he.sendResponseHeaders(statusCode, -1);
+        he.close();
+    }
+
+    private static void setRetryAfter(HttpExchange he, long retryAfterNanos) {
+        long seconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(retryAfterNanos + TimeUnit.SECONDS.toNanos(1) - 1));
+        he.getResponseHeaders().set("Retry-After", Long.toString(seconds));
+    }
+
+    private class RateLimitingAuthenticator extends Authenticator {
+
+        private final Authenticator authenticator;
+
+        RateLimitingAuthenticator(Authenticator authenticator) {
+            this.authenticator = authenticator;
+        }
+
+        AdmissionControlFilter getFilter() {
+            return AdmissionControlFilter.this;
+        }
+
+        @Override
+        public Result authenticate(HttpExchange he) {
+            Result result = authenticator.authenticate(he);
+            HttpPrincipal principal = result instanceof Success ? ((Success) result).getPrincipal() : null;
+            long waitNanos = takeToken(clientKey(he, principal));
+            if (waitNanos > 0) {
+                rateLimited.increment();
+                // The server sends the failure's status with the headers already set on the exchange.
+                setRetryAfter(he, waitNanos);
+                return new Failure(429);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.httpserver;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * The JSON body sent by the API handlers for error responses.
+ *
+ * @author Patrick Angle
+ */
+public class ApiError {
+
+    @JsonProperty
+    public final String error;
+
+    public ApiError(String error) {
+        this.error = error;
+    }
+}
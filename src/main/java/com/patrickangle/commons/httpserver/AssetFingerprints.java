@@ -0,0 +1,347 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.httpserver;
+
+import com.patrickangle.commons.logging.Logging;
+import com.patrickangle.commons.util.Files;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * An index of the content hashes of the files in a document directory, so
+ * that each file can also be requested by a fingerprinted name that includes
+ * its hash, such as "js/app.3f2a9c1b.js" for "js/app.js". Since the contents
+ * behind a fingerprinted name never change, it can be cached by browsers
+ * indefinitely, and page templates use {@link #fingerprinted(String)} to refer
+ * to the current version of each asset.
+ *
+ * Files are hashed in parallel when the index is built. A file that has
+ * changed since it was hashed is hashed again the next time it is looked up,
+ * after which its old fingerprinted name no longer resolves. Files and
+ * directories whose names start with '.' are not indexed.
+ *
+ * @author Patrick Angle
+ */
+public class AssetFingerprints {
+
+    public static final int DEFAULT_HASH_LENGTH = 8;
+    public static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<ByteBuffer> BUFFERS = ThreadLocal.withInitial(() -> {
+        return ByteBuffer.allocate(BUFFER_SIZE);
+    });
+
+    public static class Asset {
+
+        private final String path;
+        private final String fingerprintedPath;
+        private final File file;
+        private final long lastModified;
+        private final long length;
+        private final String mimeType;
+
+        Asset(String path, String fingerprintedPath, File file, long lastModified, long length, String mimeType) {
+            this.path = path;
+            this.fingerprintedPath = fingerprintedPath;
+            this.file = file;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.mimeType = mimeType;
+        }
+
+        /**
+         * @return The path of the file, relative to the document directory.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return The fingerprinted path of the file, relative to the document
+         * directory.
+         */
+        public String getFingerprintedPath() {
+            return fingerprintedPath;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        private boolean isCurrent() {
+            return file.lastModified() == lastModified && file.length() == length;
+        }
+    }
+
+    protected final Path root;
+    protected final int hashLength;
+
+    private final Map<String, Asset> assetsByPath = new ConcurrentHashMap<>();
+    private final Map<String, Asset> assetsByFingerprintedPath = new ConcurrentHashMap<>();
+
+    public AssetFingerprints(File documentDirectory) {
+        this(documentDirectory, DEFAULT_HASH_LENGTH);
+    }
+
+    /**
+     * Create an empty index, to which files are added as they are looked up.
+     *
+     * @param documentDirectory
+     * @param hashLength The number of hexadecimal digits of the hash used in
+     * fingerprinted names.
+     */
+    public AssetFingerprints(File documentDirectory, int hashLength) {
+        if (hashLength < 1 || hashLength > 64) {
+            throw new IllegalArgumentException("The hash length must be between 1 and 64 digits.");
+        }
+        this.root = documentDirectory.toPath().toAbsolutePath().normalize();
+        this.hashLength = hashLength;
+    }
+
+    /**
+     * Create an index of every file in a document directory.
+     *
+     * @param documentDirectory
+     * @return
+     * @throws IOException
+     */
+    public static AssetFingerprints index(File documentDirectory) throws IOException {
+        AssetFingerprints fingerprints = new AssetFingerprints(documentDirectory);
+        fingerprints.indexAll();
+        return fingerprints;
+    }
+
+    /**
+     * Hash every file in the document directory, in parallel on the common
+     * ForkJoinPool.
+     *
+     * @throws IOException
+     */
+    public void indexAll() throws IOException {
+        List<Path> files;
+        try (Stream<Path> paths = java.nio.file.Files.walk(root)) {
+            files = paths.filter((path) -> !isHidden(root.relativize(path)) && java.nio.file.Files.isRegularFile(path)).collect(Collectors.toList());
+        }
+        try {
+            files.parallelStream().forEach((path) -> {
+                try {
+                    add(relativePath(path), path.toFile());
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * Find the fingerprinted name of a file, for use in a page that refers to
+     * it.
+     *
+     * @param path A path relative to the document directory, with or without
+     * a leading '/'.
+     * @return The fingerprinted path, with the same leading '/' as the path,
+     * or the path itself if it is not a file in the document directory.
+     */
+    public String fingerprinted(String path) {
+        String relativePath = trimLeadingSlashes(path);
+        Asset asset = current(relativePath);
+        if (asset == null) {
+            return path;
+        }
+        return path.substring(0, path.length() - relativePath.length()) + asset.fingerprintedPath;
+    }
+
+    /**
+     * Resolve a request for a fingerprinted name.
+     *
+     * @param requestPath A path relative to the document directory, with or
+     * without a leading '/'.
+     * @return The asset, or null if the path is not the fingerprinted name of
+     * the current version of a file.
+     */
+    public Asset resolve(String requestPath) {
+        Asset asset = assetsByFingerprintedPath.get(trimLeadingSlashes(requestPath));
+        if (asset == null) {
+            return null;
+        }
+        Asset current = current(asset.path);
+        return current != null && current.fingerprintedPath.equals(asset.fingerprintedPath) ? current : null;
+    }
+
+    /**
+     * @return A sorted map from the path of each indexed file to its
+     * fingerprinted path, as of the last time each was hashed.
+     */
+    public Map<String, String> getManifest() {
+        Map<String, String> manifest = new TreeMap<>();
+        for (Asset asset : assetsByPath.values()) {
+            manifest.put(asset.path, asset.fingerprintedPath);
+        }
+        return manifest;
+    }
+
+    public int getAssetCount() {
+        return assetsByPath.size();
+    }
+
+    /**
+     * @param relativePath
+     * @return The asset for the current version of a file, hashing it if it
+     * has not been hashed or has changed since, or null if there is no such
+     * file.
+     */
+    private Asset current(String relativePath) {
+        Asset asset = assetsByPath.get(relativePath);
+        if (asset != null && asset.isCurrent()) {
+            return asset;
+        }
+
+        Path path = root.resolve(relativePath).normalize();
+        if (!path.startsWith(root) || path.equals(root) || isHidden(root.relativize(path))) {
+            return null;
+        }
+        File file = path.toFile();
+        if (!file.isFile()) {
+            if (asset != null) {
+                assetsByPath.remove(relativePath, asset);
+                assetsByFingerprintedPath.remove(asset.fingerprintedPath, asset);
+            }
+            return null;
+        }
+        try {
+            return add(relativePath(path), file);
+        } catch (IOException ex) {
+            Logging.exception(AssetFingerprints.class, ex);
+            return null;
+        }
+    }
+
+    private Asset add(String relativePath, File file) throws IOException {
+        // The metadata is read before the contents, so a change made while hashing is noticed on the next lookup.
+        long lastModified = file.lastModified();
+        long length = file.length();
+        String hash = hash(file.toPath()).substring(0, hashLength);
+        Asset asset = new Asset(relativePath, fingerprintedPath(relativePath, hash), file, lastModified, length, Files.mimeTypeFromFile(file));
+
+        Asset previous = assetsByPath.put(relativePath, asset);
+        if (previous != null && !previous.fingerprintedPath.equals(asset.fingerprintedPath)) {
+            assetsByFingerprintedPath.remove(previous.fingerprintedPath, previous);
+        }
+        assetsByFingerprintedPath.put(asset.fingerprintedPath, asset);
+        return asset;
+    }
+
+    /**
+     * @param relativePath
+     * @param hash
+     * @return The path with the hash inserted before the extension of its
+     * file name, or appended if the name has no extension.
+     */
+    protected static String fingerprintedPath(String relativePath, String hash) {
+        int nameStart = relativePath.lastIndexOf('/') + 1;
+        int extensionStart = relativePath.lastIndexOf('.');
+        if (extensionStart <= nameStart) {
+            return relativePath + "." + hash;
+        }
+        return relativePath.substring(0, extensionStart) + "." + hash + relativePath.substring(extensionStart);
+    }
+
+    private static String hash(Path path) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is required to be supported by every Java platform.", ex);
+        }
+
+        ByteBuffer buffer = BUFFERS.get();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer.clear();
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+
+        byte[] bytes = digest.digest();
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private String relativePath(Path path) {
+        StringBuilder sb = new StringBuilder();
+        for (Path name : root.relativize(path)) {
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append(name.toString());
+        }
+        return sb.toString();
+    }
+
+    private static boolean isHidden(Path relativePath) {
+        for (Path name : relativePath) {
+            if (name.toString().startsWith(".")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String trimLeadingSlashes(String path) {
+        int start = 0;
+        while (start < path.length() && path.charAt(start) == '/') {
+            start++;
+        }
+        return path.substring(start);
+    }
+}
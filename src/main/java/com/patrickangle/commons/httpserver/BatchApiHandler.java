@@ -0,0 +1,447 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.httpserver;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonRawValue;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonSerializable;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import com.patrickangle.commons.json.JsonMappers;
+import com.patrickangle.commons.util.URIs;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * An endpoint that answers a JSON array of calls to other endpoints of the
+ * same {@link ServerApiHttpHandler} in one exchange, so that authentication,
+ * compression and the round trip are paid once rather than once per call.
+ *
+ * The request body is an array of {"path": ..., "params": {...}} objects, with
+ * an optional "method" that defaults to GET. Calls run in parallel, up to the
+ * concurrency limit, and the response is an array in the same order of
+ * {"status": ..., "body": ...} or {"status": ..., "error": ...} objects,
+ * streamed as each call completes in turn.
+ *
+ * Each call sees its own request URI and method, and shares the batch
+ * request's headers and principal.
+ *
+ * @author Patrick Angle
+ */
+public class BatchApiHandler implements ServerApiHttpHandler.RoutedApiHandler {
+
+    public static final int DEFAULT_MAXIMUM_CALLS = 100;
+    public static final int DEFAULT_CONCURRENCY = 8;
+    public static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(30);
+
+    private static final ObjectReader REQUEST_READER = JsonMappers.reader(JsonMappers.Profile.HTTP, new TypeReference<List<BatchRequest>>() {
+    });
+
+    public static class BatchRequest {
+
+        @JsonProperty
+        public String method = "GET";
+        @JsonProperty
+        public String path;
+        @JsonProperty
+        public Map<String, String> params;
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class BatchResponse {
+
+        @JsonProperty
+        public final int status;
+        @JsonProperty
+        @JsonRawValue
+        public final String body;
+        @JsonProperty
+        public final String error;
+
+        public BatchResponse(int status, String body, String error) {
+            this.status = status;
+            this.body = body;
+            this.error = error;
+        }
+    }
+
+    protected final ServerApiHttpHandler apiHandler;
+    protected int maximumCalls = DEFAULT_MAXIMUM_CALLS;
+    protected int concurrency = DEFAULT_CONCURRENCY;
+    protected Duration timeout = DEFAULT_TIMEOUT;
+    protected Executor executor;
+
+    public BatchApiHandler(ServerApiHttpHandler apiHandler) {
+        this.apiHandler = apiHandler;
+    }
+
+    public int getMaximumCalls() {
+        return maximumCalls;
+    }
+
+    public void setMaximumCalls(int maximumCalls) {
+        this.maximumCalls = maximumCalls;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * Set the greatest number of calls from one batch that may run at once.
+     *
+     * @param concurrency
+     */
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Set how long a batch may take. Calls that have not completed by then are
+     * answered with 504 Gateway Timeout.
+     *
+     * @param timeout
+     */
+    public void setTimeout(Duration timeout) {
+        this.timeout = timeout;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Set the executor calls run on. By default they run on the API handler's
+     * writer executor, rather than the server's executor, as the batch request
+     * itself holds one of the server's threads while it waits for them.
+     *
+     * @param executor The executor, or null for the default.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange, Map<String, String> queryParameters, PathParameters pathParameters, Consumer<Object> callback) {
+        List<BatchRequest> requests;
+        try (InputStream is = exchange.getRequestBody()) {
+            requests = REQUEST_READER.readValue(is);
+        } catch (JsonProcessingException ex) {
+            throw new HttpStatusException(400, "Malformed batch request: " + ex.getOriginalMessage(), ex);
+        } catch (IOException ex) {
+            throw new HttpStatusException(400, "The batch request could not be read.", ex);
+        }
+        if (requests == null) {
+            throw new HttpStatusException(400, "A batch request must be an array of calls.");
+        }
+        if (requests.size() > maximumCalls) {
+            throw new HttpStatusException(413, "A batch may contain at most " + maximumCalls + " calls.");
+        }
+
+        long deadline = System.nanoTime() + timeout.toNanos();
+        List<BatchCall> calls = new ArrayList<>(requests.size());
+        for (BatchRequest request : requests) {
+            calls.add(new BatchCall(exchange, request));
+        }
+
+        Executor callExecutor = executor != null ? executor : apiHandler.getWriterExecutor();
+        callExecutor.execute(() -> dispatch(calls, callExecutor, deadline));
+
+        callback.accept(new BatchResults(calls, deadline));
+    }
+
+    private void dispatch(List<BatchCall> calls, Executor callExecutor, long deadline) {
+        Semaphore permits = new Semaphore(Math.max(concurrency, 1));
+        for (BatchCall call : calls) {
+            try {
+                if (!permits.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    call.fail(504, "The batch exceeded its deadline before this call could start.");
+                    continue;
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                call.fail(503, "The batch was interrupted before this call could start.");
+                continue;
+            }
+
+            call.result.whenComplete((response, throwable) -> permits.release());
+            try {
+                callExecutor.execute(call::run);
+            } catch (RuntimeException ex) {
+                call.fail(503, "The call could not be scheduled.");
+            }
+        }
+    }
+
+    protected class BatchCall implements CallbackJsonHttpHandler.ResponseCallback<Object> {
+
+        private final HttpExchange batchExchange;
+        private final BatchRequest request;
+        private final CompletableFuture<BatchResponse> result = new CompletableFuture<>();
+        private volatile ObjectWriter writer = CallbackJsonHttpHandler.JSON_WRITER;
+
+        BatchCall(HttpExchange batchExchange, BatchRequest request) {
+            this.batchExchange = batchExchange;
+            this.request = request;
+        }
+
+        void run() {
+            try {
+                if (request == null || request.path == null) {
+                    fail(400, "A call must have a path.");
+                    return;
+                }
+
+                String contextPath = batchExchange.getHttpContext().getPath();
+                String path = isWithinContext(request.path, contextPath) ? request.path : joinPaths(contextPath, request.path);
+                URI uri = URI.create(path);
+
+                Map<String, String> parameters = new HashMap<>(URIs.queryStringToMap(uri.getRawQuery()));
+                if (request.params != null) {
+                    parameters.putAll(request.params);
+                }
+
+                writer = apiHandler.responseWriter(parameters);
+                String method = request.method != null ? request.method.toUpperCase() : "GET";
+                apiHandler.simpleHandle(new CallExchange(batchExchange, uri, method), parameters, this);
+            } catch (HttpStatusException ex) {
+                fail(ex.getStatusCode(), ex.getMessage());
+            } catch (IllegalArgumentException ex) {
+                fail(400, "Invalid path: " + request.path);
+            } catch (RuntimeException ex) {
+                fail(500, String.valueOf(ex.getMessage()));
+            }
+        }
+
+        @Override
+        public void accept(Object object) {
+            try {
+                result.complete(new BatchResponse(200, writer.writeValueAsString(object), null));
+            } catch (JsonProcessingException ex) {
+                fail(500, ex.getOriginalMessage());
+            }
+        }
+
+        @Override
+        public void fail(int statusCode, String message) {
+            result.complete(new BatchResponse(statusCode, null, message));
+        }
+
+        @Override
+        public void respondSerialized(int statusCode, byte[] body, byte[] gzippedBody) {
+            result.complete(new BatchResponse(statusCode, new String(body, StandardCharsets.UTF_8), null));
+        }
+    }
+
+    /**
+     * Serialized as the array of call results, waiting for each in turn so
+     * that earlier results are sent while later calls are still running.
+     */
+    protected static class BatchResults implements JsonSerializable {
+
+        private final List<BatchCall> calls;
+        private final long deadline;
+
+        BatchResults(List<BatchCall> calls, long deadline) {
+            this.calls = calls;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void serialize(JsonGenerator gen, SerializerProvider serializers) throws IOException {
+            gen.writeStartArray();
+            for (BatchCall call : calls) {
+                serializers.defaultSerializeValue(awaitResult(call), gen);
+            }
+            gen.writeEndArray();
+        }
+
+        @Override
+        public void serializeWithType(JsonGenerator gen, SerializerProvider serializers, TypeSerializer typeSer) throws IOException {
+            serialize(gen, serializers);
+        }
+
+        private BatchResponse awaitResult(BatchCall call) {
+            try {
+                return call.result.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException ex) {
+                return new BatchResponse(504, null, "The call exceeded the batch deadline.");
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return new BatchResponse(503, null, "The batch was interrupted.");
+            } catch (ExecutionException ex) {
+                return new BatchResponse(500, null, String.valueOf(ex.getCause().getMessage()));
+            }
+        }
+    }
+
+    /**
+     * The exchange seen by a call: the batch exchange, except for its own
+     * request URI and method, and response headers and body that go nowhere.
+     */
+    private static class CallExchange extends HttpExchange {
+
+        private final HttpExchange batchExchange;
+        private final URI requestURI;
+        private final String requestMethod;
+        private final Headers responseHeaders = new Headers();
+        private int responseCode = -1;
+
+        CallExchange(HttpExchange batchExchange, URI requestURI, String requestMethod) {
+            this.batchExchange = batchExchange;
+            this.requestURI = requestURI;
+            this.requestMethod = requestMethod;
+        }
+
+        @Override
+        public Headers getRequestHeaders() {
+            return batchExchange.getRequestHeaders();
+        }
+
+        @Override
+        public Headers getResponseHeaders() {
+            return responseHeaders;
+        }
+
+        @Override
+        public URI getRequestURI() {
+            return requestURI;
+        }
+
+        @Override
+        public String getRequestMethod() {
+            return requestMethod;
+        }
+
+        @Override
+        public HttpContext getHttpContext() {
+            return batchExchange.getHttpContext();
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public InputStream getRequestBody() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        @Override
+        public OutputStream getResponseBody() {
+            // Responses reach the batch through the callback, so anything written here is discarded.
+            return new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            };
+        }
+
+        @Override
+        public void sendResponseHeaders(int rCode, long responseLength) {
+            this.responseCode = rCode;
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return batchExchange.getRemoteAddress();
+        }
+
+        @Override
+        public int getResponseCode() {
+            return responseCode;
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return batchExchange.getLocalAddress();
+        }
+
+        @Override
+        public String getProtocol() {
+            return batchExchange.getProtocol();
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return batchExchange.getAttribute(name);
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            batchExchange.setAttribute(name, value);
+        }
+
+        @Override
+        public void setStreams(InputStream i, OutputStream o) {
+            throw new UnsupportedOperationException("The streams of a batched call cannot be replaced.");
+        }
+
+        @Override
+        public HttpPrincipal getPrincipal() {
+            return batchExchange.getPrincipal();
+        }
+    }
+
+    private static boolean isWithinContext(String path, String contextPath) {
+        return contextPath.endsWith("/") ? path.startsWith(contextPath) : path.equals(contextPath) || path.startsWith(contextPath + "/") || path.startsWith(contextPath + "?");
+    }
+
+    private static String joinPaths(String contextPath, String path) {
+        if (contextPath.endsWith("/") && path.startsWith("/")) {
+            return contextPath + path.substring(1);
+        } else if (!contextPath.endsWith("/") && !path.startsWith("/")) {
+            return contextPath + "/" + path;
+        }
+        return contextPath + path;
+    }
+}
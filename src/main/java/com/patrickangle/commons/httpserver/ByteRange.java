@@ -0,0 +1,119 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.httpserver;
+
+/**
+ * A single, satisfiable byte range of a representation, as requested by an
+ * HTTP Range header. Requests for multiple ranges are not supported, and are
+ * answered with the full representation, as RFC 7233 permits.
+ *
+ * @author Patrick Angle
+ */
+public class ByteRange {
+
+    // Returned when a range was requested, but none of it lies within the representation.
+    public static final ByteRange UNSATISFIABLE = new ByteRange(-1, -1, 0);
+
+    private final long start;
+    private final long end;
+    private final long totalLength;
+
+    private ByteRange(long start, long end, long totalLength) {
+        this.start = start;
+        this.end = end;
+        this.totalLength = totalLength;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * @return The last byte of the range, inclusive.
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    public long getLength() {
+        return end - start + 1;
+    }
+
+    public String contentRangeHeader() {
+        return "bytes " + start + "-" + end + "/" + totalLength;
+    }
+
+    public static String unsatisfiedContentRangeHeader(long totalLength) {
+        return "bytes */" + totalLength;
+    }
+
+    /**
+     * Parse the value of a Range header against a representation of the given
+     * length.
+     *
+     * @param rangeHeader
+     * @param totalLength
+     * @return The requested range, {@link #UNSATISFIABLE}, or null if the
+     * header is absent, malformed, or requests multiple ranges, in which case
+     * the full representation should be sent.
+     */
+    public static ByteRange parse(String rangeHeader, long totalLength) {
+        if (rangeHeader == null) {
+            return null;
+        }
+
+        String header = rangeHeader.trim();
+        if (!header.regionMatches(true, 0, "bytes=", 0, 6) || header.indexOf(',') >= 0) {
+            return null;
+        }
+
+        int dash = header.indexOf('-', 6);
+        if (dash < 0) {
+            return null;
+        }
+
+        try {
+            String first = header.substring(6, dash).trim();
+            String last = header.substring(dash + 1).trim();
+
+            if (first.isEmpty()) {
+                // A suffix range, requesting the final N bytes.
+                if (last.isEmpty()) {
+                    return null;
+                }
+                long suffixLength = Long.parseLong(last);
+                if (suffixLength <= 0 || totalLength == 0) {
+                    return UNSATISFIABLE;
+                }
+                return new ByteRange(Math.max(0, totalLength - suffixLength), totalLength - 1, totalLength);
+            }
+
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? totalLength - 1 : Math.min(Long.parseLong(last), totalLength - 1);
+
+            if (start < 0 || (!last.isEmpty() && Long.parseLong(last) < start)) {
+                return null;
+            }
+            if (start >= totalLength) {
+                return UNSATISFIABLE;
+            }
+            return new ByteRange(start, end, totalLength);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+}
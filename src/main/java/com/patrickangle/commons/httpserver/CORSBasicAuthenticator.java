@@ -7,35 +7,221 @@ package com.patrickangle.commons.httpserver;
 
 import com.sun.net.httpserver.BasicAuthenticator;
 import com.sun.net.httpserver.HttpExchange;
-import java.io.IOException;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import com.sun.net.httpserver.HttpPrincipal;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
+ * A BasicAuthenticator that answers CORS preflight requests without
+ * authenticating them, and that can remember verified credentials for a time
+ * so that an expensive checkCredentials is not run on every request.
+ *
+ * Remembered credentials are held as a salted SHA-256 hash, never in plain
+ * text. A password changed or revoked elsewhere is still accepted until its
+ * entry expires, unless {@link #revoke(String)} is called.
  *
  * @author Patrick Angle
  */
 public abstract class CORSBasicAuthenticator extends BasicAuthenticator {
 
+    public static final Duration DEFAULT_PREFLIGHT_MAX_AGE = Duration.ofMinutes(10);
+    public static final int DEFAULT_CREDENTIAL_CACHE_MAXIMUM_SIZE = 1024;
+
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    });
+
+    private static class VerifiedCredentials {
+
+        private final HttpPrincipal principal;
+        private final byte[] hash;
+        private final long expiresAt;
+
+        VerifiedCredentials(HttpPrincipal principal, byte[] hash, long expiresAt) {
+            this.principal = principal;
+            this.hash = hash;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    protected String allowedOrigin = "*";
+    protected String allowedMethods = "GET, OPTIONS";
+    protected String allowedHeaders = "Content-Type, Authorization";
+    protected Duration preflightMaxAge = DEFAULT_PREFLIGHT_MAX_AGE;
+
+    protected Duration credentialCacheTtl = Duration.ZERO;
+    protected int credentialCacheMaximumSize = DEFAULT_CREDENTIAL_CACHE_MAXIMUM_SIZE;
+
+    private final byte[] salt = new byte[16];
+    // Keyed by user name, in access order so that the least recently used are evicted first.
+    private final LinkedHashMap<String, VerifiedCredentials> verifiedCredentials = new LinkedHashMap<String, VerifiedCredentials>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, VerifiedCredentials> eldest) {
+            return size() > credentialCacheMaximumSize;
+        }
+    };
+
     public CORSBasicAuthenticator(String realm) {
         super(realm);
+        new SecureRandom().nextBytes(salt);
+    }
+
+    public String getAllowedOrigin() {
+        return allowedOrigin;
+    }
+
+    public void setAllowedOrigin(String allowedOrigin) {
+        this.allowedOrigin = allowedOrigin;
+    }
+
+    public String getAllowedMethods() {
+        return allowedMethods;
+    }
+
+    public void setAllowedMethods(String... allowedMethods) {
+        this.allowedMethods = String.join(", ", allowedMethods);
+    }
+
+    public String getAllowedHeaders() {
+        return allowedHeaders;
+    }
+
+    public void setAllowedHeaders(String... allowedHeaders) {
+        this.allowedHeaders = String.join(", ", allowedHeaders);
+    }
+
+    public Duration getPreflightMaxAge() {
+        return preflightMaxAge;
+    }
+
+    /**
+     * Set how long browsers may reuse a preflight response before sending
+     * another. Browsers cap this at their own maximum.
+     *
+     * @param preflightMaxAge
+     */
+    public void setPreflightMaxAge(Duration preflightMaxAge) {
+        this.preflightMaxAge = preflightMaxAge;
+    }
+
+    public Duration getCredentialCacheTtl() {
+        return credentialCacheTtl;
+    }
+
+    /**
+     * Set how long verified credentials are remembered for. Zero, the
+     * default, checks the credentials of every request.
+     *
+     * @param credentialCacheTtl
+     */
+    public void setCredentialCacheTtl(Duration credentialCacheTtl) {
+        this.credentialCacheTtl = credentialCacheTtl;
+        if (credentialCacheTtl.isZero() || credentialCacheTtl.isNegative()) {
+            revokeAll();
+        }
+    }
+
+    public int getCredentialCacheMaximumSize() {
+        return credentialCacheMaximumSize;
+    }
+
+    public void setCredentialCacheMaximumSize(int credentialCacheMaximumSize) {
+        this.credentialCacheMaximumSize = credentialCacheMaximumSize;
+    }
+
+    /**
+     * Forget the verified credentials of a user, so that their next request
+     * is checked again.
+     *
+     * @param username
+     */
+    public void revoke(String username) {
+        synchronized (verifiedCredentials) {
+            verifiedCredentials.remove(username);
+        }
+    }
+
+    public void revokeAll() {
+        synchronized (verifiedCredentials) {
+            verifiedCredentials.clear();
+        }
     }
 
     @Override
     public Result authenticate(HttpExchange he) {
 //        String origin = he.getRequestHeaders().getFirst("origin");
-        he.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+        he.getResponseHeaders().set("Access-Control-Allow-Origin", allowedOrigin);
 
         if (he.getRequestMethod().equalsIgnoreCase("OPTIONS")) {
-            he.getResponseHeaders().add("Access-Control-Allow-Methods", "GET, OPTIONS");
-            he.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type,Authorization");
-            try {
-                he.sendResponseHeaders(204, -1);
-            } catch (IOException ex) {
+            he.getResponseHeaders().set("Access-Control-Allow-Methods", allowedMethods);
+            he.getResponseHeaders().set("Access-Control-Allow-Headers", allowedHeaders);
+            he.getResponseHeaders().set("Access-Control-Max-Age", Long.toString(preflightMaxAge.getSeconds()));
+            // Preflight requests carry no credentials; the server sends the failure's status without running the handler.
+            return new Failure(204);
+        }
+
+        long ttlNanos = credentialCacheTtl.toNanos();
+        if (ttlNanos <= 0) {
+            return super.authenticate(he);
+        }
+
+        String[] credentials = credentials(he);
+        if (credentials == null) {
+            return super.authenticate(he);
+        }
+
+        byte[] hash = hash(credentials[0], credentials[1]);
+        long now = System.nanoTime();
+        synchronized (verifiedCredentials) {
+            VerifiedCredentials verified = verifiedCredentials.get(credentials[0]);
+            if (verified != null && now - verified.expiresAt < 0 && MessageDigest.isEqual(verified.hash, hash)) {
+                return new Success(verified.principal);
+            }
+        }
+
+        Result result = super.authenticate(he);
+        if (result instanceof Success) {
+            VerifiedCredentials verified = new VerifiedCredentials(((Success) result).getPrincipal(), hash, now + ttlNanos);
+            synchronized (verifiedCredentials) {
+                verifiedCredentials.put(credentials[0], verified);
             }
         }
+        return result;
+    }
 
-        return super.authenticate(he);
+    private static String[] credentials(HttpExchange he) {
+        String authorization = he.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.regionMatches(true, 0, "Basic ", 0, 6)) {
+            return null;
+        }
+        String decoded;
+        try {
+            decoded = new String(Base64.getDecoder().decode(authorization.substring(6).trim()), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+        int colon = decoded.indexOf(':');
+        if (colon < 0) {
+            return null;
+        }
+        return new String[]{decoded.substring(0, colon), decoded.substring(colon + 1)};
     }
 
+    private byte[] hash(String username, String password) {
+        MessageDigest digest = SHA_256.get();
+        digest.update(salt);
+        digest.update(username.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        return digest.digest(password.getBytes(StandardCharsets.UTF_8));
+    }
 }
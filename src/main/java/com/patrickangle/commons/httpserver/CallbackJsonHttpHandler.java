@@ -5,89 +5,367 @@
  */
 package com.patrickangle.commons.httpserver;
 
-import com.fasterxml.jackson.databind.MapperFeature;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
-import com.fasterxml.jackson.databind.module.SimpleModule;
-import com.patrickangle.commons.json.serialization.ColorSerializer;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.patrickangle.commons.json.JsonMappers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.patrickangle.commons.logging.Logging;
-import com.patrickangle.commons.util.URIs;
-import java.awt.Color;
-import java.io.ByteArrayOutputStream;
+import com.patrickangle.commons.util.QueryParameters;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.function.Consumer;
-import java.util.zip.GZIPOutputStream;
+import java.util.stream.BaseStream;
 
 /**
  *
  * @author Patrick Angle
  */
 public abstract class CallbackJsonHttpHandler<T> implements HttpHandler {
+    // ObjectWriter is immutable and thread-safe, so every handler shares one instance and its serializer caches.
+    protected static final ObjectWriter JSON_WRITER = JsonMappers.writer(JsonMappers.Profile.HTTP);
+    // Request bodies are read with the same configuration their responses are written with, ignoring properties the server does not know.
+    protected static final ObjectReader JSON_READER = JsonMappers.reader(JsonMappers.Profile.HTTP, Object.class);
+    
+    // When enabled, responses are written with chunked encoding straight from the JsonGenerator into the gzip stream, rather than being buffered to learn their length first.
+    protected boolean streamingResponses = true;
+    
+    protected ResponseCompression compression = new ResponseCompression();
+    
+    protected HttpMetrics metrics = null;
+    
+    protected long maximumRequestBodySize = RequestBodies.DEFAULT_MAXIMUM_SIZE;
+    
+    protected String fieldsParameter = "fields";
+
+    public boolean isStreamingResponses() {
+        return streamingResponses;
+    }
+
+    public void setStreamingResponses(boolean streamingResponses) {
+        this.streamingResponses = streamingResponses;
+    }
+
+    public ResponseCompression getCompression() {
+        return compression;
+    }
+
+    public void setCompression(ResponseCompression compression) {
+        this.compression = compression;
+    }
+
+    public HttpMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Set the registry that requests are recorded in, or null to record
+     * nothing.
+     * 
+     * @param metrics 
+     */
+    public void setMetrics(HttpMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public long getMaximumRequestBodySize() {
+        return maximumRequestBodySize;
+    }
+
+    /**
+     * Set the largest request body, after decompression, that handlers will
+     * read. Larger bodies are answered with 413 Payload Too Large as soon as
+     * the limit is passed, without reading the rest. Long.MAX_VALUE
+     * effectively removes the limit.
+     * 
+     * @param maximumRequestBodySize 
+     */
+    public void setMaximumRequestBodySize(long maximumRequestBodySize) {
+        if (maximumRequestBodySize < 0) {
+            throw new IllegalArgumentException("Maximum request body size must not be negative.");
+        }
+        this.maximumRequestBodySize = maximumRequestBodySize;
+    }
+
+    public String getFieldsParameter() {
+        return fieldsParameter;
+    }
+
+    /**
+     * Set the query parameter through which clients choose the properties
+     * written in responses, as a list of paths such as
+     * "id,items.name". See {@link FieldProjection}.
+     * 
+     * @param fieldsParameter The parameter name, or null to always write
+     * every property.
+     */
+    public void setFieldsParameter(String fieldsParameter) {
+        this.fieldsParameter = fieldsParameter;
+    }
+    
+    /**
+     * @param queryParameters
+     * @return The writer for the responses to a request, projected to the
+     * fields it asks for, if any.
+     */
+    protected ObjectWriter responseWriter(Map<String, String> queryParameters) {
+        String fieldsParameter = this.fieldsParameter;
+        return fieldsParameter != null ? FieldProjection.writerFor(queryParameters.get(fieldsParameter)) : JSON_WRITER;
+    }
 
     @Override
     public void handle(HttpExchange he) throws IOException {
-        Map<String, String> params = URIs.queryStringToMap(he.getRequestURI().getRawQuery());
+        long startNanos = System.nanoTime();
+        Map<String, String> params = QueryParameters.parse(he.getRequestURI().getRawQuery());
+        JsonResponse<T> response = new JsonResponse<>(this, he, startNanos);
+        response.setWriter(responseWriter(params));
+
+        try {
+            simpleHandle(he, params, response);
+        } catch (HttpStatusException ex) {
+            response.fail(ex.getStatusCode(), ex.getMessage());
+        }
+    }
+    
+    public abstract void simpleHandle(HttpExchange exchange, Map<String, String> queryParameters, Consumer<T> callback);
+
+    protected void writeJsonResponse(HttpExchange he, int statusCode, Object object) throws IOException {
+        writeJsonResponse(he, statusCode, object, he.getHttpContext().getPath(), System.nanoTime());
+    }
+    
+    /**
+     * Write a JSON response, recording it in the metrics registry if there is
+     * one.
+     * 
+     * @param he
+     * @param statusCode
+     * @param object
+     * @param route The route the request is recorded under.
+     * @param startNanos The System.nanoTime() at which the request began.
+     * @throws IOException 
+     */
+    protected void writeJsonResponse(HttpExchange he, int statusCode, Object object, String route, long startNanos) throws IOException {
+        writeJsonResponse(he, statusCode, object, JSON_WRITER, route, startNanos);
+    }
+    
+    /**
+     * Write a JSON response with a particular writer, such as one projected
+     * to the fields a request asks for.
+     * 
+     * @param he
+     * @param statusCode
+     * @param object
+     * @param writer
+     * @param route
+     * @param startNanos
+     * @throws IOException 
+     */
+    protected void writeJsonResponse(HttpExchange he, int statusCode, Object object, ObjectWriter writer, String route, long startNanos) throws IOException {
+        HttpMetrics metrics = this.metrics;
+        ResponseStatistics statistics = metrics != null ? ResponseStatistics.begin() : null;
+        long serializationStart = System.nanoTime();
+        boolean completed = false;
+        
+        try {
+            addJsonHeaders(he);
+            // Results produced incrementally are always streamed, so that the first of them is sent before the last is produced.
+            if (streamingResponses || isIncremental(object)) {
+                try (OutputStream os = compression.openResponseBody(he, statusCode)) {
+                    writer.writeValue(os, object);
+                }
+            } else {
+                compression.sendResponse(he, statusCode, writer.writeValueAsBytes(object));
+            }
+            completed = true;
+        } finally {
+            if (object instanceof BaseStream) {
+                ((BaseStream<?, ?>) object).close();
+            }
+            if (metrics != null) {
+                long endNanos = System.nanoTime();
+                // Serialization and writing are interleaved when streaming, so serialization is whatever time was not spent writing.
+                long writeNanos = statistics.getWriteNanos();
+                metrics.route(route).record(completed ? statusCode : -1, endNanos - startNanos, HttpMetrics.requestContentLength(he), statistics.getBodyBytes(), statistics.getWireBytes(), endNanos - serializationStart - writeNanos, writeNanos);
+            }
+        }
+    }
+    
+    /**
+     * Write a response that has already been serialized, such as one held in a
+     * {@link ResponseCache}.
+     * 
+     * @param he
+     * @param statusCode
+     * @param body
+     * @param gzippedBody The gzipped body, or null if there is none.
+     * @param route The route the request is recorded under.
+     * @param startNanos The System.nanoTime() at which the request began.
+     * @throws IOException 
+     */
+    protected void writeSerializedJsonResponse(HttpExchange he, int statusCode, byte[] body, byte[] gzippedBody, String route, long startNanos) throws IOException {
+        HttpMetrics metrics = this.metrics;
+        ResponseStatistics statistics = metrics != null ? ResponseStatistics.begin() : null;
+        boolean completed = false;
+        
+        try {
+            addJsonHeaders(he);
+            compression.sendPrecompressedResponse(he, statusCode, body, gzippedBody);
+            completed = true;
+        } finally {
+            if (metrics != null) {
+                metrics.route(route).record(completed ? statusCode : -1, System.nanoTime() - startNanos, HttpMetrics.requestContentLength(he), statistics.getBodyBytes(), statistics.getWireBytes(), 0, statistics.getWriteNanos());
+            }
+        }
+    }
+    
+    protected void writeSerializedJsonResponse(HttpExchange he, Consumer<?> callback, int statusCode, byte[] body, byte[] gzippedBody) throws IOException {
+        if (callback instanceof ResponseCallback) {
+            ((ResponseCallback<?>) callback).respondSerialized(statusCode, body, gzippedBody);
+        } else {
+            writeSerializedJsonResponse(he, statusCode, body, gzippedBody, he.getHttpContext().getPath(), System.nanoTime());
+        }
+    }
+    
+    /**
+     * @param object
+     * @return True if an object is a result whose elements are produced as it
+     * is written: a Stream, an Iterator or a {@link CursorPage}.
+     */
+    protected static boolean isIncremental(Object object) {
+        return object instanceof BaseStream || object instanceof Iterator || object instanceof CursorPage;
+    }
+    
+    protected void addJsonHeaders(HttpExchange he) {
+        he.getResponseHeaders().add("Content-Type", "application/json");
+        if (he.getResponseHeaders().get("Access-Control-Allow-Origin") == null) {
+            he.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+        }
+        if (he.getResponseHeaders().get("Access-Control-Allow-Headers") == null) {
+            he.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type,Authorization");
+        }
+    }
+    
+    protected void writeErrorResponse(HttpExchange he, int statusCode, String message) {
+        writeErrorResponse(he, statusCode, message, he.getHttpContext().getPath(), System.nanoTime());
+    }
+    
+    protected void writeErrorResponse(HttpExchange he, int statusCode, String message, String route, long startNanos) {
+        try {
+            writeJsonResponse(he, statusCode, new ApiError(message), route, startNanos);
+        } catch (IOException ex) {
+            Logging.exception(CallbackJsonHttpHandler.class, ex);
+            he.close();
+        }
+    }
+    
+    /**
+     * Answer with an error through a callback, if it is a
+     * {@link ResponseCallback}, or otherwise directly to the exchange.
+     * 
+     * @param he
+     * @param callback
+     * @param statusCode
+     * @param message 
+     */
+    protected void writeErrorResponse(HttpExchange he, Consumer<?> callback, int statusCode, String message) {
+        if (callback instanceof ResponseCallback) {
+            ((ResponseCallback<?>) callback).fail(statusCode, message);
+        } else {
+            writeErrorResponse(he, statusCode, message);
+        }
+    }
+    
+    /**
+     * A callback that can also be answered with an error, or with a response
+     * that has already been serialized.
+     * 
+     * @param <T> 
+     */
+    public interface ResponseCallback<T> extends Consumer<T> {
+        public void fail(int statusCode, String message);
+        
+        public void respondSerialized(int statusCode, byte[] body, byte[] gzippedBody) throws IOException;
+    }
+    
+    /**
+     * The callback passed to {@link #simpleHandle}, which writes the object it
+     * is given as a 200 OK response. It carries the time the request began
+     * and the route it is recorded under, so responses written later from
+     * another thread are still measured from the start of the request.
+     * 
+     * @param <T> 
+     */
+    protected static class JsonResponse<T> implements ResponseCallback<T> {
+        protected final CallbackJsonHttpHandler<?> handler;
+        protected final HttpExchange exchange;
+        protected final long startNanos;
+        protected String route;
+        protected ObjectWriter writer = JSON_WRITER;
 
-        simpleHandle(he, params, (object) -> {
-            ObjectMapper mapper = new ObjectMapper();
-            mapper.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
-            mapper.disable(MapperFeature.AUTO_DETECT_CREATORS, MapperFeature.AUTO_DETECT_FIELDS, MapperFeature.AUTO_DETECT_GETTERS, MapperFeature.AUTO_DETECT_IS_GETTERS);
+        protected JsonResponse(CallbackJsonHttpHandler<?> handler, HttpExchange exchange, long startNanos) {
+            this.handler = handler;
+            this.exchange = exchange;
+            this.startNanos = startNanos;
+            this.route = exchange.getHttpContext().getPath();
+        }
 
-            SimpleModule module = new SimpleModule();
-            module.addSerializer(Color.class, new ColorSerializer());
-            mapper.registerModule(module);
+        public String getRoute() {
+            return route;
+        }
 
-            try {
-                byte[] response = mapper.writeValueAsString(object).getBytes();
+        /**
+         * Set the route the request is recorded under. Routes should come
+         * from a bounded set, such as route patterns, rather than request
+         * paths.
+         * 
+         * @param route 
+         */
+        public void setRoute(String route) {
+            this.route = route;
+        }
 
-                he.getResponseHeaders().add("Content-Type", "application/json");
-                if (he.getResponseHeaders().get("Access-Control-Allow-Origin") == null) {
-                    he.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
-                }
-                if (he.getResponseHeaders().get("Access-Control-Allow-Headers") == null) {
-                    he.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type,Authorization");
-                }
-                
-//                if (he.getRequestHeaders().get("Accept-Encoding").contains("gzip")) {
-                    he.getResponseHeaders().add("Content-Encoding", "gzip");
-
-                    byte[] gzipResponse = gzipCompress(response);
-                    he.sendResponseHeaders(200, gzipResponse.length);
-                    try (OutputStream os = he.getResponseBody()) {
-                        os.write(gzipResponse);
-                    }
-//                } else {
-//                    Logging.warning(CallbackJsonHttpHandler.class, "A client did not report the ability to accept gzip from HttpServer. More bandwidth will be used by the client.");
-//
-//                    he.sendResponseHeaders(200, response.length);
-//                    try (OutputStream os = he.getResponseBody()) {
-//                        os.write(response);
-//                    }
-//                }
-                
+        public long getStartNanos() {
+            return startNanos;
+        }
+
+        public ObjectWriter getWriter() {
+            return writer;
+        }
+
+        /**
+         * Set the writer for successful responses. Errors are always written
+         * in full.
+         * 
+         * @param writer 
+         */
+        public void setWriter(ObjectWriter writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void accept(T object) {
+            try {
+                respond(200, object);
             } catch (IOException ex) {
                 Logging.exception(CallbackJsonHttpHandler.class, ex);
+                exchange.close();
             }
-        });
-    }
-    
-    public abstract void simpleHandle(HttpExchange exchange, Map<String, String> queryParameters, Consumer<T> callback);
+        }
 
-    
-    private static byte[] gzipCompress(byte[] uncompressedData) {
-        byte[] result = new byte[]{};
-        try (ByteArrayOutputStream bos = new ByteArrayOutputStream(uncompressedData.length);
-             GZIPOutputStream gzipOS = new GZIPOutputStream(bos)) {
-            gzipOS.write(uncompressedData);
-            gzipOS.close();
-            result = bos.toByteArray();
-        } catch (IOException e) {
-            e.printStackTrace();
+        public void respond(int statusCode, Object object) throws IOException {
+            handler.writeJsonResponse(exchange, statusCode, object, writer, route, startNanos);
+        }
+
+        @Override
+        public void fail(int statusCode, String message) {
+            handler.writeErrorResponse(exchange, statusCode, message, route, startNanos);
+        }
+
+        @Override
+        public void respondSerialized(int statusCode, byte[] body, byte[] gzippedBody) throws IOException {
+            handler.writeSerializedJsonResponse(exchange, statusCode, body, gzippedBody, route, startNanos);
         }
-        return result;
     }
 }
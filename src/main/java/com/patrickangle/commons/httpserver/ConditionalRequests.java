@@ -0,0 +1,137 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.httpserver;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+
+/**
+ * Evaluation of the If-None-Match, If-Modified-Since and If-Range
+ * preconditions from RFC 7232.
+ *
+ * A gzipped response carries its own entity tag, see {@link #gzipETag(String)},
+ * since it is a different representation from the identity response. Either
+ * tag satisfies If-None-Match, but only the identity tag satisfies If-Range,
+ * as byte ranges are always served from the identity representation.
+ *
+ * @author Patrick Angle
+ */
+public class ConditionalRequests {
+
+    /**
+     * Determine if a GET or HEAD request can be answered with 304 Not
+     * Modified. If-None-Match takes precedence over If-Modified-Since.
+     *
+     * @param requestHeaders
+     * @param eTag The current entity tag, or null if there is none.
+     * @param lastModified The current modification time, or -1 if unknown.
+     * @return
+     */
+    public static boolean isNotModified(Headers requestHeaders, String eTag, long lastModified) {
+        return isNotModified(requestHeaders, eTag, null, lastModified);
+    }
+
+    /**
+     * Determine if a GET or HEAD request can be answered with 304 Not
+     * Modified, where the resource has a second representation whose tag
+     * also satisfies If-None-Match.
+     *
+     * @param requestHeaders
+     * @param eTag The current entity tag, or null if there is none.
+     * @param variantETag The entity tag of the other representation, such as
+     * the gzipped one, or null if there is none.
+     * @param lastModified The current modification time, or -1 if unknown.
+     * @return
+     */
+    public static boolean isNotModified(Headers requestHeaders, String eTag, String variantETag, long lastModified) {
+        String ifNoneMatch = requestHeaders.getFirst("If-None-Match");
+        if (ifNoneMatch != null) {
+            return (eTag != null && eTagListMatches(ifNoneMatch, eTag))
+                    || (variantETag != null && eTagListMatches(ifNoneMatch, variantETag));
+        }
+
+        if (lastModified >= 0) {
+            long ifModifiedSince = HttpDates.parse(requestHeaders.getFirst("If-Modified-Since"));
+            return ifModifiedSince >= 0 && HttpDates.truncateToSeconds(lastModified) <= ifModifiedSince;
+        }
+
+        return false;
+    }
+
+    /**
+     * Determine if the Range header of a request may be honoured, given its
+     * If-Range precondition (if any). Entity tags are compared strongly.
+     *
+     * @param requestHeaders
+     * @param eTag
+     * @param lastModified
+     * @return
+     */
+    public static boolean isRangeApplicable(Headers requestHeaders, String eTag, long lastModified) {
+        String ifRange = requestHeaders.getFirst("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return eTag != null && !eTag.startsWith("W/") && ifRange.equals(eTag);
+        }
+
+        long ifRangeDate = HttpDates.parse(ifRange);
+        return ifRangeDate >= 0 && ifRangeDate == HttpDates.truncateToSeconds(lastModified);
+    }
+
+    /**
+     * @param eTag The entity tag of the identity representation.
+     * @return The entity tag of the gzipped representation of the same
+     * contents.
+     */
+    public static String gzipETag(String eTag) {
+        // The suffix goes inside the quotes, keeping any weakness prefix.
+        return eTag.substring(0, eTag.length() - 1) + "-gzip\"";
+    }
+
+    public static void sendNotModified(HttpExchange he) throws IOException {
+        he.sendResponseHeaders(304, -1);
+        he.close();
+    }
+
+    // Weak comparison, as required for If-None-Match.
+    private static boolean eTagListMatches(String eTagList, String eTag) {
+        String opaqueTag = stripWeakness(eTag);
+
+        int start = 0;
+        while (start < eTagList.length()) {
+            int end = eTagList.indexOf(',', start);
+            if (end < 0) {
+                end = eTagList.length();
+            }
+            String candidate = eTagList.substring(start, end).trim();
+            if (candidate.equals("*") || stripWeakness(candidate).equals(opaqueTag)) {
+                return true;
+            }
+            start = end + 1;
+        }
+        return false;
+    }
+
+    private static String stripWeakness(String eTag) {
+        return eTag.startsWith("W/") ? eTag.substring(2) : eTag;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.httpserver;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializable;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * A page of a {@link CursorSource}, written as {"items":[...],"next":token}
+ * with each item written as the source reads it. The token is opaque to
+ * clients, which pass it back as the cursor to read the following page, and
+ * is null after the last page.
+ *
+ * @author Patrick Angle
+ * @param <T>
+ */
+public class CursorPage<T> implements JsonSerializable {
+
+    private final CursorSource<T> source;
+    private final String position;
+    private final int limit;
+
+    public CursorPage(CursorSource<T> source, String position, int limit) {
+        this.source = source;
+        this.position = position;
+        this.limit = limit;
+    }
+
+    /**
+     * @param position
+     * @return The token given to clients for a position.
+     */
+    public static String encodeCursor(String position) {
+        return position == null ? null : Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param cursor
+     * @return The position a token given to a client stands for.
+     * @throws HttpStatusException With status 400, if the token is not one
+     * this class produced.
+     */
+    public static String decodeCursor(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return null;
+        }
+        try {
+            return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException ex) {
+            throw new HttpStatusException(400, "Invalid cursor: " + cursor, ex);
+        }
+    }
+
+    @Override
+    public void serialize(JsonGenerator gen, SerializerProvider serializers) throws IOException {
+        gen.writeStartObject();
+        gen.writeFieldName("items");
+        gen.writeStartArray();
+        String next;
+        try {
+            next = source.read(position, limit, (item) -> {
+                try {
+                    serializers.defaultSerializeValue(item, gen);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        gen.writeEndArray();
+        gen.writeStringField("next", encodeCursor(next));
+        gen.writeEndObject();
+    }
+
+    @Override
+    public void serializeWithType(JsonGenerator gen, SerializerProvider serializers, TypeSerializer typeSer) throws IOException {
+        serialize(gen, serializers);
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.httpserver;
+
+import java.util.function.Consumer;
+
+/**
+ * A collection that can be read a page at a time from a position, such as
+ * the key of the last row read, so that it can be served in pages without
+ * ever being held in memory whole.
+ *
+ * @author Patrick Angle
+ * @param <T>
+ */
+@FunctionalInterface
+public interface CursorSource<T> {
+
+    /**
+     * Read up to a number of items following a position, passing each to a
+     * sink as it is read. The sink writes each item to the response
+     * immediately.
+     *
+     * @param position The position to read from, as returned by a previous
+     * read, or null to read from the start.
+     * @param limit The maximum number of items to read.
+     * @param sink
+     * @return The position following the last item read, or null if there
+     * are no more items.
+     */
+    public String read(String position, int limit, Consumer<? super T> sink);
+}
@@ -0,0 +1,339 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.httpserver;
+
+import com.patrickangle.commons.logging.Logging;
+import com.patrickangle.commons.util.Files;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * An in-memory index of how request paths resolve within a document
+ * directory, along with the metadata of the files they resolve to and any
+ * rendered directory listings. A WatchService keeps the index current, so
+ * repeated lookups never touch the file system.
+ *
+ * Changes within a directory invalidate every cached resolution beneath it.
+ * Network mounts such as NFS and SMB usually deliver no change events for
+ * changes made by other hosts, so on those a maximum age should be set, after
+ * which an entry is resolved again from the file system. Each path then costs
+ * at most one round of file system calls per interval, rather than several per
+ * request.
+ *
+ * @author Patrick Angle
+ */
+public class DocumentIndex implements Closeable {
+
+    public static final int DEFAULT_MAXIMUM_ENTRIES = 16384;
+
+    public static class Entry {
+
+        private final Path requestedPath;
+        private final boolean requestedDirectory;
+        private final File file;
+        private final boolean directory;
+        private final long lastModified;
+        private final long length;
+        private final String mimeType;
+        private final long resolvedAt = System.nanoTime();
+
+        Entry(Path requestedPath, boolean requestedDirectory, File file, boolean directory, long lastModified, long length, String mimeType) {
+            this.requestedPath = requestedPath;
+            this.requestedDirectory = requestedDirectory;
+            this.file = file;
+            this.directory = directory;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.mimeType = mimeType;
+        }
+
+        /**
+         * @return True if the requested path is itself a directory, even if it
+         * resolved to one of its default files.
+         */
+        public boolean isRequestedDirectory() {
+            return requestedDirectory;
+        }
+
+        /**
+         * @return The resolved file or directory, or null if nothing exists at
+         * the requested path.
+         */
+        public File getFile() {
+            return file;
+        }
+
+        public boolean isFile() {
+            return file != null && !directory;
+        }
+
+        public boolean isDirectory() {
+            return file != null && directory;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+    }
+
+    private static class Listing {
+
+        private final Path directory;
+        private final byte[] page;
+        private final long renderedAt = System.nanoTime();
+
+        Listing(Path directory, byte[] page) {
+            this.directory = directory;
+            this.page = page;
+        }
+    }
+
+    protected final Path root;
+    protected final List<String> defaultFiles;
+    protected final int maximumEntries;
+    protected volatile Duration maximumAge = Duration.ZERO;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, Listing> listings = new ConcurrentHashMap<>();
+    // Incremented on every invalidation, so results computed while a change was being processed are not kept.
+    private final AtomicLong generation = new AtomicLong();
+    private final WatchService watchService;
+    private final Thread watchThread;
+
+    public DocumentIndex(File documentDirectory, List<String> defaultFiles) throws IOException {
+        this(documentDirectory, defaultFiles, DEFAULT_MAXIMUM_ENTRIES);
+    }
+
+    public DocumentIndex(File documentDirectory, List<String> defaultFiles, int maximumEntries) throws IOException {
+        this.root = documentDirectory.toPath().toAbsolutePath().normalize();
+        this.defaultFiles = defaultFiles;
+        this.maximumEntries = maximumEntries;
+
+        this.watchService = FileSystems.getDefault().newWatchService();
+        registerRecursively(root);
+
+        this.watchThread = new Thread(this::processEvents, "DocumentIndex-" + root.getFileName());
+        this.watchThread.setDaemon(true);
+        this.watchThread.start();
+    }
+
+    public Duration getMaximumAge() {
+        return maximumAge;
+    }
+
+    /**
+     * Set how long a resolution or listing is used before it is checked
+     * against the file system again, or zero to rely on change events alone.
+     *
+     * @param maximumAge
+     */
+    public void setMaximumAge(Duration maximumAge) {
+        this.maximumAge = maximumAge;
+    }
+
+    /**
+     * Resolve a request path, relative to the document directory, to the file
+     * or directory that should be served.
+     *
+     * @param requestPath
+     * @return The resolution, whose file is null if nothing exists at the path.
+     */
+    public Entry resolve(String requestPath) {
+        Entry entry = entries.get(requestPath);
+        if (entry == null || isExpired(entry.resolvedAt)) {
+            long startingGeneration = generation.get();
+            entry = resolveFromFileSystem(requestPath);
+
+            // Requests for many distinct missing paths must not grow the index without bound.
+            if (entries.size() >= maximumEntries) {
+                entries.clear();
+            }
+            entries.put(requestPath, entry);
+            if (generation.get() != startingGeneration) {
+                entries.remove(requestPath, entry);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Get the rendered listing page for a directory, rendering it only if
+     * there is no current copy.
+     *
+     * @param key Identifies the rendered variant, such as the request path the
+     * listing will be shown at.
+     * @param directory
+     * @param renderer
+     * @return
+     */
+    public byte[] listing(String key, File directory, Function<File, byte[]> renderer) {
+        Listing listing = listings.get(key);
+        if (listing == null || isExpired(listing.renderedAt)) {
+            long startingGeneration = generation.get();
+            listing = new Listing(directory.toPath().toAbsolutePath().normalize(), renderer.apply(directory));
+            if (listings.size() >= maximumEntries) {
+                listings.clear();
+            }
+            listings.put(key, listing);
+            if (generation.get() != startingGeneration) {
+                listings.remove(key, listing);
+            }
+        }
+        return listing.page;
+    }
+
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        entries.clear();
+        listings.clear();
+    }
+
+    public int getEntryCount() {
+        return entries.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+        watchThread.interrupt();
+    }
+
+    private boolean isExpired(long createdAt) {
+        Duration age = maximumAge;
+        return !age.isZero() && System.nanoTime() - createdAt >= age.toNanos();
+    }
+
+    private Entry resolveFromFileSystem(String requestPath) {
+        Path requested = root.resolve(trimLeadingSlashes(requestPath)).normalize();
+
+        // Paths that escape the document directory resolve to nothing.
+        if (!requested.startsWith(root)) {
+            return new Entry(requested, false, null, false, -1, -1, null);
+        }
+
+        File requestedFile = requested.toFile();
+        if (requestedFile.isFile()) {
+            return fileEntry(requested, false, requestedFile);
+        } else if (requestedFile.isDirectory()) {
+            for (String defaultFile : defaultFiles) {
+                File potentialFile = new File(requestedFile, defaultFile);
+                if (potentialFile.isFile()) {
+                    return fileEntry(requested, true, potentialFile);
+                }
+            }
+            return new Entry(requested, true, requestedFile, true, requestedFile.lastModified(), -1, null);
+        } else {
+            return new Entry(requested, false, null, false, -1, -1, null);
+        }
+    }
+
+    private static Entry fileEntry(Path requested, boolean requestedDirectory, File file) {
+        String mimeType;
+        try {
+            mimeType = Files.mimeTypeFromFile(file);
+        } catch (IOException ex) {
+            mimeType = "application/octet-stream";
+        }
+        return new Entry(requested, requestedDirectory, file, false, file.lastModified(), file.length(), mimeType);
+    }
+
+    private static String trimLeadingSlashes(String path) {
+        int start = 0;
+        while (start < path.length() && path.charAt(start) == '/') {
+            start++;
+        }
+        return path.substring(start);
+    }
+
+    private void registerRecursively(Path directory) throws IOException {
+        java.nio.file.Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void processEvents() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException ex) {
+                return;
+            }
+
+            Path directory = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    invalidateAll();
+                    continue;
+                }
+
+                Path child = directory.resolve((Path) event.context());
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && child.toFile().isDirectory()) {
+                    try {
+                        registerRecursively(child);
+                    } catch (IOException ex) {
+                        Logging.exception(DocumentIndex.class, ex);
+                    }
+                }
+            }
+            invalidateBeneath(directory);
+
+            // A key that cannot be reset belongs to a directory that no longer exists, and so needs no further watching.
+            key.reset();
+        }
+    }
+
+    private void invalidateBeneath(Path directory) {
+        generation.incrementAndGet();
+        entries.values().removeIf(entry -> entry.requestedPath.startsWith(directory));
+        listings.values().removeIf(listing -> listing.directory.startsWith(directory));
+    }
+}
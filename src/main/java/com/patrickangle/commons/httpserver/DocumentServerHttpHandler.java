@@ -8,9 +8,15 @@ package com.patrickangle.commons.httpserver;
 import com.patrickangle.commons.util.Files;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -21,13 +27,23 @@ import java.util.List;
  */
 public class DocumentServerHttpHandler implements HttpHandler {
     protected static final String style = "<style>body {font-family: sans-serif;} h1 {font-size: 1.5em;} h2 {font-size: 1.25em;} h3 {font-size: 1.1em;}</style>";
-    protected static final String fileImage = "<image src=\"data:image/png;base64,iVBORw0KGgoAAAANSUhEUgAAABAAAAAQCAYAAAAf8/9hAAAEGWlDQ1BrQ0dDb2xvclNwYWNlR2VuZXJpY1JHQgAAOI2NVV1oHFUUPrtzZyMkzlNsNIV0qD8NJQ2TVjShtLp/3d02bpZJNtoi6GT27s6Yyc44M7v9oU9FUHwx6psUxL+3gCAo9Q/bPrQvlQol2tQgKD60+INQ6Ium65k7M5lpurHeZe58853vnnvuuWfvBei5qliWkRQBFpquLRcy4nOHj4g9K5CEh6AXBqFXUR0rXalMAjZPC3e1W99Dwntf2dXd/p+tt0YdFSBxH2Kz5qgLiI8B8KdVy3YBevqRHz/qWh72Yui3MUDEL3q44WPXw3M+fo1pZuQs4tOIBVVTaoiXEI/MxfhGDPsxsNZfoE1q66ro5aJim3XdoLFw72H+n23BaIXzbcOnz5mfPoTvYVz7KzUl5+FRxEuqkp9G/Ajia219thzg25abkRE/BpDc3pqvphHvRFys2weqvp+krbWKIX7nhDbzLOItiM8358pTwdirqpPFnMF2xLc1WvLyOwTAibpbmvHHcvttU57y5+XqNZrLe3lE/Pq8eUj2fXKfOe3pfOjzhJYtB/yll5SDFcSDiH+hRkH25+L+sdxKEAMZahrlSX8ukqMOWy/jXW2m6M9LDBc31B9LFuv6gVKg/0Szi3KAr1kGq1GMjU/aLbnq6/lRxc4XfJ98hTargX++DbMJBSiYMIe9Ck1YAxFkKEAG3xbYaKmDDgYyFK0UGYpfoWYXG+fAPPI6tJnNwb7ClP7IyF+D+bjOtCpkhz6CFrIa/I6sFtNl8auFXGMTP34sNwI/JhkgEtmDz14ySfaRcTIBInmKPE32kxyyE2Tv+thKbEVePDfW/byMM1Kmm0XdObS7oGD/MypMXFPXrCwOtoYjyyn7BV29/MZfsVzpLDdRtuIZnbpXzvlf+ev8MvYr/Gqk4H/kV/G3csdazLuyTMPsbFhzd1UabQbjFvDRmcWJxR3zcfHkVw9GfpbJmeev9F08WW8uDkaslwX6avlWGU6NRKz0g/SHtCy9J30o/ca9zX3Kfc19zn3BXQKRO8ud477hLnAfc1/G9mrzGlrfexZ5GLdn6ZZrrEohI2wVHhZywjbhUWEy8icMCGNCUdiBlq3r+xafL549HQ5jH+an+1y+LlYBifuxAvRN/lVVVOlwlCkdVm9NOL5BE4wkQ2SMlDZU97hX86EilU/lUmkQUztTE6mx1EEPh7OmdqBtAvv8HdWpbrJS6tJj3n0CWdM6busNzRV3S9KTYhqvNiqWmuroiKgYhshMjmhTh9ptWhsF7970j/SbMrsPE1suR5z7DMC+P/Hs+y7ijrQAlhyAgccjbhjPygfeBTjzhNqy28EdkUh8C+DU9+z2v/oyeH791OncxHOs5y2AtTc7nb/f73TWPkD/qwBnjX8BoJ98VQNcC+8AAAC+SURBVDgRY2BAgP9AJjZ8CygeiFCGmwXSrIaE1YHsPCD+DMRfgLgGiDEAE4YIQgBk4G4g5gLiACAuAeKpQMwMxHCAzwCQor9ADFJzEoi9gTgMiFcCMSsQgwEhA2DqQPQlIHYHYnMgLgNiMGCEMYA0yMkgf6ODm0gCf4Dsd1CsCRJnAREEALKhYkC1oLDwhOkhxgUwtTBaCsjYD8RgvaSEAcyAFzAGiCbHgH+UGoCsnywXDDcD0NMBiv8IcMB6AYM4Hoc0T8wOAAAAAElFTkSuQmCC\"/>";
-    protected static final String dirImage = "<image src=\"data:image/png;base64,iVBORw0KGgoAAAANSUhEUgAAABAAAAAQCAYAAAAf8/9hAAAEGWlDQ1BrQ0dDb2xvclNwYWNlR2VuZXJpY1JHQgAAOI2NVV1oHFUUPrtzZyMkzlNsNIV0qD8NJQ2TVjShtLp/3d02bpZJNtoi6GT27s6Yyc44M7v9oU9FUHwx6psUxL+3gCAo9Q/bPrQvlQol2tQgKD60+INQ6Ium65k7M5lpurHeZe58853vnnvuuWfvBei5qliWkRQBFpquLRcy4nOHj4g9K5CEh6AXBqFXUR0rXalMAjZPC3e1W99Dwntf2dXd/p+tt0YdFSBxH2Kz5qgLiI8B8KdVy3YBevqRHz/qWh72Yui3MUDEL3q44WPXw3M+fo1pZuQs4tOIBVVTaoiXEI/MxfhGDPsxsNZfoE1q66ro5aJim3XdoLFw72H+n23BaIXzbcOnz5mfPoTvYVz7KzUl5+FRxEuqkp9G/Ajia219thzg25abkRE/BpDc3pqvphHvRFys2weqvp+krbWKIX7nhDbzLOItiM8358pTwdirqpPFnMF2xLc1WvLyOwTAibpbmvHHcvttU57y5+XqNZrLe3lE/Pq8eUj2fXKfOe3pfOjzhJYtB/yll5SDFcSDiH+hRkH25+L+sdxKEAMZahrlSX8ukqMOWy/jXW2m6M9LDBc31B9LFuv6gVKg/0Szi3KAr1kGq1GMjU/aLbnq6/lRxc4XfJ98hTargX++DbMJBSiYMIe9Ck1YAxFkKEAG3xbYaKmDDgYyFK0UGYpfoWYXG+fAPPI6tJnNwb7ClP7IyF+D+bjOtCpkhz6CFrIa/I6sFtNl8auFXGMTP34sNwI/JhkgEtmDz14ySfaRcTIBInmKPE32kxyyE2Tv+thKbEVePDfW/byMM1Kmm0XdObS7oGD/MypMXFPXrCwOtoYjyyn7BV29/MZfsVzpLDdRtuIZnbpXzvlf+ev8MvYr/Gqk4H/kV/G3csdazLuyTMPsbFhzd1UabQbjFvDRmcWJxR3zcfHkVw9GfpbJmeev9F08WW8uDkaslwX6avlWGU6NRKz0g/SHtCy9J30o/ca9zX3Kfc19zn3BXQKRO8ud477hLnAfc1/G9mrzGlrfexZ5GLdn6ZZrrEohI2wVHhZywjbhUWEy8icMCGNCUdiBlq3r+xafL549HQ5jH+an+1y+LlYBifuxAvRN/lVVVOlwlCkdVm9NOL5BE4wkQ2SMlDZU97hX86EilU/lUmkQUztTE6mx1EEPh7OmdqBtAvv8HdWpbrJS6tJj3n0CWdM6busNzRV3S9KTYhqvNiqWmuroiKgYhshMjmhTh9ptWhsF7970j/SbMrsPE1suR5z7DMC+P/Hs+y7ijrQAlhyAgccjbhjPygfeBTjzhNqy28EdkUh8C+DU9+z2v/oyeH791OncxHOs5y2AtTc7nb/f73TWPkD/qwBnjX8BoJ98VQNcC+8AAAB6SURBVDgRY2AYDGAt0BH/kfAHIDuIFIeBNEsh4XAgeysQIxuKi72aEapQGkiTA56CNIFM/wKlcdmETfwzSA/MBYlAzlsgJgUIARUvYILqIFUzSNs7EAEzAMQmCwweA0CBSRZggeqSIEs3VNNFII0tnokRu0KJxdTRCwBcoTdaEN5cFwAAAABJRU5ErkJggg==\"/>";
+    protected static final String fileIconData = "data:image/png;base64,iVBORw0KGgoAAAANSUhEUgAAABAAAAAQCAYAAAAf8/9hAAAEGWlDQ1BrQ0dDb2xvclNwYWNlR2VuZXJpY1JHQgAAOI2NVV1oHFUUPrtzZyMkzlNsNIV0qD8NJQ2TVjShtLp/3d02bpZJNtoi6GT27s6Yyc44M7v9oU9FUHwx6psUxL+3gCAo9Q/bPrQvlQol2tQgKD60+INQ6Ium65k7M5lpurHeZe58853vnnvuuWfvBei5qliWkRQBFpquLRcy4nOHj4g9K5CEh6AXBqFXUR0rXalMAjZPC3e1W99Dwntf2dXd/p+tt0YdFSBxH2Kz5qgLiI8B8KdVy3YBevqRHz/qWh72Yui3MUDEL3q44WPXw3M+fo1pZuQs4tOIBVVTaoiXEI/MxfhGDPsxsNZfoE1q66ro5aJim3XdoLFw72H+n23BaIXzbcOnz5mfPoTvYVz7KzUl5+FRxEuqkp9G/Ajia219thzg25abkRE/BpDc3pqvphHvRFys2weqvp+krbWKIX7nhDbzLOItiM8358pTwdirqpPFnMF2xLc1WvLyOwTAibpbmvHHcvttU57y5+XqNZrLe3lE/Pq8eUj2fXKfOe3pfOjzhJYtB/yll5SDFcSDiH+hRkH25+L+sdxKEAMZahrlSX8ukqMOWy/jXW2m6M9LDBc31B9LFuv6gVKg/0Szi3KAr1kGq1GMjU/aLbnq6/lRxc4XfJ98hTargX++DbMJBSiYMIe9Ck1YAxFkKEAG3xbYaKmDDgYyFK0UGYpfoWYXG+fAPPI6tJnNwb7ClP7IyF+D+bjOtCpkhz6CFrIa/I6sFtNl8auFXGMTP34sNwI/JhkgEtmDz14ySfaRcTIBInmKPE32kxyyE2Tv+thKbEVePDfW/byMM1Kmm0XdObS7oGD/MypMXFPXrCwOtoYjyyn7BV29/MZfsVzpLDdRtuIZnbpXzvlf+ev8MvYr/Gqk4H/kV/G3csdazLuyTMPsbFhzd1UabQbjFvDRmcWJxR3zcfHkVw9GfpbJmeev9F08WW8uDkaslwX6avlWGU6NRKz0g/SHtCy9J30o/ca9zX3Kfc19zn3BXQKRO8ud477hLnAfc1/G9mrzGlrfexZ5GLdn6ZZrrEohI2wVHhZywjbhUWEy8icMCGNCUdiBlq3r+xafL549HQ5jH+an+1y+LlYBifuxAvRN/lVVVOlwlCkdVm9NOL5BE4wkQ2SMlDZU97hX86EilU/lUmkQUztTE6mx1EEPh7OmdqBtAvv8HdWpbrJS6tJj3n0CWdM6busNzRV3S9KTYhqvNiqWmuroiKgYhshMjmhTh9ptWhsF7970j/SbMrsPE1suR5z7DMC+P/Hs+y7ijrQAlhyAgccjbhjPygfeBTjzhNqy28EdkUh8C+DU9+z2v/oyeH791OncxHOs5y2AtTc7nb/f73TWPkD/qwBnjX8BoJ98VQNcC+8AAAC+SURBVDgRY2BAgP9AJjZ8CygeiFCGmwXSrIaE1YHsPCD+DMRfgLgGiDEAE4YIQgBk4G4g5gLiACAuAeKpQMwMxHCAzwCQor9ADFJzEoi9gTgMiFcCMSsQgwEhA2DqQPQlIHYHYnMgLgNiMGCEMYA0yMkgf6ODm0gCf4Dsd1CsCRJnAREEALKhYkC1oLDwhOkhxgUwtTBaCsjYD8RgvaSEAcyAFzAGiCbHgH+UGoCsnywXDDcD0NMBiv8IcMB6AYM4Hoc0T8wOAAAAAElFTkSuQmCC";
+    protected static final String dirIconData = "data:image/png;base64,iVBORw0KGgoAAAANSUhEUgAAABAAAAAQCAYAAAAf8/9hAAAEGWlDQ1BrQ0dDb2xvclNwYWNlR2VuZXJpY1JHQgAAOI2NVV1oHFUUPrtzZyMkzlNsNIV0qD8NJQ2TVjShtLp/3d02bpZJNtoi6GT27s6Yyc44M7v9oU9FUHwx6psUxL+3gCAo9Q/bPrQvlQol2tQgKD60+INQ6Ium65k7M5lpurHeZe58853vnnvuuWfvBei5qliWkRQBFpquLRcy4nOHj4g9K5CEh6AXBqFXUR0rXalMAjZPC3e1W99Dwntf2dXd/p+tt0YdFSBxH2Kz5qgLiI8B8KdVy3YBevqRHz/qWh72Yui3MUDEL3q44WPXw3M+fo1pZuQs4tOIBVVTaoiXEI/MxfhGDPsxsNZfoE1q66ro5aJim3XdoLFw72H+n23BaIXzbcOnz5mfPoTvYVz7KzUl5+FRxEuqkp9G/Ajia219thzg25abkRE/BpDc3pqvphHvRFys2weqvp+krbWKIX7nhDbzLOItiM8358pTwdirqpPFnMF2xLc1WvLyOwTAibpbmvHHcvttU57y5+XqNZrLe3lE/Pq8eUj2fXKfOe3pfOjzhJYtB/yll5SDFcSDiH+hRkH25+L+sdxKEAMZahrlSX8ukqMOWy/jXW2m6M9LDBc31B9LFuv6gVKg/0Szi3KAr1kGq1GMjU/aLbnq6/lRxc4XfJ98hTargX++DbMJBSiYMIe9Ck1YAxFkKEAG3xbYaKmDDgYyFK0UGYpfoWYXG+fAPPI6tJnNwb7ClP7IyF+D+bjOtCpkhz6CFrIa/I6sFtNl8auFXGMTP34sNwI/JhkgEtmDz14ySfaRcTIBInmKPE32kxyyE2Tv+thKbEVePDfW/byMM1Kmm0XdObS7oGD/MypMXFPXrCwOtoYjyyn7BV29/MZfsVzpLDdRtuIZnbpXzvlf+ev8MvYr/Gqk4H/kV/G3csdazLuyTMPsbFhzd1UabQbjFvDRmcWJxR3zcfHkVw9GfpbJmeev9F08WW8uDkaslwX6avlWGU6NRKz0g/SHtCy9J30o/ca9zX3Kfc19zn3BXQKRO8ud477hLnAfc1/G9mrzGlrfexZ5GLdn6ZZrrEohI2wVHhZywjbhUWEy8icMCGNCUdiBlq3r+xafL549HQ5jH+an+1y+LlYBifuxAvRN/lVVVOlwlCkdVm9NOL5BE4wkQ2SMlDZU97hX86EilU/lUmkQUztTE6mx1EEPh7OmdqBtAvv8HdWpbrJS6tJj3n0CWdM6busNzRV3S9KTYhqvNiqWmuroiKgYhshMjmhTh9ptWhsF7970j/SbMrsPE1suR5z7DMC+P/Hs+y7ijrQAlhyAgccjbhjPygfeBTjzhNqy28EdkUh8C+DU9+z2v/oyeH791OncxHOs5y2AtTc7nb/f73TWPkD/qwBnjX8BoJ98VQNcC+8AAAB6SURBVDgRY2AYDGAt0BH/kfAHIDuIFIeBNEsh4XAgeysQIxuKi72aEapQGkiTA56CNIFM/wKlcdmETfwzSA/MBYlAzlsgJgUIARUvYILqIFUzSNs7EAEzAMQmCwweA0CBSRZggeqSIEs3VNNFII0tnokRu0KJxdTRCwBcoTdaEN5cFwAAAABJRU5ErkJggg==";
+    protected static final String fileImage = "<image src=\"" + fileIconData + "\"/>";
+    protected static final String dirImage = "<image src=\"" + dirIconData + "\"/>";
+    // Directory listings reference each icon once from CSS, rather than inlining it in every row.
+    protected static final String listingStyle = "<style>td.file, td.dir {width: 16px; background-repeat: no-repeat; background-position: center;} td.file {background-image: url(" + fileIconData + ");} td.dir {background-image: url(" + dirIconData + ");}</style>";
 
     
     protected File documentDirectory;
     protected List<String> defaultFiles;
     protected boolean showDirectoryListings;
+    protected ResponseCompression compression = new ResponseCompression();
+    protected FileCache fileCache = new FileCache();
+    protected String cacheControl = "no-cache";
+    protected DocumentIndex documentIndex = null;
+    protected AssetFingerprints assetFingerprints = null;
+    protected HttpMetrics metrics = null;
 
     public DocumentServerHttpHandler(File documentsDirectory) {
         this(documentsDirectory, new ArrayList<String>(Arrays.asList("index.html", "index.htm")), true);
@@ -39,16 +55,159 @@ public class DocumentServerHttpHandler implements HttpHandler {
         this.showDirectoryListings = showDirectoryListings;
     }
 
+    public ResponseCompression getCompression() {
+        return compression;
+    }
+
+    public void setCompression(ResponseCompression compression) {
+        this.compression = compression;
+    }
+
+    public FileCache getFileCache() {
+        return fileCache;
+    }
+
+    /**
+     * Set the cache of hot files, or null to always read files from disk.
+     *
+     * @param fileCache
+     */
+    public void setFileCache(FileCache fileCache) {
+        this.fileCache = fileCache;
+    }
+
+    public String getCacheControl() {
+        return cacheControl;
+    }
+
+    /**
+     * Set the Cache-Control header sent with files. The default, "no-cache",
+     * has browsers revalidate each time, which is answered with 304 Not
+     * Modified when the file is unchanged.
+     *
+     * @param cacheControl The header value, or null to omit the header.
+     */
+    public void setCacheControl(String cacheControl) {
+        this.cacheControl = cacheControl;
+    }
+
+    public DocumentIndex getDocumentIndex() {
+        return documentIndex;
+    }
+
+    /**
+     * Set the index used to resolve requests without touching the file system,
+     * or null to resolve every request against the file system.
+     *
+     * @param documentIndex
+     */
+    public void setDocumentIndex(DocumentIndex documentIndex) {
+        this.documentIndex = documentIndex;
+    }
+
+    /**
+     * Create and use an index of the document directory, kept current by a
+     * WatchService. For a document directory on a network mount, which may
+     * not report changes, set a maximum age on the returned index.
+     *
+     * @return The new index, which should be closed when the handler is no
+     * longer in use.
+     * @throws IOException
+     */
+    public DocumentIndex enableDocumentIndex() throws IOException {
+        this.documentIndex = new DocumentIndex(documentDirectory, defaultFiles);
+        return this.documentIndex;
+    }
+
+    public AssetFingerprints getAssetFingerprints() {
+        return assetFingerprints;
+    }
+
+    /**
+     * Set the index of content hashes through which files can be requested by
+     * fingerprinted name, and served with {@link AssetFingerprints#IMMUTABLE_CACHE_CONTROL},
+     * or null to serve files by their own names only.
+     *
+     * @param assetFingerprints
+     */
+    public void setAssetFingerprints(AssetFingerprints assetFingerprints) {
+        this.assetFingerprints = assetFingerprints;
+    }
+
+    /**
+     * Hash every file in the document directory and serve them by
+     * fingerprinted name as well as their own names.
+     *
+     * @return The new index, whose {@link AssetFingerprints#fingerprinted(String)}
+     * gives the names pages should refer to.
+     * @throws IOException
+     */
+    public AssetFingerprints enableAssetFingerprints() throws IOException {
+        this.assetFingerprints = AssetFingerprints.index(documentDirectory);
+        return this.assetFingerprints;
+    }
+
+    public HttpMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Set the registry that requests are recorded in, under the context path,
+     * or null to record nothing.
+     *
+     * @param metrics
+     */
+    public void setMetrics(HttpMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     @Override
     public void handle(HttpExchange he) throws IOException {
+        HttpMetrics metrics = this.metrics;
+        if (metrics == null) {
+            serve(he);
+            return;
+        }
+        
+        long startNanos = System.nanoTime();
+        ResponseStatistics statistics = ResponseStatistics.begin();
+        boolean completed = false;
+        try {
+            serve(he);
+            completed = true;
+        } finally {
+            long elapsedNanos = System.nanoTime() - startNanos;
+            long writeNanos = statistics.getWriteNanos();
+            metrics.route(he.getHttpContext().getPath()).record(completed ? he.getResponseCode() : -1, elapsedNanos, HttpMetrics.requestContentLength(he), statistics.getBodyBytes(), statistics.getWireBytes(), elapsedNanos - writeNanos, writeNanos);
+        }
+    }
+    
+    protected void serve(HttpExchange he) throws IOException {
         String requestPath = he.getRequestURI().getPath();
         if (requestPath.startsWith(he.getHttpContext().getPath())) {
             requestPath = requestPath.substring(he.getHttpContext().getPath().length());
         }
+        
+        AssetFingerprints fingerprints = assetFingerprints;
+        if (fingerprints != null) {
+            AssetFingerprints.Asset asset = fingerprints.resolve(requestPath);
+            if (asset != null) {
+                handleFileRequest(asset.getFile(), asset.getLastModified(), asset.getLength(), asset.getMimeType(), AssetFingerprints.IMMUTABLE_CACHE_CONTROL, he);
+                return;
+            }
+        }
+        
+        DocumentIndex index = documentIndex;
+        if (index != null) {
+            handleIndexedRequest(index, index.resolve(requestPath), he);
+            return;
+        }
+        
         String redirectNeeded = redirectNeeded(he.getRequestURI().getPath(), requestPath);
         
         if (redirectNeeded != null) {
             handleRedirectRequest(he, redirectNeeded);
+            return;
         }
 
         File fileOrDirectory = resolveFileOrDirectoryIfPossible(new File(documentDirectory, requestPath));
@@ -66,18 +225,151 @@ public class DocumentServerHttpHandler implements HttpHandler {
         }
     }
 
+    protected void handleIndexedRequest(DocumentIndex index, DocumentIndex.Entry entry, HttpExchange he) throws IOException {
+        String uriPath = he.getRequestURI().getPath();
+        if (entry.isRequestedDirectory() && !uriPath.endsWith("/")) {
+            handleRedirectRequest(he, uriPath.concat("/"));
+        } else if (entry.isFile()) {
+            handleFileRequest(entry.getFile(), entry.getLastModified(), entry.getLength(), entry.getMimeType(), he);
+        } else if (entry.isDirectory() && showDirectoryListings) {
+            byte[] response = index.listing(uriPath, entry.getFile(), (directory) -> {
+                return directoryListingPageForDirectory(directory, he).getBytes(StandardCharsets.UTF_8);
+            });
+            he.getResponseHeaders().add("Content-Type", "text/html; charset=utf-8");
+            compression.sendResponse(he, 200, response);
+        } else {
+            handleUnavailableRequest(entry.getFile(), he);
+        }
+    }
+
     public void handleFileRequest(File file, HttpExchange he) throws IOException {
-        byte[] response = Files.bytesFromFile(file);
+        handleFileRequest(file, file.lastModified(), file.length(), Files.mimeTypeFromFile(file), he);
+    }
+
+    public void handleFileRequest(File file, long lastModified, long length, String mimeType, HttpExchange he) throws IOException {
+        handleFileRequest(file, lastModified, length, mimeType, cacheControl, he);
+    }
+
+    protected void handleFileRequest(File file, long lastModified, long length, String mimeType, String cacheControl, HttpExchange he) throws IOException {
+        he.getResponseHeaders().add("Content-Type", mimeType);
+        he.getResponseHeaders().add("Accept-Ranges", "bytes");
+        he.getResponseHeaders().add("Last-Modified", HttpDates.format(lastModified));
+        if (cacheControl != null) {
+            he.getResponseHeaders().add("Cache-Control", cacheControl);
+        }
+        compression.addVaryHeader(he);
+        
+        FileCache.Entry cachedFile = null;
+        if (fileCache != null && fileCache.isCacheable(length)) {
+            cachedFile = fileCache.get(file, lastModified, length);
+            if (cachedFile == null) {
+                // A date-only revalidation can be answered before the file's contents, and so its ETag, are read.
+                if (he.getRequestHeaders().getFirst("If-None-Match") == null && ConditionalRequests.isNotModified(he.getRequestHeaders(), null, lastModified)) {
+                    ConditionalRequests.sendNotModified(he);
+                    return;
+                }
+                try {
+                    cachedFile = fileCache.load(file, lastModified, compression, mimeType);
+                    length = cachedFile.getLength();
+                } catch (IOException ex) {
+                    he.getResponseHeaders().clear();
+                    handleUnavailableRequest(file, he);
+                    return;
+                }
+            }
+        }
+        
+        String eTag = cachedFile != null ? cachedFile.getETag() : metadataETag(length, lastModified);
+        String gzipETag = ConditionalRequests.gzipETag(eTag);
         
-        if (response == null) {
+        // Ranges are always served from the identity representation, so If-Range is only compared with its tag, and a
+        // full response that will be gzipped carries the gzipped representation's own tag.
+        ByteRange range = rangeIfApplicable(he, length, eTag, lastModified);
+        boolean gzipped = range == null && (cachedFile != null
+                ? compression.sendsPrecompressed(he, cachedFile.getContents(), cachedFile.getGzippedContents())
+                : compression.shouldCompress(he, length));
+        he.getResponseHeaders().add("ETag", gzipped ? gzipETag : eTag);
+        
+        if (ConditionalRequests.isNotModified(he.getRequestHeaders(), eTag, gzipETag, lastModified)) {
+            ConditionalRequests.sendNotModified(he);
+            return;
+        }
+        
+        if (range == ByteRange.UNSATISFIABLE) {
+            he.getResponseHeaders().add("Content-Range", ByteRange.unsatisfiedContentRangeHeader(length));
+            he.sendResponseHeaders(416, -1);
+            he.close();
+        } else if (cachedFile != null) {
+            if (range != null) {
+                he.getResponseHeaders().add("Content-Range", range.contentRangeHeader());
+                long writeStart = System.nanoTime();
+                he.sendResponseHeaders(206, range.getLength());
+                try (OutputStream os = he.getResponseBody()) {
+                    os.write(cachedFile.getContents(), (int) range.getStart(), (int) range.getLength());
+                }
+                ResponseStatistics.current().add(range.getLength(), range.getLength(), System.nanoTime() - writeStart);
+            } else {
+                compression.sendPrecompressedResponse(he, 200, cachedFile.getContents(), cachedFile.getGzippedContents());
+            }
+        } else {
+            handleUncachedFileRequest(file, range, he);
+        }
+    }
+    
+    protected void handleUncachedFileRequest(File file, ByteRange range, HttpExchange he) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        } catch (IOException ex) {
+            he.getResponseHeaders().clear();
             handleUnavailableRequest(file, he);
+            return;
         }
         
-        he.getResponseHeaders().add("Content-Type", Files.mimeTypeFromFile(file));
-        he.sendResponseHeaders(200, response.length);
-        OutputStream os = he.getResponseBody();
-        os.write(response);
-        os.close();
+        try {
+            if (range != null) {
+                he.getResponseHeaders().add("Content-Range", range.contentRangeHeader());
+                long writeStart = System.nanoTime();
+                he.sendResponseHeaders(206, range.getLength());
+                try (OutputStream os = he.getResponseBody()) {
+                    transfer(channel, range.getStart(), range.getLength(), os);
+                }
+                ResponseStatistics.current().add(range.getLength(), range.getLength(), System.nanoTime() - writeStart);
+            } else {
+                long length = channel.size();
+                try (OutputStream os = compression.openResponseBody(he, 200, length)) {
+                    transfer(channel, 0, length, os);
+                }
+            }
+        } finally {
+            channel.close();
+        }
+    }
+    
+    protected ByteRange rangeIfApplicable(HttpExchange he, long length, String eTag, long lastModified) {
+        if (!he.getRequestMethod().equalsIgnoreCase("GET") || !ConditionalRequests.isRangeApplicable(he.getRequestHeaders(), eTag, lastModified)) {
+            return null;
+        }
+        
+        return ByteRange.parse(he.getRequestHeaders().getFirst("Range"), length);
+    }
+    
+    // Files too large to cache are tagged by their length and modification time, so validating them never reads their contents.
+    protected static String metadataETag(long length, long lastModified) {
+        return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+    
+    protected static void transfer(FileChannel channel, long position, long count, OutputStream os) throws IOException {
+        // FileChannel.transferTo sends directly when the target is a channel the OS can splice to, and otherwise copies through the JDK's per-thread cached direct buffers, so the file is never loaded onto the heap.
+        WritableByteChannel target = Channels.newChannel(os);
+        while (count > 0) {
+            long transferred = channel.transferTo(position, count, target);
+            if (transferred <= 0) {
+                throw new EOFException("File was truncated while being sent.");
+            }
+            position += transferred;
+            count -= transferred;
+        }
     }
     
     public void handleRedirectRequest(HttpExchange he, String redirectLocation) throws IOException {
@@ -91,29 +383,24 @@ public class DocumentServerHttpHandler implements HttpHandler {
         byte[] response = this.directoryListingPageForDirectory(directory, he).getBytes();
         
         he.getResponseHeaders().add("Content-Type", "text/html");
-        he.sendResponseHeaders(200, response.length);
-        OutputStream os = he.getResponseBody();
-        os.write(response);
-        os.close();
+        compression.sendResponse(he, 200, response);
     }
 
     public void handleUnavailableRequest(File fileOrDirectory, HttpExchange he) throws IOException {
         byte[] response = ("<html><head>" + style + "</head><body><h1>404 - Resource Unavailable</h1></body></html>").getBytes();
         he.getResponseHeaders().add("Content-Type", "text/html");
-        he.sendResponseHeaders(404, response.length);
-        OutputStream os = he.getResponseBody();
-        os.write(response);
-        os.close();
+        compression.sendResponse(he, 404, response);
     }
     
     protected String directoryListingPageForDirectory(File directory, HttpExchange he) {
         StringBuilder sb = new StringBuilder();
         sb.append("<html><head>");
         sb.append(style);
+        sb.append(listingStyle);
         sb.append("</head><body>");
         sb.append("<h3>Directory Listing</h3>");
         sb.append("<h2>" + he.getRequestURI().getPath() + "</h2>");
-        sb.append("<table><tr><td></td><td><a href='..'>./..</a></td></tr>");
+        sb.append("<table><tr><td class='dir'></td><td><a href='..'>./..</a></td></tr>");
         List<File> files = Arrays.asList(directory.listFiles());
         
         files.sort((o1, o2) -> {
@@ -121,9 +408,10 @@ public class DocumentServerHttpHandler implements HttpHandler {
         });
         
         for(File file : files) {
-            sb.append("<tr><td>" + (file.isDirectory() ? dirImage : fileImage) + "</td><td><a href='./" + file.getName() + (file.isDirectory() ? "/" : "") + "'>" + file.getName() + "</a></tr>");
+            boolean isDirectory = file.isDirectory();
+            sb.append("<tr><td class='").append(isDirectory ? "dir" : "file").append("'></td><td><a href='./").append(file.getName()).append(isDirectory ? "/" : "").append("'>").append(file.getName()).append("</a></td></tr>");
         }
-        sb.append("</table>");
+        sb.append("</table></body></html>");
         return sb.toString();
     }
     
@@ -0,0 +1,306 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.httpserver;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.patrickangle.commons.logging.Logging;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pushes changes to a server-side model to clients as Server-Sent Events.
+ * Each client is first sent a "reset" event holding a snapshot of the model,
+ * followed by "delta" events holding the changes since, each numbered by its
+ * id. Changes are gathered for a flush window and sent as one event, which is
+ * serialized once and shared by every client.
+ *
+ * Each client has a bounded queue of events. A client that falls so far
+ * behind that its queue fills has the queue discarded and is sent a new
+ * snapshot instead. Idle connections are sent a comment as a heartbeat, which
+ * also detects clients that have gone away.
+ *
+ * Each connected client holds one of the server's threads.
+ *
+ * @author Patrick Angle
+ */
+public abstract class EventStreamHttpHandler implements HttpHandler, Closeable {
+
+    public static final Duration DEFAULT_FLUSH_WINDOW = Duration.ofMillis(100);
+    public static final Duration DEFAULT_HEARTBEAT_INTERVAL = Duration.ofSeconds(15);
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    private static final ScheduledExecutorService FLUSH_SCHEDULER = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+        Thread thread = new Thread(runnable, "EventStreamHttpHandler-flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final byte[] HEARTBEAT = ": heartbeat\n\n".getBytes(StandardCharsets.US_ASCII);
+    // Queued to tell a client's connection to end.
+    private static final byte[] END_OF_STREAM = new byte[0];
+
+    private static class Client {
+
+        private final BlockingQueue<byte[]> queue;
+
+        Client(int queueCapacity) {
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        }
+    }
+
+    protected Duration flushWindow = DEFAULT_FLUSH_WINDOW;
+    protected Duration heartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+    protected int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+    // Guards the pending changes, the event sequence and the cached snapshot.
+    protected final Object lock = new Object();
+    private final CopyOnWriteArraySet<Client> clients = new CopyOnWriteArraySet<>();
+    private long sequence = 0;
+    private boolean flushScheduled = false;
+    private byte[] snapshotEvent = null;
+    private volatile boolean closed = false;
+
+    private final LongAdder resyncs = new LongAdder();
+
+    public Duration getFlushWindow() {
+        return flushWindow;
+    }
+
+    /**
+     * Set how long changes are gathered for before being sent as one event.
+     *
+     * @param flushWindow
+     */
+    public void setFlushWindow(Duration flushWindow) {
+        this.flushWindow = flushWindow;
+    }
+
+    public Duration getHeartbeatInterval() {
+        return heartbeatInterval;
+    }
+
+    public void setHeartbeatInterval(Duration heartbeatInterval) {
+        this.heartbeatInterval = heartbeatInterval;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Set how many events may be waiting to be sent to a client before it is
+     * sent a new snapshot instead. Applies to clients that connect afterwards.
+     *
+     * @param queueCapacity
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    /**
+     * @return The number of times a client fell behind and was sent a new
+     * snapshot.
+     */
+    public long getResyncCount() {
+        return resyncs.sum();
+    }
+
+    @Override
+    public void handle(HttpExchange he) throws IOException {
+        if (!he.getRequestMethod().equalsIgnoreCase("GET")) {
+            he.getResponseHeaders().set("Allow", "GET");
+            he.sendResponseHeaders(405, -1);
+            he.close();
+            return;
+        }
+        if (closed) {
+            he.sendResponseHeaders(503, -1);
+            he.close();
+            return;
+        }
+
+        he.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+        he.getResponseHeaders().set("Cache-Control", "no-cache");
+        he.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+        he.sendResponseHeaders(200, 0);
+
+        Client client = new Client(Math.max(queueCapacity, 2));
+        synchronized (lock) {
+            // Changes made before the snapshot must not be sent to this client as deltas as well.
+            flushLocked();
+            client.queue.offer(snapshotLocked());
+            clients.add(client);
+        }
+
+        long heartbeatNanos = heartbeatInterval.toNanos();
+        try (OutputStream os = he.getResponseBody()) {
+            while (true) {
+                byte[] event = client.queue.poll(heartbeatNanos, TimeUnit.NANOSECONDS);
+                if (event == END_OF_STREAM) {
+                    break;
+                }
+                os.write(event != null ? event : HEARTBEAT);
+                os.flush();
+            }
+        } catch (IOException ex) {
+            // The client has gone away.
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            clients.remove(client);
+            he.close();
+        }
+    }
+
+    /**
+     * Stop observing the model, and end every client's connection.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        stopObserving();
+        for (Client client : clients) {
+            client.queue.clear();
+            client.queue.offer(END_OF_STREAM);
+        }
+    }
+
+    /**
+     * Called by subclasses, while holding {@link #lock}, after recording a
+     * change, so that a flush is scheduled for the end of the flush window.
+     */
+    protected void changeRecordedLocked() {
+        snapshotEvent = null;
+        if (!flushScheduled && !closed) {
+            flushScheduled = true;
+            FLUSH_SCHEDULER.schedule(this::flush, flushWindow.toNanos(), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * @return True if there are changes waiting to be sent.
+     */
+    protected abstract boolean hasPendingChangesLocked();
+
+    /**
+     * Write the pending changes as a JSON array of operations, and discard
+     * them.
+     *
+     * @param generator
+     * @throws IOException
+     */
+    protected abstract void writePendingChangesLocked(JsonGenerator generator) throws IOException;
+
+    /**
+     * Write the whole model as JSON.
+     *
+     * @param generator
+     * @throws IOException
+     */
+    protected abstract void writeSnapshotLocked(JsonGenerator generator) throws IOException;
+
+    protected abstract void stopObserving();
+
+    /**
+     * Write a value of the model, with the same configuration as the API
+     * handlers' responses.
+     *
+     * @param generator
+     * @param value
+     * @throws IOException
+     */
+    protected static void writeValue(JsonGenerator generator, Object value) throws IOException {
+        CallbackJsonHttpHandler.JSON_WRITER.writeValue(generator, value);
+    }
+
+    private void flush() {
+        synchronized (lock) {
+            flushLocked();
+        }
+    }
+
+    private void flushLocked() {
+        flushScheduled = false;
+        if (!hasPendingChangesLocked()) {
+            return;
+        }
+
+        byte[] event;
+        try {
+            sequence++;
+            event = event("delta", this::writePendingChangesLocked);
+        } catch (IOException ex) {
+            Logging.exception(EventStreamHttpHandler.class, ex);
+            event = null;
+        }
+
+        for (Client client : clients) {
+            // A client whose queue is full has fallen too far behind to catch up from deltas.
+            if (event == null || !client.queue.offer(event)) {
+                client.queue.clear();
+                client.queue.offer(snapshotLocked());
+                resyncs.increment();
+            }
+        }
+    }
+
+    private byte[] snapshotLocked() {
+        if (snapshotEvent == null) {
+            try {
+                snapshotEvent = event("reset", this::writeSnapshotLocked);
+            } catch (IOException ex) {
+                Logging.exception(EventStreamHttpHandler.class, ex);
+                return END_OF_STREAM;
+            }
+        }
+        return snapshotEvent;
+    }
+
+    private interface DataWriter {
+
+        void write(JsonGenerator generator) throws IOException;
+    }
+
+    private byte[] event(String name, DataWriter dataWriter) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+        bos.write(("id: " + sequence + "\nevent: " + name + "\ndata: ").getBytes(StandardCharsets.US_ASCII));
+        // Compact JSON escapes every line break, so the data always fits on the one line.
+        try (JsonGenerator generator = CallbackJsonHttpHandler.JSON_WRITER.getFactory().createGenerator(bos)) {
+            dataWriter.write(generator);
+        }
+        bos.write('\n');
+        bos.write('\n');
+        return bos.toByteArray();
+    }
+}
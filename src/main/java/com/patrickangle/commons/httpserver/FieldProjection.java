@@ -0,0 +1,165 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.httpserver;
+
+import com.fasterxml.jackson.annotation.JsonFilter;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.PropertyWriter;
+import com.fasterxml.jackson.databind.ser.impl.SimpleBeanPropertyFilter;
+import com.fasterxml.jackson.databind.ser.impl.SimpleFilterProvider;
+import com.patrickangle.commons.json.JsonMappers;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compiles a list of property paths, such as "id,items.name,items.price",
+ * into an ObjectWriter that writes only those properties of objects and maps.
+ * A path names a property of the object at its parent path, with arrays
+ * passing through to their elements, and includes everything beneath it.
+ *
+ * Projected writers come from a copy of the response mapper in which every
+ * type carries a property filter, so responses without a projection are
+ * written exactly as before. Each distinct set of paths is compiled once,
+ * and properties are tested against it as they are written, rather than
+ * pruning a serialized tree afterwards. Values written by custom serializers
+ * are not projected.
+ *
+ * @author Patrick Angle
+ */
+public final class FieldProjection {
+
+    public static final int MAXIMUM_CACHED_PROJECTIONS = 256;
+
+    private static final String FILTER_ID = "FieldProjection";
+
+    @JsonFilter(FILTER_ID)
+    private static class ProjectionMixIn {
+    }
+
+    private static final ObjectMapper PROJECTION_MAPPER = JsonMappers.copyMapper(JsonMappers.Profile.HTTP).addMixIn(Object.class, ProjectionMixIn.class);
+
+    // Keyed by both the paths as given and the sorted, de-duplicated paths, so that equivalent lists share one writer.
+    private static final Map<String, ObjectWriter> WRITERS = new ConcurrentHashMap<>();
+
+    private static class Node {
+
+        private final Map<String, Node> children = new HashMap<>();
+        private boolean all = false;
+    }
+
+    private FieldProjection() {
+    }
+
+    /**
+     * @param fields A comma separated list of property paths, or null.
+     * @return A writer for the projection, or the default response writer if
+     * no paths are given.
+     */
+    public static ObjectWriter writerFor(String fields) {
+        if (fields == null) {
+            return CallbackJsonHttpHandler.JSON_WRITER;
+        }
+        // Clients usually send the same list the same way, so the list as given is looked up before it is normalized.
+        ObjectWriter writer = WRITERS.get(fields);
+        if (writer != null) {
+            return writer;
+        }
+
+        TreeSet<String> paths = new TreeSet<>();
+        for (String path : fields.split(",")) {
+            path = path.trim();
+            if (!path.isEmpty()) {
+                paths.add(path);
+            }
+        }
+        if (paths.isEmpty()) {
+            return CallbackJsonHttpHandler.JSON_WRITER;
+        }
+
+        String key = String.join(",", paths);
+        writer = WRITERS.get(key);
+        if (writer == null) {
+            writer = compile(paths);
+        }
+        // Field lists come from clients, so only a bounded number are kept.
+        if (WRITERS.size() < MAXIMUM_CACHED_PROJECTIONS) {
+            WRITERS.putIfAbsent(key, writer);
+            WRITERS.putIfAbsent(fields, writer);
+        }
+        return writer;
+    }
+
+    private static ObjectWriter compile(Iterable<String> paths) {
+        Node root = new Node();
+        for (String path : paths) {
+            Node node = root;
+            for (String name : path.split("\\.")) {
+                if (!name.isEmpty()) {
+                    node = node.children.computeIfAbsent(name, (n) -> new Node());
+                }
+            }
+            node.all = node != root;
+        }
+        return PROJECTION_MAPPER.writer(new SimpleFilterProvider().addFilter(FILTER_ID, new ProjectionFilter(root)));
+    }
+
+    private static class ProjectionFilter extends SimpleBeanPropertyFilter {
+
+        private final Node root;
+
+        ProjectionFilter(Node root) {
+            this.root = root;
+        }
+
+        @Override
+        public void serializeAsField(Object pojo, JsonGenerator jgen, SerializerProvider provider, PropertyWriter writer) throws Exception {
+            if (includes(jgen.getOutputContext(), writer.getName())) {
+                writer.serializeAsField(pojo, jgen, provider);
+            } else if (!jgen.canOmitFields()) {
+                writer.serializeAsOmittedField(pojo, jgen, provider);
+            }
+        }
+
+        private boolean includes(JsonStreamContext context, String name) {
+            Node node = nodeFor(context);
+            return node != null && (node.all || node.children.containsKey(name));
+        }
+
+        /**
+         * @param context
+         * @return The node whose children are the properties to write of the
+         * object being written in a context, or null if none are.
+         */
+        private Node nodeFor(JsonStreamContext context) {
+            if (context == null || context.inRoot()) {
+                return root;
+            }
+            JsonStreamContext parent = context.getParent();
+            Node node = nodeFor(parent);
+            if (node == null || node.all || !parent.inObject()) {
+                return node;
+            }
+            return node.children.get(parent.getCurrentName());
+        }
+    }
+}
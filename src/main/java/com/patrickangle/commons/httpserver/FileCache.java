@@ -0,0 +1,242 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.httpserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, least-recently-used cache of small, frequently requested files.
+ * Entries are validated against the file's modification time and length on
+ * every lookup, and hold a precomputed strong ETag and, where worthwhile, a
+ * pre-gzipped copy of the contents.
+ *
+ * @author Patrick Angle
+ */
+public class FileCache {
+
+    public static final long DEFAULT_MAXIMUM_SIZE = 32L * 1024 * 1024;
+    public static final long DEFAULT_MAXIMUM_ENTRY_SIZE = 1024 * 1024;
+
+    public static class Entry {
+
+        private final long lastModified;
+        private final long length;
+        private final byte[] contents;
+        private final byte[] gzippedContents;
+        private final String eTag;
+
+        Entry(long lastModified, byte[] contents, byte[] gzippedContents, String eTag) {
+            this.lastModified = lastModified;
+            this.length = contents.length;
+            this.contents = contents;
+            this.gzippedContents = gzippedContents;
+            this.eTag = eTag;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public byte[] getContents() {
+            return contents;
+        }
+
+        /**
+         * @return The gzipped contents, or null if compressing the file was not
+         * worthwhile.
+         */
+        public byte[] getGzippedContents() {
+            return gzippedContents;
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+
+        long retainedSize() {
+            return contents.length + (gzippedContents != null ? gzippedContents.length : 0);
+        }
+    }
+
+    protected final long maximumSize;
+    protected final long maximumEntrySize;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long size = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public FileCache() {
+        this(DEFAULT_MAXIMUM_SIZE, DEFAULT_MAXIMUM_ENTRY_SIZE);
+    }
+
+    public FileCache(long maximumSize, long maximumEntrySize) {
+        this.maximumSize = maximumSize;
+        this.maximumEntrySize = Math.min(maximumEntrySize, maximumSize);
+    }
+
+    public boolean isCacheable(long length) {
+        return length <= maximumEntrySize;
+    }
+
+    /**
+     * Look up a cached file, discarding the entry if the file has been
+     * modified since it was cached.
+     *
+     * @param file
+     * @param lastModified The file's current modification time.
+     * @param length The file's current length.
+     * @return The cached entry, or null on a miss.
+     */
+    public Entry get(File file, long lastModified, long length) {
+        String key = file.getPath();
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (entry.lastModified == lastModified && entry.length == length) {
+                    hits.increment();
+                    return entry;
+                }
+                entries.remove(key);
+                size -= entry.retainedSize();
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Read a file into the cache, replacing any existing entry for it.
+     *
+     * @param file
+     * @param lastModified The modification time observed before reading.
+     * @param compression Used to decide whether to keep a gzipped variant, and
+     * at what level to compress it.
+     * @param mimeType
+     * @return The new entry.
+     * @throws IOException
+     */
+    public Entry load(File file, long lastModified, ResponseCompression compression, String mimeType) throws IOException {
+        byte[] contents = java.nio.file.Files.readAllBytes(file.toPath());
+
+        byte[] gzippedContents = null;
+        if (compression != null && compression.isCompressible(mimeType) && contents.length >= compression.getMinimumSize()) {
+            gzippedContents = compression.gzip(contents);
+            if (gzippedContents.length >= contents.length) {
+                gzippedContents = null;
+            }
+        }
+
+        Entry entry = new Entry(lastModified, contents, gzippedContents, strongETag(contents));
+        if (entry.retainedSize() <= maximumSize) {
+            put(file.getPath(), entry);
+        }
+        return entry;
+    }
+
+    public void invalidate(File file) {
+        synchronized (entries) {
+            Entry entry = entries.remove(file.getPath());
+            if (entry != null) {
+                size -= entry.retainedSize();
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            size = 0;
+        }
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public long getSize() {
+        synchronized (entries) {
+            return size;
+        }
+    }
+
+    public int getEntryCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getMaximumSize() {
+        return maximumSize;
+    }
+
+    public long getMaximumEntrySize() {
+        return maximumEntrySize;
+    }
+
+    private void put(String key, Entry entry) {
+        synchronized (entries) {
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                size -= previous.retainedSize();
+            }
+            size += entry.retainedSize();
+
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while (size > maximumSize && iterator.hasNext()) {
+                Map.Entry<String, Entry> eldest = iterator.next();
+                if (eldest.getValue() == entry) {
+                    continue;
+                }
+                iterator.remove();
+                size -= eldest.getValue().retainedSize();
+                evictions.increment();
+            }
+        }
+    }
+
+    public static String strongETag(byte[] contents) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(contents);
+            return "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(digest).substring(0, 22) + "\"";
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is required to be supported by every Java platform.", ex);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.httpserver;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ *
+ * @author Patrick Angle
+ */
+public class HttpDates {
+
+    private static final DateTimeFormatter HTTP_DATE_FORMATTER = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    public static String format(long epochMillis) {
+        return HTTP_DATE_FORMATTER.format(Instant.ofEpochMilli(epochMillis));
+    }
+
+    /**
+     * Parse an IMF-fixdate, as used in Last-Modified and If-Modified-Since.
+     *
+     * @param httpDate
+     * @return The date in epoch milliseconds, or -1 if it could not be parsed.
+     */
+    public static long parse(String httpDate) {
+        if (httpDate == null) {
+            return -1;
+        }
+        try {
+            return ZonedDateTime.parse(httpDate.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * HTTP dates only have a resolution of one second, so file modification
+     * times must be truncated before being compared against them.
+     *
+     * @param epochMillis
+     * @return
+     */
+    public static long truncateToSeconds(long epochMillis) {
+        return epochMillis - Math.floorMod(epochMillis, 1000L);
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.httpserver;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * A registry of {@link RouteMetrics}, shared by the handlers whose requests it
+ * records. Routes are keyed by their pattern or context path, never by the
+ * raw request path, so the number of routes stays bounded.
+ *
+ * @author Patrick Angle
+ */
+public class HttpMetrics {
+
+    // Non-capturing, so looking up a route never allocates.
+    private static final Function<String, RouteMetrics> NEW_ROUTE = RouteMetrics::new;
+
+    private final Map<String, RouteMetrics> routes = new ConcurrentHashMap<>();
+
+    public RouteMetrics route(String route) {
+        RouteMetrics metrics = routes.get(route);
+        if (metrics == null) {
+            metrics = routes.computeIfAbsent(route, NEW_ROUTE);
+        }
+        return metrics;
+    }
+
+    public Map<String, RouteMetrics> getRoutes() {
+        return Collections.unmodifiableMap(routes);
+    }
+
+    public void clear() {
+        routes.clear();
+    }
+
+    /**
+     * @return The metrics of every route, sorted by route, in a form that can
+     * be serialized as JSON.
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new TreeMap<>();
+        for (RouteMetrics metrics : routes.values()) {
+            snapshot.put(metrics.getRoute(), metrics.snapshot());
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return The metrics of every route in the Prometheus text exposition
+     * format.
+     */
+    public String toPrometheusText() {
+        Map<String, RouteMetrics> sorted = new TreeMap<>(routes);
+        StringBuilder sb = new StringBuilder();
+
+        appendType(sb, "http_requests_total", "counter");
+        for (RouteMetrics metrics : sorted.values()) {
+            appendSample(sb, "http_requests_total", metrics, null, metrics.getRequests());
+        }
+        appendType(sb, "http_request_errors_total", "counter");
+        for (RouteMetrics metrics : sorted.values()) {
+            appendSample(sb, "http_request_errors_total", metrics, null, metrics.getErrors());
+        }
+        appendType(sb, "http_responses_total", "counter");
+        for (RouteMetrics metrics : sorted.values()) {
+            for (int statusClass = 1; statusClass <= 5; statusClass++) {
+                appendSample(sb, "http_responses_total", metrics, "code=\"" + statusClass + "xx\"", metrics.getStatusClassCount(statusClass));
+            }
+        }
+        appendType(sb, "http_request_bytes_total", "counter");
+        for (RouteMetrics metrics : sorted.values()) {
+            appendSample(sb, "http_request_bytes_total", metrics, null, metrics.getBytesIn());
+        }
+        appendType(sb, "http_response_bytes_total", "counter");
+        for (RouteMetrics metrics : sorted.values()) {
+            appendSample(sb, "http_response_bytes_total", metrics, null, metrics.getBytesOut());
+        }
+        appendType(sb, "http_response_body_bytes_total", "counter");
+        for (RouteMetrics metrics : sorted.values()) {
+            appendSample(sb, "http_response_body_bytes_total", metrics, null, metrics.getBodyBytes());
+        }
+        appendType(sb, "http_serialization_seconds_total", "counter");
+        for (RouteMetrics metrics : sorted.values()) {
+            appendSample(sb, "http_serialization_seconds_total", metrics, null, metrics.getSerializationNanos() / 1e9);
+        }
+        appendType(sb, "http_write_seconds_total", "counter");
+        for (RouteMetrics metrics : sorted.values()) {
+            appendSample(sb, "http_write_seconds_total", metrics, null, metrics.getWriteNanos() / 1e9);
+        }
+        appendType(sb, "http_request_duration_seconds", "summary");
+        for (RouteMetrics metrics : sorted.values()) {
+            LatencyHistogram latency = metrics.getLatency();
+            appendSample(sb, "http_request_duration_seconds", metrics, "quantile=\"0.5\"", latency.getPercentile(0.5) / 1e9);
+            appendSample(sb, "http_request_duration_seconds", metrics, "quantile=\"0.9\"", latency.getPercentile(0.9) / 1e9);
+            appendSample(sb, "http_request_duration_seconds", metrics, "quantile=\"0.99\"", latency.getPercentile(0.99) / 1e9);
+            appendSample(sb, "http_request_duration_seconds_sum", metrics, null, latency.getSum() / 1e9);
+            appendSample(sb, "http_request_duration_seconds_count", metrics, null, latency.getCount());
+        }
+        appendType(sb, "http_request_duration_seconds_max", "gauge");
+        for (RouteMetrics metrics : sorted.values()) {
+            appendSample(sb, "http_request_duration_seconds_max", metrics, null, metrics.getLatency().getMax() / 1e9);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param he
+     * @return The request's Content-Length, or 0 if it is absent or chunked.
+     */
+    public static long requestContentLength(HttpExchange he) {
+        String contentLength = he.getRequestHeaders().getFirst("Content-Length");
+        if (contentLength == null) {
+            return 0;
+        }
+        try {
+            return Math.max(Long.parseLong(contentLength.trim()), 0);
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    private static void appendType(StringBuilder sb, String name, String type) {
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void appendSample(StringBuilder sb, String name, RouteMetrics metrics, String extraLabel, Object value) {
+        sb.append(name).append("{route=\"");
+        String route = metrics.getRoute();
+        for (int i = 0; i < route.length(); i++) {
+            char c = route.charAt(i);
+            if (c == '\\' || c == '"') {
+                sb.append('\\').append(c);
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+        if (extraLabel != null) {
+            sb.append(',').append(extraLabel);
+        }
+        sb.append("} ").append(value).append('\n');
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.httpserver;
+
+import com.patrickangle.commons.logging.Logging;
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds an HttpServer with its handlers, filters and executor configured,
+ * so that exchanges are not left to run one at a time on the server's
+ * dispatcher thread.
+ *
+ * @author Patrick Angle
+ */
+public class HttpServerBuilder {
+
+    public static final Duration DEFAULT_DRAIN_TIMEOUT = Duration.ofSeconds(10);
+
+    public static enum ExecutorStrategy {
+        // A new virtual thread per exchange. Requires Java 21; earlier runtimes fall back to an unbounded cached thread pool.
+        VirtualThreadPerRequest,
+        // A work-stealing pool of a fixed parallelism.
+        WorkStealing,
+        // A fixed pool with a bounded queue; when the queue is full, the dispatcher thread runs the exchange itself, slowing acceptance of new connections.
+        CallerRuns,
+        // Exchanges run on the dispatcher thread, one at a time, as with an unconfigured HttpServer.
+        Dispatcher
+    }
+
+    private static class ContextRegistration {
+
+        private final String path;
+        private final HttpHandler handler;
+        private final Authenticator authenticator;
+        private final List<Filter> filters;
+
+        ContextRegistration(String path, HttpHandler handler, Authenticator authenticator, List<Filter> filters) {
+            this.path = path;
+            this.handler = handler;
+            this.authenticator = authenticator;
+            this.filters = filters;
+        }
+    }
+
+    private final InetSocketAddress address;
+    private int backlog = 0;
+    private ExecutorStrategy executorStrategy = ExecutorStrategy.WorkStealing;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int queueCapacity = 1024;
+    private ExecutorService executor = null;
+    private Duration drainTimeout = DEFAULT_DRAIN_TIMEOUT;
+    private final List<ContextRegistration> contexts = new ArrayList<>();
+
+    public HttpServerBuilder(int port) {
+        this(new InetSocketAddress(port));
+    }
+
+    public HttpServerBuilder(InetSocketAddress address) {
+        this.address = address;
+    }
+
+    /**
+     * Set the maximum number of queued incoming connections. Zero uses the
+     * system default.
+     *
+     * @param backlog
+     * @return
+     */
+    public HttpServerBuilder backlog(int backlog) {
+        this.backlog = backlog;
+        return this;
+    }
+
+    public HttpServerBuilder virtualThreadPerRequest() {
+        this.executorStrategy = ExecutorStrategy.VirtualThreadPerRequest;
+        this.executor = null;
+        return this;
+    }
+
+    public HttpServerBuilder workStealing(int parallelism) {
+        this.executorStrategy = ExecutorStrategy.WorkStealing;
+        this.parallelism = parallelism;
+        this.executor = null;
+        return this;
+    }
+
+    public HttpServerBuilder callerRuns(int threads, int queueCapacity) {
+        this.executorStrategy = ExecutorStrategy.CallerRuns;
+        this.parallelism = threads;
+        this.queueCapacity = queueCapacity;
+        this.executor = null;
+        return this;
+    }
+
+    public HttpServerBuilder dispatcherThread() {
+        this.executorStrategy = ExecutorStrategy.Dispatcher;
+        this.executor = null;
+        return this;
+    }
+
+    /**
+     * Use an existing executor, which will be shut down when the server is
+     * stopped.
+     *
+     * @param executor
+     * @return
+     */
+    public HttpServerBuilder executor(ExecutorService executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    public HttpServerBuilder drainTimeout(Duration drainTimeout) {
+        this.drainTimeout = drainTimeout;
+        return this;
+    }
+
+    public HttpServerBuilder context(String path, HttpHandler handler, Filter... filters) {
+        return context(path, handler, null, filters);
+    }
+
+    public HttpServerBuilder context(String path, HttpHandler handler, Authenticator authenticator, Filter... filters) {
+        contexts.add(new ContextRegistration(path, handler, authenticator, Arrays.asList(filters)));
+        return this;
+    }
+
+    public ManagedHttpServer build() throws IOException {
+        HttpServer server = HttpServer.create(address, backlog);
+
+        for (ContextRegistration registration : contexts) {
+            HttpContext context = server.createContext(registration.path, registration.handler);
+            Authenticator authenticator = registration.authenticator;
+            if (authenticator != null) {
+                // Filters run before the authenticator, so admission control needs its help to rate limit by principal.
+                for (Filter filter : registration.filters) {
+                    if (filter instanceof AdmissionControlFilter) {
+                        authenticator = ((AdmissionControlFilter) filter).authenticator(authenticator);
+                    }
+                }
+                context.setAuthenticator(authenticator);
+            }
+            context.getFilters().addAll(registration.filters);
+        }
+
+        ExecutorService serverExecutor = executor != null ? executor : createExecutor();
+        if (serverExecutor != null) {
+            // Lets filters such as AdmissionControlFilter tell how long each exchange waited for a thread.
+            serverExecutor = new QueueTimeExecutor(serverExecutor);
+        }
+        server.setExecutor(serverExecutor);
+
+        return new ManagedHttpServer(server, serverExecutor, drainTimeout);
+    }
+
+    public ManagedHttpServer start() throws IOException {
+        ManagedHttpServer server = build();
+        server.start();
+        return server;
+    }
+
+    private ExecutorService createExecutor() {
+        switch (executorStrategy) {
+            case VirtualThreadPerRequest:
+                return newVirtualThreadPerTaskExecutor();
+            case WorkStealing:
+                return Executors.newWorkStealingPool(parallelism);
+            case CallerRuns:
+                return new ThreadPoolExecutor(parallelism, parallelism, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity), namedThreadFactory("HttpServer-worker"), new ThreadPoolExecutor.CallerRunsPolicy());
+            case Dispatcher:
+            default:
+                return null;
+        }
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        // Resolved reflectively so the library still runs on runtimes older than Java 21.
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException ex) {
+            Logging.warning(HttpServerBuilder.class, "Virtual threads are not available on this runtime; falling back to a cached thread pool.");
+            return Executors.newCachedThreadPool(namedThreadFactory("HttpServer-worker"));
+        }
+    }
+
+    private static ThreadFactory namedThreadFactory(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return (runnable) -> {
+            Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
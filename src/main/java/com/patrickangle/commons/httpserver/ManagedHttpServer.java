@@ -0,0 +1,89 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.httpserver;
+
+import com.sun.net.httpserver.HttpServer;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An HttpServer together with the executor it dispatches exchanges to, as
+ * created by {@link HttpServerBuilder}.
+ *
+ * @author Patrick Angle
+ */
+public class ManagedHttpServer {
+
+    protected final HttpServer server;
+    protected final ExecutorService executor;
+    protected final Duration drainTimeout;
+
+    ManagedHttpServer(HttpServer server, ExecutorService executor, Duration drainTimeout) {
+        this.server = server;
+        this.executor = executor;
+        this.drainTimeout = drainTimeout;
+    }
+
+    public HttpServer getServer() {
+        return server;
+    }
+
+    /**
+     * @return The executor exchanges are dispatched to, or null if they run on
+     * the server's dispatcher thread.
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    public Duration getDrainTimeout() {
+        return drainTimeout;
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stop accepting connections, then wait up to the drain timeout for
+     * in-flight exchanges to complete before shutting down the executor.
+     */
+    public void stop() {
+        stop(drainTimeout);
+    }
+
+    public void stop(Duration drainTimeout) {
+        long deadline = System.nanoTime() + drainTimeout.toNanos();
+
+        // HttpServer only supports a delay in whole seconds.
+        server.stop((int) Math.min(Integer.MAX_VALUE, (drainTimeout.toMillis() + 999) / 1000));
+
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || !executor.awaitTermination(remaining, TimeUnit.NANOSECONDS)) {
+                    executor.shutdownNow();
+                }
+            } catch (InterruptedException ex) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
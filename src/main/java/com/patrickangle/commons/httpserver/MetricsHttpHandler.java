@@ -0,0 +1,68 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.httpserver;
+
+import com.patrickangle.commons.util.QueryParameters;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Serves the contents of an {@link HttpMetrics} registry as JSON, or in the
+ * Prometheus text format when requested with ?format=prometheus.
+ *
+ * @author Patrick Angle
+ */
+public class MetricsHttpHandler implements HttpHandler {
+
+    protected final HttpMetrics metrics;
+    protected ResponseCompression compression = new ResponseCompression();
+
+    public MetricsHttpHandler(HttpMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public HttpMetrics getMetrics() {
+        return metrics;
+    }
+
+    public ResponseCompression getCompression() {
+        return compression;
+    }
+
+    public void setCompression(ResponseCompression compression) {
+        this.compression = compression;
+    }
+
+    @Override
+    public void handle(HttpExchange he) throws IOException {
+        Map<String, String> params = QueryParameters.parse(he.getRequestURI().getRawQuery());
+
+        byte[] response;
+        if ("prometheus".equals(params.get("format"))) {
+            he.getResponseHeaders().add("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            response = metrics.toPrometheusText().getBytes(StandardCharsets.UTF_8);
+        } else {
+            he.getResponseHeaders().add("Content-Type", "application/json");
+            response = CallbackJsonHttpHandler.JSON_WRITER.writeValueAsBytes(metrics.snapshot());
+        }
+        he.getResponseHeaders().add("Cache-Control", "no-store");
+        compression.sendResponse(he, 200, response);
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.httpserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reads the parts of a multipart body one after another, in a fixed amount of
+ * memory, however large the parts are.
+ *
+ * @author Patrick Angle
+ */
+final class MultipartStream {
+
+    private static final int MAXIMUM_HEADER_SIZE = 8192;
+
+    private final InputStream in;
+    // The delimiter that ends every part: CRLF, two dashes and the boundary.
+    private final byte[] delimiter;
+    private final byte[] buffer;
+    private int head = 0;
+    private int tail = 0;
+
+    private boolean partEnded = true;
+    private boolean finished = false;
+    private final Map<String, String> headers = new HashMap<>();
+
+    /**
+     * @param in
+     * @param boundary
+     * @param buffer A buffer to read through, which must be larger than
+     * twice the boundary.
+     */
+    MultipartStream(InputStream in, String boundary, byte[] buffer) {
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        if (buffer.length < delimiter.length * 2 + 4) {
+            throw new IllegalArgumentException("The buffer is too small for the boundary.");
+        }
+        this.buffer = buffer;
+        // The first delimiter has no preceding line break, so one is supplied, making it match like every other.
+        buffer[0] = '\r';
+        buffer[1] = '\n';
+        tail = 2;
+        partEnded = false;
+    }
+
+    /**
+     * @param contentType
+     * @return The boundary of a multipart content type, or null if there is
+     * none.
+     */
+    static String boundary(String contentType) {
+        if (contentType == null || !contentType.toLowerCase(Locale.ROOT).startsWith("multipart/")) {
+            return null;
+        }
+        for (String parameter : contentType.split(";")) {
+            parameter = parameter.trim();
+            if (parameter.regionMatches(true, 0, "boundary=", 0, 9)) {
+                String boundary = parameter.substring(9).trim();
+                if (boundary.length() >= 2 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+                    boundary = boundary.substring(1, boundary.length() - 1);
+                }
+                return boundary.isEmpty() || boundary.length() > 70 ? null : boundary;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param contentDisposition
+     * @param name
+     * @return A parameter of a Content-Disposition header, or null if it is
+     * absent.
+     */
+    static String dispositionParameter(String contentDisposition, String name) {
+        if (contentDisposition == null) {
+            return null;
+        }
+        for (String parameter : contentDisposition.split(";")) {
+            parameter = parameter.trim();
+            int equals = parameter.indexOf('=');
+            if (equals > 0 && parameter.substring(0, equals).trim().equalsIgnoreCase(name)) {
+                String value = parameter.substring(equals + 1).trim();
+                if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                    value = value.substring(1, value.length() - 1);
+                }
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Skip the rest of the current part, and read the headers of the next.
+     *
+     * @return False if there are no more parts.
+     * @throws IOException
+     */
+    boolean nextPart() throws IOException {
+        if (finished) {
+            return false;
+        }
+        while (!partEnded) {
+            skipPart();
+        }
+
+        // The delimiter is followed by two dashes after the last part, or a line break before the next.
+        if (!ensure(2)) {
+            throw new IOException("The multipart body ended without a closing delimiter.");
+        }
+        if (buffer[head] == '-' && buffer[head + 1] == '-') {
+            finished = true;
+            return false;
+        }
+        readHeaders();
+        partEnded = false;
+        return true;
+    }
+
+    /**
+     * @param name The header name, in lower case.
+     * @return A header of the current part.
+     */
+    String header(String name) {
+        return headers.get(name);
+    }
+
+    /**
+     * Read from the body of the current part.
+     *
+     * @param b
+     * @param off
+     * @param len
+     * @return The number of bytes read, or -1 at the end of the part.
+     * @throws IOException
+     */
+    int read(byte[] b, int off, int len) throws IOException {
+        if (partEnded) {
+            return -1;
+        }
+        while (true) {
+            int match = indexOfDelimiter();
+            int available;
+            if (match >= 0) {
+                available = match - head;
+                if (available == 0) {
+                    head = match + delimiter.length;
+                    partEnded = true;
+                    return -1;
+                }
+            } else {
+                // A delimiter may begin in the last bytes read, so they are held back until more arrive.
+                available = tail - head - (delimiter.length - 1);
+            }
+            if (available > 0) {
+                int n = Math.min(len, available);
+                System.arraycopy(buffer, head, b, off, n);
+                head += n;
+                return n;
+            }
+            if (!fill()) {
+                throw new IOException("The multipart body ended within a part.");
+            }
+        }
+    }
+
+    private void skipPart() throws IOException {
+        int match = indexOfDelimiter();
+        if (match >= 0) {
+            head = match + delimiter.length;
+            partEnded = true;
+        } else {
+            head = Math.max(head, tail - (delimiter.length - 1));
+            if (!fill()) {
+                throw new IOException("The multipart body ended within a part.");
+            }
+        }
+    }
+
+    private void readHeaders() throws IOException {
+        headers.clear();
+        int headerSize = 0;
+        boolean first = true;
+        while (true) {
+            String line = readLine();
+            headerSize += line.length() + 2;
+            if (headerSize > MAXIMUM_HEADER_SIZE) {
+                throw new HttpStatusException(400, "The headers of a multipart part are too large.");
+            }
+            if (first) {
+                // Whatever follows the delimiter on its own line is transport padding.
+                first = false;
+                continue;
+            }
+            if (line.isEmpty()) {
+                return;
+            }
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+            }
+        }
+    }
+
+    private String readLine() throws IOException {
+        int start = head;
+        int scanned = head;
+        while (true) {
+            for (int i = scanned; i + 1 < tail; i++) {
+                if (buffer[i] == '\r' && buffer[i + 1] == '\n') {
+                    // Header values are ISO-8859-1, though UTF-8 file names are commonly sent as-is.
+                    String line = new String(buffer, start, i - start, StandardCharsets.UTF_8);
+                    head = i + 2;
+                    return line;
+                }
+            }
+            scanned = Math.max(start, tail - 1);
+            int shift = head;
+            if (!fill()) {
+                throw new IOException("The multipart body ended within the headers of a part.");
+            }
+            shift -= head;
+            start -= shift;
+            scanned -= shift;
+            if (tail - start >= buffer.length) {
+                throw new HttpStatusException(400, "The headers of a multipart part are too large.");
+            }
+        }
+    }
+
+    private boolean ensure(int count) throws IOException {
+        while (tail - head < count) {
+            if (!fill()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Move the unread bytes to the start of the buffer, and read more after
+     * them.
+     *
+     * @return False at the end of the stream.
+     * @throws IOException
+     */
+    private boolean fill() throws IOException {
+        if (head > 0) {
+            System.arraycopy(buffer, head, buffer, 0, tail - head);
+            tail -= head;
+            head = 0;
+        }
+        if (tail == buffer.length) {
+            return true;
+        }
+        int n = in.read(buffer, tail, buffer.length - tail);
+        if (n < 0) {
+            return false;
+        }
+        tail += n;
+        return true;
+    }
+
+    private int indexOfDelimiter() {
+        byte first = delimiter[0];
+        int last = tail - delimiter.length;
+        outer:
+        for (int i = head; i <= last; i++) {
+            if (buffer[i] != first) {
+                continue;
+            }
+            for (int j = 1; j < delimiter.length; j++) {
+                if (buffer[i + j] != delimiter[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
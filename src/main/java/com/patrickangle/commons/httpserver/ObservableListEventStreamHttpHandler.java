@@ -0,0 +1,224 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.httpserver;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.patrickangle.commons.observable.collections.ObservableList;
+import com.patrickangle.commons.observable.collections.ObservableListListener;
+import java.beans.PropertyChangeEvent;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streams the changes to an {@link ObservableList} as Server-Sent Events. The
+ * "reset" event holds the list as a JSON array, and each "delta" event an
+ * array of operations to apply in order:
+ *
+ * {"op":"add","index":i,"values":[...]}, {"op":"remove","index":i,"count":n},
+ * {"op":"set","index":i,"value":v} and {"op":"reset","values":[...]}.
+ *
+ * Repeated replacements and property changes of the same element within a
+ * flush window are sent once, with the element's state when it is sent. A
+ * window with more changes than {@link #getMaximumPendingOperations()}, or
+ * with changes at non-consecutive indexes, is sent as a reset instead.
+ *
+ * The snapshot is taken by iterating the list, so the list must not be
+ * modified concurrently while a client connects.
+ *
+ * @author Patrick Angle
+ * @param <E>
+ */
+public class ObservableListEventStreamHttpHandler<E> extends EventStreamHttpHandler {
+
+    public static final int DEFAULT_MAXIMUM_PENDING_OPERATIONS = 1024;
+
+    private static class Operation<E> {
+
+        private final String op;
+        private final int index;
+        private final int count;
+        private List<E> values;
+        private E value;
+
+        Operation(String op, int index, int count, List<E> values, E value) {
+            this.op = op;
+            this.index = index;
+            this.count = count;
+            this.values = values;
+            this.value = value;
+        }
+    }
+
+    protected final ObservableList<E> list;
+    protected int maximumPendingOperations = DEFAULT_MAXIMUM_PENDING_OPERATIONS;
+
+    private final List<Operation<E>> pending = new ArrayList<>();
+    // The set operations recorded since the last add or remove, by index, so that later ones can replace them.
+    private final Map<Integer, Operation<E>> pendingSets = new HashMap<>();
+    private boolean resetPending = false;
+
+    private final ObservableListListener<E> listener = new ObservableListListener<E>() {
+        @Override
+        public void elementsAdded(ObservableList<E> list, int startIndex, int length, List<E> newElements) {
+            recordStructuralChange(startIndex, new Operation<>("add", startIndex, length, new ArrayList<>(newElements), null));
+        }
+
+        @Override
+        public void elementsRemoved(ObservableList<E> list, int startIndex, int length, List<E> oldElements) {
+            recordStructuralChange(startIndex, new Operation<>("remove", startIndex, length, null, null));
+        }
+
+        @Override
+        public void elementReplaced(ObservableList<E> list, int index, E oldElement, E newElement) {
+            recordSet(index, newElement);
+        }
+
+        @Override
+        public void elementPropertyChanged(ObservableList<E> list, int index, E element, PropertyChangeEvent proeprtyChangeEvent) {
+            recordSet(index, element);
+        }
+    };
+
+    public ObservableListEventStreamHttpHandler(ObservableList<E> list) {
+        this.list = list;
+        list.addObservableListListener(listener);
+    }
+
+    public ObservableList<E> getList() {
+        return list;
+    }
+
+    public int getMaximumPendingOperations() {
+        return maximumPendingOperations;
+    }
+
+    public void setMaximumPendingOperations(int maximumPendingOperations) {
+        this.maximumPendingOperations = maximumPendingOperations;
+    }
+
+    private void recordStructuralChange(int startIndex, Operation<E> operation) {
+        synchronized (lock) {
+            pendingSets.clear();
+            // Changes at unknown positions can only be conveyed by a new snapshot.
+            if (startIndex == ObservableListListener.NON_CONSECUTIVE_INDEXES || startIndex < 0) {
+                resetLocked();
+            } else {
+                addLocked(operation);
+            }
+            changeRecordedLocked();
+        }
+    }
+
+    private void recordSet(int index, E element) {
+        synchronized (lock) {
+            if (index < 0) {
+                resetLocked();
+            } else {
+                Operation<E> existing = pendingSets.get(index);
+                if (existing != null) {
+                    existing.value = element;
+                } else {
+                    Operation<E> operation = new Operation<>("set", index, 1, null, element);
+                    if (addLocked(operation)) {
+                        pendingSets.put(index, operation);
+                    }
+                }
+            }
+            changeRecordedLocked();
+        }
+    }
+
+    private boolean addLocked(Operation<E> operation) {
+        if (resetPending) {
+            return false;
+        }
+        if (pending.size() >= maximumPendingOperations) {
+            resetLocked();
+            return false;
+        }
+        pending.add(operation);
+        return true;
+    }
+
+    private void resetLocked() {
+        resetPending = true;
+        pending.clear();
+        pendingSets.clear();
+    }
+
+    @Override
+    protected boolean hasPendingChangesLocked() {
+        return resetPending || !pending.isEmpty();
+    }
+
+    @Override
+    protected void writePendingChangesLocked(JsonGenerator generator) throws IOException {
+        generator.writeStartArray();
+        if (resetPending) {
+            generator.writeStartObject();
+            generator.writeStringField("op", "reset");
+            generator.writeFieldName("values");
+            writeSnapshotLocked(generator);
+            generator.writeEndObject();
+        } else {
+            for (Operation<E> operation : pending) {
+                generator.writeStartObject();
+                generator.writeStringField("op", operation.op);
+                generator.writeNumberField("index", operation.index);
+                switch (operation.op) {
+                    case "add":
+                        generator.writeFieldName("values");
+                        generator.writeStartArray();
+                        for (E value : operation.values) {
+                            writeValue(generator, value);
+                        }
+                        generator.writeEndArray();
+                        break;
+                    case "remove":
+                        generator.writeNumberField("count", operation.count);
+                        break;
+                    default:
+                        generator.writeFieldName("value");
+                        writeValue(generator, operation.value);
+                }
+                generator.writeEndObject();
+            }
+        }
+        generator.writeEndArray();
+
+        pending.clear();
+        pendingSets.clear();
+        resetPending = false;
+    }
+
+    @Override
+    protected void writeSnapshotLocked(JsonGenerator generator) throws IOException {
+        generator.writeStartArray();
+        for (E value : list) {
+            writeValue(generator, value);
+        }
+        generator.writeEndArray();
+    }
+
+    @Override
+    protected void stopObserving() {
+        list.removeObservableListListener(listener);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.httpserver;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.patrickangle.commons.observable.collections.ObservableMap;
+import com.patrickangle.commons.observable.collections.ObservableMapListener;
+import java.beans.PropertyChangeEvent;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Streams the changes to an {@link ObservableMap} as Server-Sent Events. The
+ * "reset" event holds the map as a JSON array of {"key":k,"value":v} entries,
+ * and each "delta" event an array of operations to apply in order:
+ * {"op":"put","key":k,"value":v} and {"op":"remove","key":k}.
+ *
+ * Only the last change to each key within a flush window is sent, with the
+ * value's state when it is sent.
+ *
+ * @author Patrick Angle
+ * @param <K>
+ * @param <V>
+ */
+public class ObservableMapEventStreamHttpHandler<K, V> extends EventStreamHttpHandler {
+
+    // Marks a key whose latest pending change is its removal.
+    private static final Object REMOVED = new Object();
+
+    protected final ObservableMap<K, V> map;
+
+    // The latest pending value of each changed key, in the order the keys first changed.
+    private final Map<K, Object> pending = new LinkedHashMap<>();
+
+    private final ObservableMapListener<K, V> listener = new ObservableMapListener<K, V>() {
+        @Override
+        public void entryAdded(ObservableMap<K, V> map, K key, V value) {
+            record(key, value);
+        }
+
+        @Override
+        public void entryRemoved(ObservableMap<K, V> map, K key, V value) {
+            record(key, REMOVED);
+        }
+
+        @Override
+        public void entryReplaced(ObservableMap<K, V> map, K key, V oldValue, V newValue) {
+            record(key, newValue);
+        }
+
+        @Override
+        public void entryPropertyChanged(ObservableMap<K, V> map, K key, V value, PropertyChangeEvent propertyChangeEvent) {
+            record(key, value);
+        }
+    };
+
+    public ObservableMapEventStreamHttpHandler(ObservableMap<K, V> map) {
+        this.map = map;
+        map.addObservableMapListener(listener);
+    }
+
+    public ObservableMap<K, V> getMap() {
+        return map;
+    }
+
+    private void record(K key, Object value) {
+        synchronized (lock) {
+            pending.put(key, value);
+            changeRecordedLocked();
+        }
+    }
+
+    @Override
+    protected boolean hasPendingChangesLocked() {
+        return !pending.isEmpty();
+    }
+
+    @Override
+    protected void writePendingChangesLocked(JsonGenerator generator) throws IOException {
+        generator.writeStartArray();
+        for (Map.Entry<K, Object> change : pending.entrySet()) {
+            generator.writeStartObject();
+            if (change.getValue() == REMOVED) {
+                generator.writeStringField("op", "remove");
+                generator.writeFieldName("key");
+                writeValue(generator, change.getKey());
+            } else {
+                generator.writeStringField("op", "put");
+                generator.writeFieldName("key");
+                writeValue(generator, change.getKey());
+                generator.writeFieldName("value");
+                writeValue(generator, change.getValue());
+            }
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+        pending.clear();
+    }
+
+    @Override
+    protected void writeSnapshotLocked(JsonGenerator generator) throws IOException {
+        generator.writeStartArray();
+        for (Map.Entry<K, V> entry : map.entrySet()) {
+            generator.writeStartObject();
+            generator.writeFieldName("key");
+            writeValue(generator, entry.getKey());
+            generator.writeFieldName("value");
+            writeValue(generator, entry.getValue());
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+    }
+
+    @Override
+    protected void stopObserving() {
+        map.removeObservableMapListener(listener);
+    }
+}
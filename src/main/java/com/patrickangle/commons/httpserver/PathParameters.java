@@ -0,0 +1,99 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.httpserver;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The values captured by the {param} and wildcard segments of a matched route.
+ * Captures are recorded as offsets into the request path, and are only turned
+ * into Strings when read.
+ *
+ * Instances are reused between requests on the same thread, so they are only
+ * valid for the duration of the handler call they are passed to. Use
+ * {@link #toMap()} to retain the values beyond it.
+ *
+ * @author Patrick Angle
+ */
+public class PathParameters {
+
+    public static final int MAXIMUM_PARAMETERS = 32;
+
+    private final String[] names = new String[MAXIMUM_PARAMETERS];
+    private final int[] starts = new int[MAXIMUM_PARAMETERS];
+    private final int[] ends = new int[MAXIMUM_PARAMETERS];
+    private String path;
+    private int size = 0;
+
+    public int size() {
+        return size;
+    }
+
+    public String getName(int index) {
+        checkIndex(index);
+        return names[index];
+    }
+
+    public String getValue(int index) {
+        checkIndex(index);
+        return path.substring(starts[index], ends[index]);
+    }
+
+    /**
+     * @param name
+     * @return The captured value, or null if the route has no such parameter.
+     */
+    public String get(String name) {
+        for (int i = 0; i < size; i++) {
+            if (names[i].equals(name)) {
+                return path.substring(starts[i], ends[i]);
+            }
+        }
+        return null;
+    }
+
+    public Map<String, String> toMap() {
+        Map<String, String> map = new HashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            map.put(names[i], getValue(i));
+        }
+        return map;
+    }
+
+    void reset(String path) {
+        this.path = path;
+        this.size = 0;
+    }
+
+    void truncate(int size) {
+        this.size = size;
+    }
+
+    void add(String name, int start, int end) {
+        names[size] = name;
+        starts[size] = start;
+        ends[size] = end;
+        size++;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+}
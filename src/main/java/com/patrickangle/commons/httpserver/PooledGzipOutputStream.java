@@ -0,0 +1,131 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.httpserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * A gzip stream equivalent to GZIPOutputStream, except that its Deflater is
+ * borrowed from a per-thread pool instead of being allocated (and its native
+ * memory reserved) for every response.
+ *
+ * @author Patrick Angle
+ */
+class PooledGzipOutputStream extends DeflaterOutputStream {
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final byte[] HEADER = new byte[]{
+        (byte) GZIP_MAGIC, (byte) (GZIP_MAGIC >> 8), Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0
+    };
+
+    // One idle Deflater per compression level (-1 through 9) per thread.
+    private static final ThreadLocal<Deflater[]> IDLE_DEFLATERS = ThreadLocal.withInitial(() -> {
+        return new Deflater[11];
+    });
+
+    private final int level;
+    private final CRC32 crc = new CRC32();
+    private boolean finished = false;
+    private boolean closed = false;
+    private long compressedSize = HEADER.length;
+
+    PooledGzipOutputStream(OutputStream out, int level, int bufferSize) throws IOException {
+        super(out, borrowDeflater(level), bufferSize);
+        this.level = level;
+        out.write(HEADER);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        super.write(b, off, len);
+        crc.update(b, off, len);
+    }
+
+    /**
+     * @return The number of bytes written so far, including the gzip header
+     * and, once finished, the trailer.
+     */
+    long getCompressedSize() {
+        return finished ? compressedSize : compressedSize + def.getBytesWritten();
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        def.finish();
+        while (!def.finished()) {
+            deflate();
+        }
+        writeTrailer();
+        compressedSize += def.getBytesWritten() + 8;
+        finished = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            finish();
+        } finally {
+            returnDeflater(level, def);
+            out.close();
+        }
+    }
+
+    private void writeTrailer() throws IOException {
+        byte[] trailer = new byte[8];
+        writeInt((int) crc.getValue(), trailer, 0);
+        writeInt((int) def.getBytesRead(), trailer, 4);
+        out.write(trailer);
+    }
+
+    private static void writeInt(int i, byte[] buf, int offset) {
+        buf[offset] = (byte) i;
+        buf[offset + 1] = (byte) (i >> 8);
+        buf[offset + 2] = (byte) (i >> 16);
+        buf[offset + 3] = (byte) (i >> 24);
+    }
+
+    private static Deflater borrowDeflater(int level) {
+        Deflater[] idle = IDLE_DEFLATERS.get();
+        Deflater deflater = idle[level + 1];
+        if (deflater == null) {
+            return new Deflater(level, true);
+        }
+        idle[level + 1] = null;
+        deflater.reset();
+        return deflater;
+    }
+
+    private static void returnDeflater(int level, Deflater deflater) {
+        Deflater[] idle = IDLE_DEFLATERS.get();
+        if (idle[level + 1] == null) {
+            idle[level + 1] = deflater;
+        } else {
+            deflater.end();
+        }
+    }
+}
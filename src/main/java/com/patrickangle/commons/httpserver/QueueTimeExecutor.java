@@ -0,0 +1,92 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.httpserver;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wraps the executor an HttpServer dispatches exchanges to, recording when
+ * each exchange was queued so that filters can tell how long it waited for a
+ * thread.
+ *
+ * @author Patrick Angle
+ */
+final class QueueTimeExecutor extends AbstractExecutorService {
+
+    private static final long UNKNOWN = Long.MIN_VALUE;
+    private static final ThreadLocal<long[]> QUEUED_AT = ThreadLocal.withInitial(() -> new long[]{UNKNOWN});
+
+    private final ExecutorService delegate;
+
+    QueueTimeExecutor(ExecutorService delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * @return How long the exchange running on this thread waited to be run,
+     * in nanoseconds, or -1 if it was not dispatched through a
+     * QueueTimeExecutor.
+     */
+    static long queueTimeNanos() {
+        long queuedAt = QUEUED_AT.get()[0];
+        return queuedAt == UNKNOWN ? -1 : Math.max(0, System.nanoTime() - queuedAt);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        long queuedAt = System.nanoTime();
+        delegate.execute(() -> {
+            // Saved and restored, as a caller-runs policy may run this on a thread that is itself running an exchange.
+            long[] slot = QUEUED_AT.get();
+            long previous = slot[0];
+            slot[0] = queuedAt;
+            try {
+                command.run();
+            } finally {
+                slot[0] = previous;
+            }
+        });
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.httpserver;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Reads request bodies as a stream, decompressing gzipped bodies and
+ * enforcing a maximum size as they are read, so that no body is ever
+ * buffered whole and an oversized one is rejected as soon as it passes the
+ * limit.
+ *
+ * Failures are thrown as {@link HttpStatusException}s: 400 for a malformed
+ * body, 413 for one that is too large, and 415 for an unsupported
+ * Content-Encoding.
+ *
+ * @author Patrick Angle
+ */
+public final class RequestBodies {
+
+    public static final long DEFAULT_MAXIMUM_SIZE = 10 * 1024 * 1024;
+
+    private static final int GZIP_BUFFER_SIZE = 8192;
+
+    private RequestBodies() {
+    }
+
+    /**
+     * Open the body of a request, decoded according to its Content-Encoding.
+     *
+     * @param he
+     * @param maximumSize The largest body, after decompression, that may be
+     * read.
+     * @return
+     * @throws IOException
+     */
+    public static InputStream open(HttpExchange he, long maximumSize) throws IOException {
+        String contentLength = he.getRequestHeaders().getFirst("Content-Length");
+        String contentEncoding = he.getRequestHeaders().getFirst("Content-Encoding");
+        boolean gzipped = false;
+        if (contentEncoding != null) {
+            contentEncoding = contentEncoding.trim();
+            if (contentEncoding.equalsIgnoreCase("gzip") || contentEncoding.equalsIgnoreCase("x-gzip")) {
+                gzipped = true;
+            } else if (!contentEncoding.isEmpty() && !contentEncoding.equalsIgnoreCase("identity")) {
+                throw new HttpStatusException(415, "Unsupported Content-Encoding: " + contentEncoding);
+            }
+        }
+
+        // An uncompressed body that declares itself too large can be rejected before any of it is read.
+        if (!gzipped && contentLength != null && HttpMetrics.requestContentLength(he) > maximumSize) {
+            throw new HttpStatusException(413, "The request body is larger than " + maximumSize + " bytes.");
+        }
+
+        InputStream body = he.getRequestBody();
+        if (gzipped) {
+            try {
+                body = new GZIPInputStream(body, GZIP_BUFFER_SIZE);
+            } catch (ZipException ex) {
+                throw new HttpStatusException(400, "The request body is not valid gzip.", ex);
+            }
+        }
+        // Limiting the decompressed stream also guards against bodies that inflate to many times their size.
+        return new LimitedInputStream(body, maximumSize);
+    }
+
+    /**
+     * Read the body of a request as a single JSON value.
+     *
+     * @param <B>
+     * @param he
+     * @param reader A reader for the type of the body.
+     * @param maximumSize
+     * @return
+     * @throws IOException If the body could not be read from the connection.
+     */
+    public static <B> B read(HttpExchange he, ObjectReader reader, long maximumSize) throws IOException {
+        try (InputStream body = open(he, maximumSize)) {
+            return reader.readValue(body);
+        } catch (JsonProcessingException ex) {
+            throw invalid(ex);
+        } catch (ZipException ex) {
+            throw new HttpStatusException(400, "The request body is not valid gzip.", ex);
+        }
+    }
+
+    /**
+     * Read the body of a request, a JSON array or a sequence of JSON values,
+     * one element at a time.
+     *
+     * @param <E>
+     * @param he
+     * @param reader A reader for the type of the elements.
+     * @param maximumSize
+     * @return An iterator over the elements, which must be consumed before the
+     * response is sent.
+     * @throws IOException If the body could not be read from the connection.
+     */
+    public static <E> RequestBodyIterator<E> readValues(HttpExchange he, ObjectReader reader, long maximumSize) throws IOException {
+        InputStream body = open(he, maximumSize);
+        try {
+            return new RequestBodyIterator<>(reader.<E>readValues(body));
+        } catch (JsonProcessingException ex) {
+            body.close();
+            throw invalid(ex);
+        }
+    }
+
+    /**
+     * @param ex A failure to read a body as JSON.
+     * @return The exception to answer the request with: the
+     * HttpStatusException the body's stream threw, such as when it passed the
+     * maximum size, if the JSON reader wrapped one, or else a 400.
+     */
+    static HttpStatusException invalid(JsonProcessingException ex) {
+        // Exceptions thrown while binding a value are wrapped in a JsonMappingException, hiding the stream's own status.
+        for (Throwable cause = ex.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof HttpStatusException) {
+                return (HttpStatusException) cause;
+            }
+        }
+        return new HttpStatusException(400, "Invalid request body: " + ex.getOriginalMessage(), ex);
+    }
+
+    private static class LimitedInputStream extends FilterInputStream {
+
+        private final long maximumSize;
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long maximumSize) {
+            super(in);
+            this.maximumSize = maximumSize;
+            this.remaining = maximumSize;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                consumed(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            // Reading one byte past the limit is enough to tell that the body is too large.
+            int n = in.read(b, off, (int) Math.min(len, pastLimit()));
+            if (n > 0) {
+                consumed(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, pastLimit()));
+            consumed(skipped);
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        // A limit of Long.MAX_VALUE, which is effectively no limit, must not overflow.
+        private long pastLimit() {
+            return remaining == Long.MAX_VALUE ? remaining : remaining + 1;
+        }
+
+        private void consumed(long n) {
+            remaining -= n;
+            if (remaining < 0) {
+                throw new HttpStatusException(413, "The request body is larger than " + maximumSize + " bytes.");
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.httpserver;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.zip.ZipException;
+
+/**
+ * Iterates over the elements of a JSON request body as they are read, so
+ * that a large array can be processed in constant memory. A malformed element
+ * is thrown as an {@link HttpStatusException} with status 400, a body that
+ * passes its maximum size with status 413, and a failure to read the body as
+ * an {@link UncheckedIOException}.
+ *
+ * @author Patrick Angle
+ * @param <E>
+ */
+public class RequestBodyIterator<E> implements Iterator<E>, Closeable {
+
+    private final MappingIterator<E> elements;
+
+    RequestBodyIterator(MappingIterator<E> elements) {
+        this.elements = elements;
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            return elements.hasNextValue();
+        } catch (IOException ex) {
+            throw translate(ex);
+        }
+    }
+
+    @Override
+    public E next() {
+        try {
+            return elements.nextValue();
+        } catch (IOException ex) {
+            throw translate(ex);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        elements.close();
+    }
+
+    private static RuntimeException translate(IOException ex) {
+        if (ex instanceof JsonProcessingException) {
+            return RequestBodies.invalid((JsonProcessingException) ex);
+        } else if (ex instanceof ZipException) {
+            return new HttpStatusException(400, "The request body is not valid gzip.", ex);
+        }
+        return new UncheckedIOException(ex);
+    }
+}
@@ -0,0 +1,453 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.httpserver;
+
+import com.patrickangle.commons.util.QueryParameters;
+import com.sun.net.httpserver.HttpPrincipal;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * A bounded, least-recently-used cache of serialized responses, each kept
+ * with a pre-gzipped copy for a fixed time to live. Concurrent misses for the
+ * same key are coalesced, so that only one of them computes the response and
+ * the rest wait for its result. A computation that has not finished within
+ * the load timeout fails with a TimeoutException, so that a stuck loader
+ * cannot hold its key, and every request waiting on it, forever.
+ *
+ * Keys are made from the full request path, the decoded query parameters,
+ * and the authenticated principal if there is one, see
+ * {@link #key(String, Map, HttpPrincipal)}, so that a response computed for
+ * one user is never served to another. Domain code should invalidate the
+ * paths whose responses a change affects; invalidating a path invalidates it
+ * for every user.
+ *
+ * @author Patrick Angle
+ */
+public class ResponseCache {
+
+    public static final Duration DEFAULT_TIME_TO_LIVE = Duration.ofSeconds(5);
+    public static final long DEFAULT_MAXIMUM_SIZE = 16L * 1024 * 1024;
+    public static final Duration DEFAULT_LOAD_TIMEOUT = Duration.ofSeconds(30);
+
+    // Separates the principal from the path and query, and is escaped within them so that no request path can imitate it.
+    private static final char PRINCIPAL_SEPARATOR = '#';
+
+    private static final ScheduledExecutorService TIMEOUT_SCHEDULER = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+        Thread thread = new Thread(runnable, "ResponseCache-timeouts");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static class Entry {
+
+        private final byte[] body;
+        private final byte[] gzippedBody;
+        private final long expiresAt;
+
+        Entry(byte[] body, byte[] gzippedBody, long expiresAt) {
+            this.body = body;
+            this.gzippedBody = gzippedBody;
+            this.expiresAt = expiresAt;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        /**
+         * @return The gzipped body, or null if compressing it was not
+         * worthwhile.
+         */
+        public byte[] getGzippedBody() {
+            return gzippedBody;
+        }
+
+        boolean isExpired(long now) {
+            return now - expiresAt >= 0;
+        }
+
+        long retainedSize() {
+            return body.length + (gzippedBody != null ? gzippedBody.length : 0);
+        }
+    }
+
+    protected final Duration timeToLive;
+    protected final long maximumSize;
+    protected volatile Duration loadTimeout = DEFAULT_LOAD_TIMEOUT;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long size = 0;
+    private final Map<String, Load> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ResponseCache() {
+        this(DEFAULT_TIME_TO_LIVE, DEFAULT_MAXIMUM_SIZE);
+    }
+
+    public ResponseCache(Duration timeToLive, long maximumSize) {
+        this.timeToLive = timeToLive;
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * Make the key for a request, with its query parameters sorted by name so
+     * that their order does not matter. Every value of a repeated parameter
+     * is included, in the order given, when the parameters are
+     * {@link QueryParameters}.
+     *
+     * @param path The full request path, including the context path.
+     * @param queryParameters
+     * @return
+     */
+    public static String key(String path, Map<String, String> queryParameters) {
+        path = escapePath(path);
+        if (queryParameters == null || queryParameters.isEmpty()) {
+            return path;
+        }
+
+        StringBuilder sb = new StringBuilder(path);
+        char separator = '?';
+        Map<String, List<String>> sorted = new TreeMap<>();
+        for (Map.Entry<String, String> parameter : queryParameters.entrySet()) {
+            String name = parameter.getKey();
+            sorted.put(name, queryParameters instanceof QueryParameters ? ((QueryParameters) queryParameters).getAll(name) : Collections.singletonList(parameter.getValue()));
+        }
+        for (Map.Entry<String, List<String>> parameter : sorted.entrySet()) {
+            String name = encode(parameter.getKey());
+            for (String value : parameter.getValue()) {
+                sb.append(separator).append(name);
+                if (value != null) {
+                    sb.append('=').append(encode(value));
+                }
+                separator = '&';
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Make the key for a request made by a principal, which is the key for the
+     * path and query parameters followed by the principal's realm and name.
+     *
+     * @param path The full request path, including the context path.
+     * @param queryParameters
+     * @param principal The authenticated principal, or null if there is none.
+     * @return
+     */
+    public static String key(String path, Map<String, String> queryParameters, HttpPrincipal principal) {
+        String key = key(path, queryParameters);
+        if (principal == null) {
+            return key;
+        }
+        return key + PRINCIPAL_SEPARATOR + encode(principal.getRealm()) + ':' + encode(principal.getUsername());
+    }
+
+    /**
+     * @param body
+     * @param gzippedBody The gzipped body, or null if there is none.
+     * @return An entry that expires one time to live from now.
+     */
+    public Entry createEntry(byte[] body, byte[] gzippedBody) {
+        return new Entry(body, gzippedBody, System.nanoTime() + timeToLive.toNanos());
+    }
+
+    /**
+     * @param key
+     * @return The cached entry, or null if there is none or it has expired.
+     */
+    public Entry get(String key) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (!entry.isExpired(System.nanoTime())) {
+                    hits.increment();
+                    return entry;
+                }
+                entries.remove(key);
+                size -= entry.retainedSize();
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Compute the entry for a key, unless it is already being computed, in
+     * which case the pending result is returned instead. The loader is given
+     * the future to complete, and may complete it from any thread. Completed
+     * entries are cached; failures are not. If the future is not completed
+     * within the load timeout, it is completed with a TimeoutException.
+     *
+     * @param key
+     * @param loader
+     * @return
+     */
+    public CompletableFuture<Entry> load(String key, Consumer<CompletableFuture<Entry>> loader) {
+        Load load = new Load();
+        CompletableFuture<Entry> future = load.future;
+        Load existing = inFlight.putIfAbsent(key, load);
+        if (existing != null) {
+            coalesced.increment();
+            return existing.future;
+        }
+
+        // Another load of the key may have finished between the caller's miss and this one starting.
+        Entry cached = peek(key);
+        if (cached != null) {
+            inFlight.remove(key, load);
+            future.complete(cached);
+            return future;
+        }
+
+        Duration timeout = loadTimeout;
+        ScheduledFuture<?> timeoutTask = timeout.isZero() ? null : TIMEOUT_SCHEDULER.schedule(() -> {
+            future.completeExceptionally(new TimeoutException("The response for " + key + " was not computed within " + timeout.toMillis() + "ms."));
+        }, timeout.toNanos(), TimeUnit.NANOSECONDS);
+        future.whenComplete((entry, throwable) -> {
+            if (timeoutTask != null) {
+                timeoutTask.cancel(false);
+            }
+            if (throwable == null && entry.retainedSize() <= maximumSize && !load.invalidated) {
+                put(key, entry);
+                // An invalidation that marked the load after the check above may have already swept the entries.
+                if (load.invalidated) {
+                    remove(key, entry);
+                }
+            }
+            inFlight.remove(key, load);
+        });
+
+        try {
+            loader.accept(future);
+        } catch (RuntimeException ex) {
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+
+    /**
+     * Invalidate the responses for a path, whatever their query parameters.
+     *
+     * @param path The full request path, including the context path.
+     */
+    public void invalidate(String path) {
+        String pathKey = escapePath(path);
+        String queryPrefix = pathKey + "?";
+        String principalPrefix = pathKey + PRINCIPAL_SEPARATOR;
+        invalidateIf((key) -> key.equals(pathKey) || key.startsWith(queryPrefix) || key.startsWith(principalPrefix));
+    }
+
+    /**
+     * Invalidate the responses for a path and query parameters, for every
+     * principal.
+     *
+     * @param path The full request path, including the context path.
+     * @param queryParameters
+     */
+    public void invalidate(String path, Map<String, String> queryParameters) {
+        String key = key(path, queryParameters);
+        String principalPrefix = key + PRINCIPAL_SEPARATOR;
+        invalidateIf((candidate) -> candidate.equals(key) || candidate.startsWith(principalPrefix));
+    }
+
+    /**
+     * Invalidate the responses for every path beginning with a prefix, such as
+     * /api/items/.
+     *
+     * @param pathPrefix
+     */
+    public void invalidatePrefix(String pathPrefix) {
+        String keyPrefix = escapePath(pathPrefix);
+        invalidateIf((key) -> key.startsWith(keyPrefix));
+    }
+
+    public void invalidateIf(Predicate<String> keyPredicate) {
+        // Requests arriving from now on start a new computation, rather than waiting for one that may be stale, and the
+        // stale one is not kept. Loads of other keys are left alone, so they still coalesce.
+        Iterator<Map.Entry<String, Load>> loads = inFlight.entrySet().iterator();
+        while (loads.hasNext()) {
+            Map.Entry<String, Load> load = loads.next();
+            if (keyPredicate.test(load.getKey())) {
+                load.getValue().invalidated = true;
+                loads.remove();
+            }
+        }
+        synchronized (entries) {
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Entry> entry = iterator.next();
+                if (keyPredicate.test(entry.getKey())) {
+                    iterator.remove();
+                    size -= entry.getValue().retainedSize();
+                }
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        Iterator<Load> loads = inFlight.values().iterator();
+        while (loads.hasNext()) {
+            loads.next().invalidated = true;
+            loads.remove();
+        }
+        synchronized (entries) {
+            entries.clear();
+            size = 0;
+        }
+    }
+
+    public Duration getTimeToLive() {
+        return timeToLive;
+    }
+
+    public long getMaximumSize() {
+        return maximumSize;
+    }
+
+    public Duration getLoadTimeout() {
+        return loadTimeout;
+    }
+
+    /**
+     * Set how long a computation may take before it fails, releasing its key,
+     * or zero to wait indefinitely.
+     *
+     * @param loadTimeout
+     */
+    public void setLoadTimeout(Duration loadTimeout) {
+        this.loadTimeout = loadTimeout;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return The number of misses that waited for another request's
+     * computation rather than starting their own.
+     */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public long getSize() {
+        synchronized (entries) {
+            return size;
+        }
+    }
+
+    public int getEntryCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * A computation in progress, which is marked when its key is invalidated
+     * so that its result is not kept.
+     */
+    private static class Load {
+
+        private final CompletableFuture<Entry> future = new CompletableFuture<>();
+        private volatile boolean invalidated = false;
+    }
+
+    private Entry peek(String key) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            return entry != null && !entry.isExpired(System.nanoTime()) ? entry : null;
+        }
+    }
+
+    private void put(String key, Entry entry) {
+        synchronized (entries) {
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                size -= previous.retainedSize();
+            }
+            size += entry.retainedSize();
+
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while (size > maximumSize && iterator.hasNext()) {
+                Map.Entry<String, Entry> eldest = iterator.next();
+                if (eldest.getValue() == entry) {
+                    continue;
+                }
+                iterator.remove();
+                size -= eldest.getValue().retainedSize();
+                evictions.increment();
+            }
+        }
+    }
+
+    private void remove(String key, Entry entry) {
+        synchronized (entries) {
+            if (entries.remove(key, entry)) {
+                size -= entry.retainedSize();
+            }
+        }
+    }
+
+    /**
+     * Escape the characters of a decoded path that would make its key
+     * ambiguous, leaving the rest, so that keys stay readable.
+     */
+    private static String escapePath(String path) {
+        if (path.indexOf('%') < 0 && path.indexOf(PRINCIPAL_SEPARATOR) < 0 && path.indexOf('?') < 0) {
+            return path;
+        }
+        return path.replace("%", "%25").replace("#", "%23").replace("?", "%3F");
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException("UTF-8 is required to be supported by every Java platform.", ex);
+        }
+    }
+}
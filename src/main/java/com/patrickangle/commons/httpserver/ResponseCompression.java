@@ -0,0 +1,425 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.httpserver;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.zip.Deflater;
+
+/**
+ * Shared response compression stage for the httpserver handlers. Responses are
+ * gzipped only when the client advertises support in Accept-Encoding, the
+ * Content-Type is not already compressed, and the body is at least
+ * {@link #getMinimumSize()} bytes long.
+ *
+ * Handlers should set the Content-Type response header before opening a
+ * response body, as it is used to decide whether compression is worthwhile.
+ *
+ * @author Patrick Angle
+ */
+public class ResponseCompression {
+
+    public static final int DEFAULT_MINIMUM_SIZE = 1024;
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    public static final Set<String> DEFAULT_INCOMPRESSIBLE_MIME_TYPES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "image/", "video/", "audio/", "font/woff", "font/woff2", "application/font-woff",
+            "application/zip", "application/gzip", "application/x-gzip", "application/x-bzip2",
+            "application/x-7z-compressed", "application/x-rar-compressed", "application/x-xz",
+            "application/pdf", "application/octet-stream", "application/x-mpegurl"
+    )));
+
+    // Image formats that are text based, and so still benefit from compression.
+    private static final Set<String> COMPRESSIBLE_IMAGE_TYPES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "image/svg+xml", "image/x-icon", "image/bmp"
+    )));
+
+    protected boolean enabled = true;
+    protected int level = Deflater.DEFAULT_COMPRESSION;
+    protected int minimumSize = DEFAULT_MINIMUM_SIZE;
+    protected int bufferSize = DEFAULT_BUFFER_SIZE;
+    protected final Set<String> incompressibleMimeTypes = new CopyOnWriteArraySet<>(DEFAULT_INCOMPRESSIBLE_MIME_TYPES);
+
+    public ResponseCompression() {
+    }
+
+    public ResponseCompression(int level, int minimumSize) {
+        setLevel(level);
+        setMinimumSize(minimumSize);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Set the deflate level, from Deflater.BEST_SPEED (1) to
+     * Deflater.BEST_COMPRESSION (9). Deflater.DEFAULT_COMPRESSION (-1) uses
+     * zlib's default, and Deflater.NO_COMPRESSION (0) disables compression.
+     *
+     * @param level
+     */
+    public void setLevel(int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        this.level = level;
+    }
+
+    public int getMinimumSize() {
+        return minimumSize;
+    }
+
+    public void setMinimumSize(int minimumSize) {
+        if (minimumSize < 0) {
+            throw new IllegalArgumentException("Minimum size must not be negative.");
+        }
+        this.minimumSize = minimumSize;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive.");
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * The MIME types that are never compressed. Entries ending in "/" match
+     * every subtype of that type.
+     *
+     * @return The live, modifiable set of incompressible MIME types.
+     */
+    public Set<String> getIncompressibleMimeTypes() {
+        return incompressibleMimeTypes;
+    }
+
+    public boolean isCompressible(String mimeType) {
+        if (mimeType == null) {
+            return true;
+        }
+
+        int parametersStart = mimeType.indexOf(';');
+        String baseType = (parametersStart >= 0 ? mimeType.substring(0, parametersStart) : mimeType).trim().toLowerCase();
+
+        if (COMPRESSIBLE_IMAGE_TYPES.contains(baseType)) {
+            return true;
+        }
+        if (incompressibleMimeTypes.contains(baseType)) {
+            return false;
+        }
+        int slash = baseType.indexOf('/');
+        return slash < 0 || !incompressibleMimeTypes.contains(baseType.substring(0, slash + 1));
+    }
+
+    public static boolean acceptsGzip(Headers requestHeaders) {
+        List<String> acceptEncodings = requestHeaders.get("Accept-Encoding");
+        if (acceptEncodings == null) {
+            return false;
+        }
+
+        // An explicit gzip entry takes priority over a wildcard, whichever order they appear in.
+        double gzipQuality = -1;
+        double wildcardQuality = -1;
+        for (String acceptEncoding : acceptEncodings) {
+            int start = 0;
+            while (start < acceptEncoding.length()) {
+                int end = acceptEncoding.indexOf(',', start);
+                if (end < 0) {
+                    end = acceptEncoding.length();
+                }
+                int parametersStart = acceptEncoding.indexOf(';', start);
+                int nameEnd = parametersStart >= 0 && parametersStart < end ? parametersStart : end;
+                String coding = acceptEncoding.substring(start, nameEnd).trim();
+                if (coding.equalsIgnoreCase("gzip")) {
+                    gzipQuality = Math.max(gzipQuality, quality(acceptEncoding, nameEnd, end));
+                } else if (coding.equals("*")) {
+                    wildcardQuality = Math.max(wildcardQuality, quality(acceptEncoding, nameEnd, end));
+                }
+                start = end + 1;
+            }
+        }
+        // A quality of zero means the coding is explicitly refused.
+        return gzipQuality >= 0 ? gzipQuality > 0 : wildcardQuality > 0;
+    }
+
+    private static double quality(String header, int parametersStart, int end) {
+        if (parametersStart < end) {
+            String parameters = header.substring(parametersStart + 1, end).replace(" ", "");
+            if (parameters.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(parameters.substring(2));
+                } catch (NumberFormatException ex) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Determine if a response to the given exchange, of the given length (or -1
+     * if unknown), will be gzipped.
+     *
+     * @param he
+     * @param contentLength
+     * @return
+     */
+    public boolean shouldCompress(HttpExchange he, long contentLength) {
+        return enabled
+                && level != Deflater.NO_COMPRESSION
+                && (contentLength < 0 || contentLength >= minimumSize)
+                && he.getResponseHeaders().getFirst("Content-Encoding") == null
+                && isCompressible(he.getResponseHeaders().getFirst("Content-Type"))
+                && acceptsGzip(he.getRequestHeaders());
+    }
+
+    /**
+     * Open a response body whose length is not known in advance. Output is
+     * held back until either the minimum compression size is reached, at which
+     * point it is sent chunked (and gzipped where permitted), or the stream is
+     * closed, at which point it is sent with a fixed length and no compression.
+     *
+     * @param he
+     * @param statusCode
+     * @return A stream that must be closed to complete the exchange.
+     * @throws IOException
+     */
+    public OutputStream openResponseBody(HttpExchange he, int statusCode) throws IOException {
+        addVaryHeader(he);
+        return new DeferredResponseOutputStream(he, statusCode, -1);
+    }
+
+    /**
+     * Open a response body of a known length, sending headers immediately. The
+     * body is sent with the given fixed length unless it will be gzipped, in
+     * which case it is sent chunked.
+     *
+     * @param he
+     * @param statusCode
+     * @param contentLength
+     * @return A stream that must be closed to complete the exchange.
+     * @throws IOException
+     */
+    public OutputStream openResponseBody(HttpExchange he, int statusCode, long contentLength) throws IOException {
+        addVaryHeader(he);
+        return new DeferredResponseOutputStream(he, statusCode, contentLength);
+    }
+
+    public void sendResponse(HttpExchange he, int statusCode, byte[] body) throws IOException {
+        try (OutputStream os = openResponseBody(he, statusCode, body.length)) {
+            os.write(body);
+        }
+    }
+
+    /**
+     * Send a response for which a gzipped variant has already been prepared,
+     * choosing between the two without compressing anything per request.
+     *
+     * @param he
+     * @param statusCode
+     * @param body
+     * @param gzippedBody The gzipped body, or null if there is none.
+     * @throws IOException
+     */
+    public void sendPrecompressedResponse(HttpExchange he, int statusCode, byte[] body, byte[] gzippedBody) throws IOException {
+        addVaryHeader(he);
+        byte[] response = body;
+        if (sendsPrecompressed(he, body, gzippedBody)) {
+            he.getResponseHeaders().set("Content-Encoding", "gzip");
+            response = gzippedBody;
+        }
+        long writeStart = System.nanoTime();
+        he.sendResponseHeaders(statusCode, response.length == 0 ? -1 : response.length);
+        try (OutputStream os = he.getResponseBody()) {
+            os.write(response);
+        }
+        ResponseStatistics.current().add(body.length, response.length, System.nanoTime() - writeStart);
+    }
+
+    public byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(Math.max(data.length / 4, 64));
+        try (OutputStream gzipOS = new PooledGzipOutputStream(bos, level == Deflater.NO_COMPRESSION ? Deflater.DEFAULT_COMPRESSION : level, bufferSize)) {
+            gzipOS.write(data);
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Add Vary: Accept-Encoding to a response whose Content-Type may be
+     * compressed, unless it is already there. Handlers that answer some
+     * requests with 304 Not Modified should call this before doing so, as
+     * the response would otherwise lack it.
+     *
+     * @param he
+     */
+    public void addVaryHeader(HttpExchange he) {
+        if (enabled && isCompressible(he.getResponseHeaders().getFirst("Content-Type"))) {
+            List<String> vary = he.getResponseHeaders().get("Vary");
+            if (vary == null || !vary.contains("Accept-Encoding")) {
+                he.getResponseHeaders().add("Vary", "Accept-Encoding");
+            }
+        }
+    }
+
+    /**
+     * Determine if sendPrecompressedResponse would send the gzipped body.
+     *
+     * @param he
+     * @param body
+     * @param gzippedBody The gzipped body, or null if there is none.
+     * @return
+     */
+    public boolean sendsPrecompressed(HttpExchange he, byte[] body, byte[] gzippedBody) {
+        return gzippedBody != null && shouldCompress(he, body.length);
+    }
+
+    // Also counts what passes through it, adding the totals to the thread's ResponseStatistics when closed.
+    private class DeferredResponseOutputStream extends OutputStream {
+
+        private final HttpExchange he;
+        private final int statusCode;
+        private byte[] buffer;
+        private int count = 0;
+        private OutputStream delegate = null;
+        private PooledGzipOutputStream gzipDelegate = null;
+        private long bodyBytes = 0;
+        private long writeNanos = 0;
+        private boolean closed = false;
+
+        /**
+         * @param contentLength The length of the body if known, in which case
+         * headers are sent immediately, or -1.
+         */
+        DeferredResponseOutputStream(HttpExchange he, int statusCode, long contentLength) throws IOException {
+            this.he = he;
+            this.statusCode = statusCode;
+            if (contentLength < 0) {
+                this.buffer = new byte[Math.max(minimumSize, 1)];
+            } else if (shouldCompress(he, contentLength)) {
+                he.getResponseHeaders().set("Content-Encoding", "gzip");
+                he.sendResponseHeaders(statusCode, 0);
+                delegate = gzipDelegate = new PooledGzipOutputStream(he.getResponseBody(), level, bufferSize);
+            } else {
+                he.sendResponseHeaders(statusCode, contentLength == 0 ? -1 : contentLength);
+                delegate = he.getResponseBody();
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            bodyBytes++;
+            if (delegate == null) {
+                if (count < buffer.length) {
+                    buffer[count++] = (byte) b;
+                    return;
+                }
+                commitChunked();
+            }
+            long writeStart = System.nanoTime();
+            delegate.write(b);
+            writeNanos += System.nanoTime() - writeStart;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            bodyBytes += len;
+            if (delegate == null) {
+                if (len <= buffer.length - count) {
+                    System.arraycopy(b, off, buffer, count, len);
+                    count += len;
+                    return;
+                }
+                commitChunked();
+            }
+            long writeStart = System.nanoTime();
+            delegate.write(b, off, len);
+            writeNanos += System.nanoTime() - writeStart;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            // Flushing before the compression decision is made would force an uncompressed, chunked response.
+            if (delegate != null) {
+                long writeStart = System.nanoTime();
+                delegate.flush();
+                writeNanos += System.nanoTime() - writeStart;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            long writeStart = System.nanoTime();
+            try {
+                if (delegate == null) {
+                    he.sendResponseHeaders(statusCode, count == 0 ? -1 : count);
+                    try (OutputStream os = he.getResponseBody()) {
+                        os.write(buffer, 0, count);
+                    }
+                } else {
+                    delegate.close();
+                }
+            } finally {
+                writeNanos += System.nanoTime() - writeStart;
+                long wireBytes = gzipDelegate != null ? gzipDelegate.getCompressedSize() : bodyBytes;
+                ResponseStatistics.current().add(bodyBytes, wireBytes, writeNanos);
+                buffer = null;
+            }
+        }
+
+        private void commitChunked() throws IOException {
+            long writeStart = System.nanoTime();
+            if (shouldCompress(he, -1)) {
+                he.getResponseHeaders().set("Content-Encoding", "gzip");
+                he.sendResponseHeaders(statusCode, 0);
+                delegate = gzipDelegate = new PooledGzipOutputStream(he.getResponseBody(), level, bufferSize);
+            } else {
+                he.sendResponseHeaders(statusCode, 0);
+                delegate = he.getResponseBody();
+            }
+            delegate.write(buffer, 0, count);
+            count = 0;
+            writeNanos += System.nanoTime() - writeStart;
+        }
+    }
+}
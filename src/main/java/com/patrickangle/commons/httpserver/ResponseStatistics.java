@@ -0,0 +1,80 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.httpserver;
+
+/**
+ * Totals for the response bodies written by the current thread through
+ * {@link ResponseCompression}, since the last call to {@link #begin()}. Each
+ * thread reuses a single instance, so gathering them does not allocate.
+ *
+ * @author Patrick Angle
+ */
+public final class ResponseStatistics {
+
+    private static final ThreadLocal<ResponseStatistics> CURRENT = ThreadLocal.withInitial(ResponseStatistics::new);
+
+    private long bodyBytes;
+    private long wireBytes;
+    private long writeNanos;
+
+    private ResponseStatistics() {
+    }
+
+    /**
+     * Reset the current thread's totals.
+     *
+     * @return The current thread's statistics.
+     */
+    public static ResponseStatistics begin() {
+        ResponseStatistics statistics = CURRENT.get();
+        statistics.bodyBytes = 0;
+        statistics.wireBytes = 0;
+        statistics.writeNanos = 0;
+        return statistics;
+    }
+
+    static ResponseStatistics current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * @return The number of body bytes before compression.
+     */
+    public long getBodyBytes() {
+        return bodyBytes;
+    }
+
+    /**
+     * @return The number of body bytes sent, after any compression.
+     */
+    public long getWireBytes() {
+        return wireBytes;
+    }
+
+    /**
+     * @return The time spent compressing and writing to the client.
+     */
+    public long getWriteNanos() {
+        return writeNanos;
+    }
+
+    void add(long bodyBytes, long wireBytes, long writeNanos) {
+        this.bodyBytes += bodyBytes;
+        this.wireBytes += wireBytes;
+        this.writeNanos += writeNanos;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.httpserver;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free counters and a latency histogram for a single route.
+ *
+ * @author Patrick Angle
+ */
+public class RouteMetrics {
+
+    private static final String[] STATUS_CLASSES = {"1xx", "2xx", "3xx", "4xx", "5xx"};
+
+    private final String route;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder[] statusClasses = new LongAdder[STATUS_CLASSES.length];
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder bodyBytes = new LongAdder();
+    private final LongAdder serializationNanos = new LongAdder();
+    private final LongAdder writeNanos = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    public RouteMetrics(String route) {
+        this.route = route;
+        for (int i = 0; i < statusClasses.length; i++) {
+            statusClasses[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Record a completed request.
+     *
+     * @param statusCode The response status, or -1 if the response could not
+     * be completed.
+     * @param latencyNanos
+     * @param bytesIn The length of the request body.
+     * @param bodyBytes The length of the response body before compression.
+     * @param bytesOut The length of the response body as sent.
+     * @param serializationNanos The time spent producing the response body.
+     * @param writeNanos The time spent compressing and writing the response
+     * body.
+     */
+    public void record(int statusCode, long latencyNanos, long bytesIn, long bodyBytes, long bytesOut, long serializationNanos, long writeNanos) {
+        requests.increment();
+        int statusClass = statusCode / 100 - 1;
+        if (statusClass >= 0 && statusClass < statusClasses.length) {
+            statusClasses[statusClass].increment();
+        }
+        if (statusCode < 0 || statusCode >= 500) {
+            errors.increment();
+        }
+        this.bytesIn.add(bytesIn);
+        this.bodyBytes.add(bodyBytes);
+        this.bytesOut.add(bytesOut);
+        this.serializationNanos.add(Math.max(serializationNanos, 0));
+        this.writeNanos.add(writeNanos);
+        latency.record(latencyNanos);
+    }
+
+    public String getRoute() {
+        return route;
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * @return The number of requests answered with a 5xx status, or not
+     * answered completely.
+     */
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    /**
+     * @param statusClass The first digit of the status code, from 1 to 5.
+     * @return
+     */
+    public long getStatusClassCount(int statusClass) {
+        return statusClasses[statusClass - 1].sum();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    public long getBodyBytes() {
+        return bodyBytes.sum();
+    }
+
+    /**
+     * @return The ratio of response body bytes before compression to bytes
+     * sent, or 1 if nothing has been sent.
+     */
+    public double getCompressionRatio() {
+        long out = bytesOut.sum();
+        return out == 0 ? 1 : (double) bodyBytes.sum() / out;
+    }
+
+    public long getSerializationNanos() {
+        return serializationNanos.sum();
+    }
+
+    public long getWriteNanos() {
+        return writeNanos.sum();
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> statusCodes = new LinkedHashMap<>();
+        for (int i = 0; i < STATUS_CLASSES.length; i++) {
+            statusCodes.put(STATUS_CLASSES[i], statusClasses[i].sum());
+        }
+
+        Map<String, Object> latencySnapshot = new LinkedHashMap<>();
+        latencySnapshot.put("count", latency.getCount());
+        latencySnapshot.put("meanMillis", latency.getMean() / 1e6);
+        latencySnapshot.put("p50Millis", latency.getPercentile(0.5) / 1e6);
+        latencySnapshot.put("p90Millis", latency.getPercentile(0.9) / 1e6);
+        latencySnapshot.put("p99Millis", latency.getPercentile(0.99) / 1e6);
+        latencySnapshot.put("maxMillis", latency.getMax() / 1e6);
+
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("requests", getRequests());
+        snapshot.put("errors", getErrors());
+        snapshot.put("statusCodes", statusCodes);
+        snapshot.put("bytesIn", getBytesIn());
+        snapshot.put("bytesOut", getBytesOut());
+        snapshot.put("bodyBytes", getBodyBytes());
+        snapshot.put("compressionRatio", getCompressionRatio());
+        snapshot.put("serializationMillis", getSerializationNanos() / 1e6);
+        snapshot.put("writeMillis", getWriteNanos() / 1e6);
+        snapshot.put("latency", latencySnapshot);
+        return snapshot;
+    }
+}
@@ -0,0 +1,392 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.httpserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A table of routes compiled into a trie of path segments. Patterns are made
+ * of literal segments, {name} segments that capture a single segment, and a
+ * final * or {name*} segment that captures the remainder of the path. Literal
+ * segments take precedence over captures, which take precedence over
+ * wildcards.
+ *
+ * Matching walks the request path once, without allocating, and records its
+ * result in a caller-supplied {@link Match}. Routes may be added while
+ * requests are being matched; every structure a match reads is replaced
+ * whole rather than modified in place.
+ *
+ * @author Patrick Angle
+ * @param <H> The handler type.
+ */
+public class RouteTable<H> {
+
+    public static final String ANY_METHOD = "*";
+
+    public static enum Result {
+        Found,
+        NotFound,
+        MethodNotAllowed
+    }
+
+    public static class Match<H> {
+
+        private final PathParameters parameters = new PathParameters();
+        private Result result = Result.NotFound;
+        private H handler;
+        private Node<H> node;
+        private String pattern;
+        private String allowedMethods;
+
+        public Result getResult() {
+            return result;
+        }
+
+        public H getHandler() {
+            return handler;
+        }
+
+        /**
+         * @return The pattern of the matched route, or null if none matched.
+         */
+        public String getPattern() {
+            return pattern;
+        }
+
+        /**
+         * @param prefix The path the table is mounted at, such as a context
+         * path.
+         * @return The pattern of the matched route joined to a prefix, or null
+         * if none matched. The name is kept with the route and only rebuilt
+         * when the prefix differs from the last one it was asked for with.
+         */
+        public String getRouteName(String prefix) {
+            Node<H> matched = node;
+            if (matched == null) {
+                return null;
+            }
+            RouteName name = matched.routeName;
+            if (name == null || !name.prefix.equals(prefix)) {
+                name = new RouteName(prefix, matched.pattern);
+                matched.routeName = name;
+            }
+            return name.name;
+        }
+
+        /**
+         * @return The value for an Allow header when the result is
+         * MethodNotAllowed.
+         */
+        public String getAllowedMethods() {
+            return allowedMethods;
+        }
+
+        public PathParameters getParameters() {
+            return parameters;
+        }
+
+        void reset(String path) {
+            parameters.reset(path);
+            result = Result.NotFound;
+            handler = null;
+            node = null;
+            pattern = null;
+            allowedMethods = null;
+        }
+    }
+
+    private static final class RouteName {
+
+        private final String prefix;
+        private final String name;
+
+        RouteName(String prefix, String pattern) {
+            this.prefix = prefix;
+            this.name = prefix.endsWith("/") && pattern.startsWith("/") ? prefix + pattern.substring(1) : prefix + pattern;
+        }
+    }
+
+    private static final class LiteralTable<H> {
+
+        private final String[] segments;
+        private final Node<H>[] children;
+
+        @SuppressWarnings("unchecked")
+        LiteralTable(int capacity) {
+            this.segments = new String[capacity];
+            this.children = (Node<H>[]) new Node<?>[capacity];
+        }
+    }
+
+    private static final class Node<H> {
+
+        private volatile LiteralTable<H> literals = null;
+        private int literalCount = 0;
+        private volatile Node<H> parameterChild = null;
+        private String parameterName = null;
+        private volatile Node<H> wildcardChild = null;
+        private String wildcardName = null;
+
+        // Replaced rather than modified, like the literal tables, so matching can read it without locking.
+        private volatile Map<String, H> methodHandlers = Collections.emptyMap();
+        private volatile H anyMethodHandler = null;
+        private volatile String pattern = null;
+        private volatile String allowedMethods = null;
+        private volatile RouteName routeName = null;
+
+        boolean isTerminal() {
+            return pattern != null;
+        }
+
+        Node<H> literal(String path, int start, int end) {
+            LiteralTable<H> table = literals;
+            if (table == null) {
+                return null;
+            }
+
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + path.charAt(i);
+            }
+
+            int mask = table.segments.length - 1;
+            int length = end - start;
+            for (int index = spread(hash) & mask;; index = (index + 1) & mask) {
+                String segment = table.segments[index];
+                if (segment == null) {
+                    return null;
+                }
+                if (segment.length() == length && path.regionMatches(start, segment, 0, length)) {
+                    return table.children[index];
+                }
+            }
+        }
+
+        Node<H> addLiteral(String segment) {
+            LiteralTable<H> table = literals;
+            if (table != null) {
+                Node<H> existing = literal(segment, 0, segment.length());
+                if (existing != null) {
+                    return existing;
+                }
+            }
+
+            Node<H> child = new Node<>();
+
+            // Tables are rebuilt rather than modified, so concurrent matches always see a consistent table.
+            int capacity = 4;
+            while (capacity < (literalCount + 1) * 2) {
+                capacity *= 2;
+            }
+            LiteralTable<H> rebuilt = new LiteralTable<>(capacity);
+            if (table != null) {
+                for (int i = 0; i < table.segments.length; i++) {
+                    if (table.segments[i] != null) {
+                        insert(rebuilt, table.segments[i], table.children[i]);
+                    }
+                }
+            }
+            insert(rebuilt, segment, child);
+            literalCount++;
+            literals = rebuilt;
+            return child;
+        }
+
+        private static <H> void insert(LiteralTable<H> table, String segment, Node<H> child) {
+            int mask = table.segments.length - 1;
+            int index = spread(segment.hashCode()) & mask;
+            while (table.segments[index] != null) {
+                index = (index + 1) & mask;
+            }
+            table.segments[index] = segment;
+            table.children[index] = child;
+        }
+
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+    }
+
+    private final Node<H> root = new Node<>();
+
+    /**
+     * Add a route, replacing any existing handler for the same pattern and
+     * method.
+     *
+     * @param method The HTTP method, or {@link #ANY_METHOD}.
+     * @param pattern
+     * @param handler
+     */
+    public synchronized void add(String method, String pattern, H handler) {
+        List<String> segments = segmentsOf(pattern);
+        Node<H> node = root;
+        int parameterCount = 0;
+
+        for (int i = 0; i < segments.size(); i++) {
+            String segment = segments.get(i);
+            boolean isLast = i == segments.size() - 1;
+
+            if (segment.equals("*") || (segment.startsWith("{") && segment.endsWith("*}"))) {
+                if (!isLast) {
+                    throw new IllegalArgumentException("A wildcard must be the final segment of a route: " + pattern);
+                }
+                String name = segment.equals("*") ? "*" : segment.substring(1, segment.length() - 2);
+                node = wildcardChild(node, name, pattern);
+                parameterCount++;
+            } else if (segment.startsWith("{") && segment.endsWith("}")) {
+                String name = segment.substring(1, segment.length() - 1);
+                node = parameterChild(node, name, pattern);
+                parameterCount++;
+            } else {
+                node = node.addLiteral(segment);
+            }
+        }
+
+        if (parameterCount > PathParameters.MAXIMUM_PARAMETERS) {
+            throw new IllegalArgumentException("A route may capture at most " + PathParameters.MAXIMUM_PARAMETERS + " parameters: " + pattern);
+        }
+
+        if (method.equals(ANY_METHOD)) {
+            node.anyMethodHandler = handler;
+        } else {
+            Map<String, H> methodHandlers = new TreeMap<>(node.methodHandlers);
+            methodHandlers.put(method.toUpperCase(), handler);
+            node.methodHandlers = Collections.unmodifiableMap(methodHandlers);
+        }
+        node.allowedMethods = node.anyMethodHandler != null ? null : String.join(", ", node.methodHandlers.keySet());
+        node.routeName = null;
+        node.pattern = pattern;
+    }
+
+    /**
+     * Match a request path against the table.
+     *
+     * @param method
+     * @param path
+     * @param start The offset in the path at which to begin matching, such as
+     * the length of the context path.
+     * @param match Receives the result, and is reset before matching.
+     * @return
+     */
+    public Result match(String method, String path, int start, Match<H> match) {
+        match.reset(path);
+        matchNode(root, method, path, start, match);
+        return match.result;
+    }
+
+    private boolean matchNode(Node<H> node, String method, String path, int position, Match<H> match) {
+        int length = path.length();
+        while (position < length && path.charAt(position) == '/') {
+            position++;
+        }
+
+        if (position == length) {
+            if (node.isTerminal()) {
+                accept(node, method, match);
+                return true;
+            }
+            Node<H> wildcard = node.wildcardChild;
+            if (wildcard != null && wildcard.isTerminal()) {
+                match.parameters.add(node.wildcardName, position, position);
+                accept(wildcard, method, match);
+                return true;
+            }
+            return false;
+        }
+
+        int end = path.indexOf('/', position);
+        if (end < 0) {
+            end = length;
+        }
+
+        Node<H> literal = node.literal(path, position, end);
+        if (literal != null && matchNode(literal, method, path, end, match)) {
+            return true;
+        }
+
+        Node<H> parameter = node.parameterChild;
+        if (parameter != null) {
+            int mark = match.parameters.size();
+            match.parameters.add(node.parameterName, position, end);
+            if (matchNode(parameter, method, path, end, match)) {
+                return true;
+            }
+            match.parameters.truncate(mark);
+        }
+
+        Node<H> wildcard = node.wildcardChild;
+        if (wildcard != null && wildcard.isTerminal()) {
+            match.parameters.add(node.wildcardName, position, length);
+            accept(wildcard, method, match);
+            return true;
+        }
+
+        return false;
+    }
+
+    private void accept(Node<H> node, String method, Match<H> match) {
+        Map<String, H> methodHandlers = node.methodHandlers;
+        H handler = methodHandlers.isEmpty() ? null : methodHandlers.get(method);
+        if (handler == null) {
+            handler = node.anyMethodHandler;
+        }
+
+        match.node = node;
+        match.pattern = node.pattern;
+        if (handler != null) {
+            match.result = Result.Found;
+            match.handler = handler;
+        } else {
+            match.result = Result.MethodNotAllowed;
+            match.allowedMethods = node.allowedMethods;
+        }
+    }
+
+    private static <H> Node<H> parameterChild(Node<H> node, String name, String pattern) {
+        if (node.parameterChild == null) {
+            node.parameterName = name;
+            node.parameterChild = new Node<>();
+        } else if (!node.parameterName.equals(name)) {
+            throw new IllegalArgumentException("Route " + pattern + " names parameter {" + name + "}, but an existing route names it {" + node.parameterName + "}.");
+        }
+        return node.parameterChild;
+    }
+
+    private static <H> Node<H> wildcardChild(Node<H> node, String name, String pattern) {
+        if (node.wildcardChild == null) {
+            node.wildcardName = name;
+            node.wildcardChild = new Node<>();
+        } else if (!node.wildcardName.equals(name)) {
+            throw new IllegalArgumentException("Route " + pattern + " names wildcard {" + name + "*}, but an existing route names it {" + node.wildcardName + "*}.");
+        }
+        return node.wildcardChild;
+    }
+
+    private static List<String> segmentsOf(String pattern) {
+        List<String> segments = new ArrayList<>();
+        for (String segment : pattern.split("/")) {
+            if (!segment.isEmpty()) {
+                segments.add(segment);
+            }
+        }
+        return segments;
+    }
+}
@@ -16,10 +16,30 @@
  */
 package com.patrickangle.commons.httpserver;
 
-import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.patrickangle.commons.json.JsonMappers;
 import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 /**
@@ -27,7 +47,33 @@ import java.util.function.Consumer;
  * @author patrickangle
  */
 public class ServerApiHttpHandler extends CallbackJsonHttpHandler<Object>{
+    public static final int DEFAULT_PAGE_LIMIT = 100;
+    public static final int DEFAULT_MAXIMUM_PAGE_LIMIT = 1000;
+    
+    private static final AtomicInteger WRITER_THREAD_COUNT = new AtomicInteger();
+    
+    // Shared by every handler that is not given its own writer executor.
+    private static final ExecutorService DEFAULT_WRITER_EXECUTOR = Executors.newCachedThreadPool((runnable) -> {
+        Thread thread = new Thread(runnable, "ServerApiHttpHandler-writer-" + WRITER_THREAD_COUNT.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    private static final ScheduledExecutorService DEADLINE_SCHEDULER = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+        Thread thread = new Thread(runnable, "ServerApiHttpHandler-deadlines");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    // Matches are reused between requests on each thread, so routing does not allocate.
+    private static final ThreadLocal<RouteTable.Match<RoutedApiHandler>> ROUTE_MATCHES = ThreadLocal.withInitial(RouteTable.Match::new);
+    
+    protected final RouteTable<RoutedApiHandler> routes = new RouteTable<>();
+    // Exact-path handlers, consulted when no registered route matches.
     protected Map<String, ApiHandler> apiHandlers;
+    protected Executor writerExecutor = DEFAULT_WRITER_EXECUTOR;
+    protected int defaultPageLimit = DEFAULT_PAGE_LIMIT;
+    protected int maximumPageLimit = DEFAULT_MAXIMUM_PAGE_LIMIT;
     
     public ServerApiHttpHandler() {
         this.apiHandlers = new HashMap<>();
@@ -41,21 +87,459 @@ public class ServerApiHttpHandler extends CallbackJsonHttpHandler<Object>{
         return this.apiHandlers;
     }
 
+    public Executor getWriterExecutor() {
+        return writerExecutor;
+    }
+
+    /**
+     * Set the executor that writes the responses of asynchronous handlers, so
+     * that the server's exchange threads are free while results are pending.
+     * 
+     * @param writerExecutor 
+     */
+    public void setWriterExecutor(Executor writerExecutor) {
+        this.writerExecutor = writerExecutor;
+    }
+    
+    public int getDefaultPageLimit() {
+        return defaultPageLimit;
+    }
+
+    /**
+     * Set the number of items in a page when a request does not give a
+     * limit.
+     * 
+     * @param defaultPageLimit 
+     */
+    public void setDefaultPageLimit(int defaultPageLimit) {
+        this.defaultPageLimit = defaultPageLimit;
+    }
+
+    public int getMaximumPageLimit() {
+        return maximumPageLimit;
+    }
+
+    /**
+     * Set the largest number of items in a page, whatever limit a request
+     * gives.
+     * 
+     * @param maximumPageLimit 
+     */
+    public void setMaximumPageLimit(int maximumPageLimit) {
+        this.maximumPageLimit = maximumPageLimit;
+    }
+    
+    public void register(String pattern, ApiHandler handler) {
+        register(RouteTable.ANY_METHOD, pattern, handler);
+    }
+    
+    public void register(String method, String pattern, ApiHandler handler) {
+        routes.add(method, pattern, (exchange, queryParameters, pathParameters, callback) -> {
+            handler.handle(exchange, queryParameters, callback);
+        });
+    }
+    
+    /**
+     * Register a handler for a route pattern, such as /items/{id} or
+     * /files/{path*}, and HTTP method.
+     * 
+     * @param method The HTTP method, or RouteTable.ANY_METHOD.
+     * @param pattern
+     * @param handler 
+     */
+    public void register(String method, String pattern, RoutedApiHandler handler) {
+        routes.add(method, pattern, handler);
+    }
+    
+    /**
+     * Register a handler whose request body is read as JSON into the given
+     * type before it is called. Bodies may be gzipped, and are limited to the
+     * maximum request body size.
+     * 
+     * @param <B>
+     * @param method
+     * @param pattern
+     * @param bodyType
+     * @param handler 
+     */
+    public <B> void register(String method, String pattern, Class<B> bodyType, BodyApiHandler<B> handler) {
+        ObjectReader reader = JsonMappers.reader(JsonMappers.Profile.HTTP, bodyType);
+        routes.add(method, pattern, (exchange, queryParameters, pathParameters, callback) -> {
+            B body;
+            try {
+                body = RequestBodies.read(exchange, reader, maximumRequestBodySize);
+            } catch (IOException ex) {
+                writeErrorResponse(exchange, callback, 400, "The request body could not be read.");
+                return;
+            }
+            handler.handle(exchange, queryParameters, pathParameters, body, callback);
+        });
+    }
+    
+    /**
+     * Register a handler whose request body, a JSON array, is read one
+     * element at a time as the handler iterates over it, so that large bodies
+     * are never held in memory whole.
+     * 
+     * @param <E>
+     * @param method
+     * @param pattern
+     * @param elementType
+     * @param handler 
+     */
+    public <E> void registerStreaming(String method, String pattern, Class<E> elementType, StreamingBodyApiHandler<E> handler) {
+        ObjectReader reader = JsonMappers.reader(JsonMappers.Profile.HTTP, elementType);
+        routes.add(method, pattern, (exchange, queryParameters, pathParameters, callback) -> {
+            RequestBodyIterator<E> elements;
+            try {
+                elements = RequestBodies.readValues(exchange, reader, maximumRequestBodySize);
+            } catch (IOException ex) {
+                writeErrorResponse(exchange, callback, 400, "The request body could not be read.");
+                return;
+            }
+            try {
+                handler.handle(exchange, queryParameters, pathParameters, elements, callback);
+            } catch (UncheckedIOException ex) {
+                writeErrorResponse(exchange, callback, 400, "The request body could not be read.");
+            }
+        });
+    }
+    
+    /**
+     * Register a handler for a collection that is served a page at a time.
+     * Requests choose the page with the limit and cursor query parameters,
+     * where the cursor is the "next" token of the previous page, and each
+     * page is written as {"items":[...],"next":token} as its items are read.
+     * 
+     * Handlers that would rather send a whole collection at once, without
+     * holding it in memory, can instead pass a Stream or Iterator to their
+     * callback, which is written as a JSON array as it is consumed.
+     * 
+     * @param <T>
+     * @param method
+     * @param pattern
+     * @param handler 
+     */
+    public <T> void registerPaged(String method, String pattern, PagedApiHandler<T> handler) {
+        routes.add(method, pattern, (exchange, queryParameters, pathParameters, callback) -> {
+            String position = CursorPage.decodeCursor(queryParameters.get("cursor"));
+            int limit = defaultPageLimit;
+            String limitParameter = queryParameters.get("limit");
+            if (limitParameter != null) {
+                try {
+                    limit = Integer.parseInt(limitParameter.trim());
+                } catch (NumberFormatException ex) {
+                    limit = 0;
+                }
+                if (limit <= 0) {
+                    writeErrorResponse(exchange, callback, 400, "Invalid limit: " + limitParameter);
+                    return;
+                }
+            }
+            CursorSource<T> source = handler.handle(exchange, queryParameters, pathParameters);
+            callback.accept(new CursorPage<>(source, position, Math.min(limit, maximumPageLimit)));
+        });
+    }
+    
+    public void registerAsync(String pattern, AsyncApiHandler handler) {
+        registerAsync(pattern, handler, null);
+    }
+    
+    /**
+     * Register an asynchronous handler, which is answered with 504 Gateway
+     * Timeout (and its result cancelled) if it does not complete within the
+     * given deadline.
+     * 
+     * @param pattern
+     * @param handler
+     * @param deadline The deadline, or null for none.
+     */
+    public void registerAsync(String pattern, AsyncApiHandler handler, Duration deadline) {
+        registerAsync(RouteTable.ANY_METHOD, pattern, (exchange, queryParameters, pathParameters) -> {
+            return handler.handle(exchange, queryParameters);
+        }, deadline);
+    }
+    
+    public void registerAsync(String method, String pattern, RoutedAsyncApiHandler handler, Duration deadline) {
+        routes.add(method, pattern, (exchange, queryParameters, pathParameters, callback) -> {
+            handleAsync(exchange, handler.handle(exchange, queryParameters, pathParameters), deadline, callback);
+        });
+    }
+
+    public void registerCached(String pattern, ResponseCache cache, ApiHandler handler) {
+        registerCached(pattern, cache, (exchange, queryParameters, pathParameters, callback) -> {
+            handler.handle(exchange, queryParameters, callback);
+        });
+    }
+    
+    /**
+     * Register a read-only handler for GET requests whose serialized results
+     * are kept in a cache, keyed by request path, query parameters, and
+     * authenticated principal, so that behind an authenticator each user has
+     * their own responses. Concurrent misses for the same key are coalesced, so the handler runs
+     * once and every waiting request is answered with its result. Only
+     * results passed to the callback are cached; errors are not.
+     * 
+     * @param pattern
+     * @param cache
+     * @param handler 
+     */
+    public void registerCached(String pattern, ResponseCache cache, RoutedApiHandler handler) {
+        routes.add("GET", pattern, (exchange, queryParameters, pathParameters, callback) -> {
+            handleCached(exchange, queryParameters, pathParameters, callback, cache, handler);
+        });
+    }
+
+    /**
+     * Register a batch endpoint for POST requests, through which clients can
+     * make many calls to this handler's other endpoints in one request.
+     * 
+     * @param pattern
+     * @return The batch endpoint, for configuration.
+     */
+    public BatchApiHandler enableBatch(String pattern) {
+        BatchApiHandler batchHandler = new BatchApiHandler(this);
+        routes.add("POST", pattern, batchHandler);
+        return batchHandler;
+    }
+
     @Override
     public void simpleHandle(HttpExchange exchange, Map<String, String> queryParameters, Consumer<Object> callback) {
         String requestPath = exchange.getRequestURI().getPath();
-        if (requestPath.startsWith(exchange.getHttpContext().getPath())) {
-            requestPath = requestPath.substring(exchange.getHttpContext().getPath().length());
+        String contextPath = exchange.getHttpContext().getPath();
+        int start = requestPath.startsWith(contextPath) ? contextPath.length() : 0;
+        
+        // Requests are recorded under the pattern they matched, so that metrics are kept per endpoint rather than per path.
+        JsonResponse<?> response = callback instanceof JsonResponse ? (JsonResponse<?>) callback : null;
+        
+        RouteTable.Match<RoutedApiHandler> match = ROUTE_MATCHES.get();
+        switch (routes.match(exchange.getRequestMethod(), requestPath, start, match)) {
+            case Found:
+                if (response != null) {
+                    response.setRoute(match.getRouteName(contextPath));
+                }
+                match.getHandler().handle(exchange, queryParameters, match.getParameters(), callback);
+                break;
+            case MethodNotAllowed:
+                if (response != null) {
+                    response.setRoute(match.getRouteName(contextPath));
+                }
+                exchange.getResponseHeaders().set("Allow", match.getAllowedMethods());
+                writeErrorResponse(exchange, callback, 405, "Method " + exchange.getRequestMethod() + " is not allowed for endpoint: " + requestPath);
+                break;
+            default:
+                ApiHandler handler = apiHandlers.get(requestPath.substring(start));
+                if (handler != null) {
+                    if (response != null) {
+                        response.setRoute(requestPath);
+                    }
+                    handler.handle(exchange, queryParameters, callback);
+                } else {
+                    writeErrorResponse(exchange, callback, 404, "Invalid endpoint: " + requestPath);
+                }
+        }
+    }
+    
+    protected void handleCached(HttpExchange exchange, Map<String, String> queryParameters, PathParameters pathParameters, Consumer<Object> callback, ResponseCache cache, RoutedApiHandler handler) {
+        String key = ResponseCache.key(exchange.getRequestURI().getPath(), queryParameters, exchange.getPrincipal());
+        ResponseCache.Entry entry = cache.get(key);
+        if (entry != null) {
+            writeCachedResponse(exchange, callback, entry, null);
+            return;
         }
         
-        apiHandlers.getOrDefault(requestPath, (defaultExchange, defaultQueryParameters, defaultCallback) -> {
-            defaultCallback.accept(new Object() {
-                @JsonProperty public String error = "Invalid endpoint: " + defaultExchange.getRequestURI().getPath();
+        ObjectWriter writer = responseWriter(queryParameters);
+        CompletableFuture<ResponseCache.Entry> future = cache.load(key, (loading) -> {
+            handler.handle(exchange, queryParameters, pathParameters, new CacheLoad(cache, writer, loading));
+        });
+        
+        if (future.isDone()) {
+            future.whenComplete((result, throwable) -> {
+                writeCachedResponse(exchange, callback, result, throwable);
             });
-        }).handle(exchange, queryParameters, callback);
+        } else {
+            // Waiting requests are answered from the writer executor, so they do not hold the thread that completes the computation.
+            future.whenCompleteAsync((result, throwable) -> {
+                writeCachedResponse(exchange, callback, result, throwable);
+            }, writerExecutor);
+        }
+    }
+    
+    protected ResponseCache.Entry serializeForCache(ResponseCache cache, ObjectWriter writer, Object result) throws IOException {
+        byte[] body = writer.writeValueAsBytes(result);
+        byte[] gzippedBody = null;
+        if (compression.isEnabled() && body.length >= compression.getMinimumSize()) {
+            gzippedBody = compression.gzip(body);
+            if (gzippedBody.length >= body.length) {
+                gzippedBody = null;
+            }
+        }
+        return cache.createEntry(body, gzippedBody);
+    }
+    
+    /**
+     * The callback given to a cached handler, which completes the cache's
+     * pending load rather than writing to the exchange, so that errors the
+     * handler answers with also release the waiting requests.
+     */
+    protected class CacheLoad implements ResponseCallback<Object> {
+        private final ResponseCache cache;
+        private final ObjectWriter writer;
+        private final CompletableFuture<ResponseCache.Entry> loading;
+
+        protected CacheLoad(ResponseCache cache, ObjectWriter writer, CompletableFuture<ResponseCache.Entry> loading) {
+            this.cache = cache;
+            this.writer = writer;
+            this.loading = loading;
+        }
+
+        @Override
+        public void accept(Object result) {
+            try {
+                loading.complete(serializeForCache(cache, writer, result));
+            } catch (Exception ex) {
+                loading.completeExceptionally(ex);
+            }
+        }
+
+        @Override
+        public void fail(int statusCode, String message) {
+            loading.completeExceptionally(new HttpStatusException(statusCode, message));
+        }
+
+        @Override
+        public void respondSerialized(int statusCode, byte[] body, byte[] gzippedBody) {
+            if (statusCode == 200) {
+                loading.complete(cache.createEntry(body, gzippedBody));
+            } else {
+                loading.completeExceptionally(new HttpStatusException(statusCode, new String(body, StandardCharsets.UTF_8)));
+            }
+        }
+    }
+    
+    private void writeCachedResponse(HttpExchange exchange, Consumer<Object> callback, ResponseCache.Entry entry, Throwable throwable) {
+        if (throwable != null) {
+            writeFailure(exchange, callback, throwable);
+            return;
+        }
+        try {
+            writeSerializedJsonResponse(exchange, callback, 200, entry.getBody(), entry.getGzippedBody());
+        } catch (IOException ex) {
+            // The client has most likely gone away; there is nobody left to answer.
+            exchange.close();
+        }
+    }
+    
+    protected void handleAsync(HttpExchange exchange, CompletionStage<?> stage, Duration deadline, Consumer<Object> callback) {
+        CompletableFuture<?> future = stage.toCompletableFuture();
+        AtomicBoolean responded = new AtomicBoolean(false);
+        
+        ScheduledFuture<?> timeout = null;
+        if (deadline != null) {
+            timeout = DEADLINE_SCHEDULER.schedule(() -> {
+                if (responded.compareAndSet(false, true)) {
+                    future.cancel(true);
+                    writerExecutor.execute(() -> {
+                        writeErrorResponse(exchange, callback, 504, "Request exceeded its deadline of " + deadline.toMillis() + "ms.");
+                    });
+                }
+            }, deadline.toNanos(), TimeUnit.NANOSECONDS);
+        }
+        
+        ScheduledFuture<?> scheduledTimeout = timeout;
+        future.whenCompleteAsync((result, throwable) -> {
+            if (scheduledTimeout != null) {
+                scheduledTimeout.cancel(false);
+            }
+            if (!responded.compareAndSet(false, true)) {
+                return;
+            }
+            
+            if (throwable == null) {
+                try {
+                    callback.accept(result);
+                } catch (Exception ex) {
+                    // The client has most likely gone away; there is nobody left to answer.
+                    exchange.close();
+                }
+            } else {
+                writeFailure(exchange, callback, throwable);
+            }
+        }, writerExecutor);
+    }
+    
+    private void writeFailure(HttpExchange exchange, Consumer<Object> callback, Throwable throwable) {
+        Throwable cause = unwrap(throwable);
+        if (cause instanceof HttpStatusException) {
+            writeErrorResponse(exchange, callback, ((HttpStatusException) cause).getStatusCode(), cause.getMessage());
+        } else if (cause instanceof TimeoutException) {
+            writeErrorResponse(exchange, callback, 504, "Request timed out.");
+        } else if (cause instanceof CancellationException) {
+            writeErrorResponse(exchange, callback, 503, "Request was cancelled.");
+        } else {
+            writeErrorResponse(exchange, callback, 500, String.valueOf(cause.getMessage()));
+        }
+    }
+    
+    private static Throwable unwrap(Throwable throwable) {
+        while ((throwable instanceof CompletionException || throwable instanceof ExecutionException) && throwable.getCause() != null) {
+            throwable = throwable.getCause();
+        }
+        return throwable;
     }
     
     public interface ApiHandler {
         public void handle(HttpExchange exchange, Map<String, String> queryParameters, Consumer<Object> callback);
     }
-}
\ No newline at end of file
+    
+    /**
+     * A handler that also receives the parameters captured by its route. The
+     * parameters are only valid until the handler returns.
+     */
+    public interface RoutedApiHandler {
+        public void handle(HttpExchange exchange, Map<String, String> queryParameters, PathParameters pathParameters, Consumer<Object> callback);
+    }
+    
+    /**
+     * A handler that also receives its request body, read as JSON.
+     * 
+     * @param <B> 
+     */
+    public interface BodyApiHandler<B> {
+        public void handle(HttpExchange exchange, Map<String, String> queryParameters, PathParameters pathParameters, B body, Consumer<Object> callback);
+    }
+    
+    /**
+     * A handler that receives the elements of its request body as they are
+     * read. The elements must be consumed before the callback is called, as
+     * the request body cannot be read once the response has begun.
+     * 
+     * @param <E> 
+     */
+    public interface StreamingBodyApiHandler<E> {
+        public void handle(HttpExchange exchange, Map<String, String> queryParameters, PathParameters pathParameters, RequestBodyIterator<E> elements, Consumer<Object> callback);
+    }
+    
+    /**
+     * A handler for a collection served a page at a time, which returns the
+     * source its pages are read from.
+     * 
+     * @param <T> 
+     */
+    public interface PagedApiHandler<T> {
+        public CursorSource<T> handle(HttpExchange exchange, Map<String, String> queryParameters, PathParameters pathParameters);
+    }
+    
+    /**
+     * A handler that returns its result as a CompletionStage, rather than
+     * blocking an exchange thread until it is available. Completing the stage
+     * exceptionally with an HttpStatusException answers with that status.
+     */
+    public interface AsyncApiHandler {
+        public CompletionStage<?> handle(HttpExchange exchange, Map<String, String> queryParameters);
+    }
+    
+    public interface RoutedAsyncApiHandler {
+        public CompletionStage<?> handle(HttpExchange exchange, Map<String, String> queryParameters, PathParameters pathParameters);
+    }
+}
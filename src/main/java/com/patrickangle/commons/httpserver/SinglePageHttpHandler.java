@@ -11,19 +11,81 @@ import com.sun.net.httpserver.HttpHandler;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 /**
+ * Serves a single page, such as the shell of a single page application, for
+ * every path within its context.
+ *
+ * The page is kept in memory as UTF-8, along with a gzipped variant and a
+ * strong ETag, and is only encoded again when getPageContents() returns
+ * different contents or the handler is invalidated. The gzipped variant is
+ * sent with the ETag plus a -gzip suffix. Clients revalidating an unchanged
+ * page are answered with 304 Not Modified.
  *
  * @author Patrick Angle
  */
 public abstract class SinglePageHttpHandler implements HttpHandler {
+    public static final String DEFAULT_CACHE_CONTROL = "no-cache";
+
+    private static class EncodedPage {
+
+        private final String contents;
+        private final byte[] body;
+        private final byte[] gzippedBody;
+        private final String eTag;
+
+        EncodedPage(String contents, byte[] body, byte[] gzippedBody, String eTag) {
+            this.contents = contents;
+            this.body = body;
+            this.gzippedBody = gzippedBody;
+            this.eTag = eTag;
+        }
+    }
+
+    protected ResponseCompression compression = new ResponseCompression();
+    protected String cacheControl = DEFAULT_CACHE_CONTROL;
+    
+    private volatile EncodedPage encodedPage = null;
     
     public abstract String getPageContents();
     public abstract String getMimeType();
 
+    public ResponseCompression getCompression() {
+        return compression;
+    }
+
+    public void setCompression(ResponseCompression compression) {
+        this.compression = compression;
+        invalidate();
+    }
+
+    public String getCacheControl() {
+        return cacheControl;
+    }
+
+    /**
+     * Set the Cache-Control header sent with the page. The default,
+     * "no-cache", has browsers revalidate each time, which is answered with
+     * 304 Not Modified when the page is unchanged.
+     *
+     * @param cacheControl The header value, or null to omit the header.
+     */
+    public void setCacheControl(String cacheControl) {
+        this.cacheControl = cacheControl;
+    }
+
+    /**
+     * Discard the encoded page, so that it is encoded again on the next
+     * request.
+     */
+    public void invalidate() {
+        encodedPage = null;
+    }
+
     @Override
     public void handle(HttpExchange he) throws IOException {
         String requestPath = he.getRequestURI().getPath();
@@ -35,14 +97,57 @@ public abstract class SinglePageHttpHandler implements HttpHandler {
     }
     
     public void handleStringRequest(String file, HttpExchange he) throws IOException {
-        byte[] response = file.getBytes();//Files.bytesFromFile(file);
-
+        EncodedPage page = encode(file);
         
-        he.getResponseHeaders().add("Content-Type", getMimeType());
-        he.sendResponseHeaders(200, response.length);
-        OutputStream os = he.getResponseBody();
-        os.write(response);
-        os.close();
+        he.getResponseHeaders().add("Content-Type", contentType(getMimeType()));
+        // The gzipped page is a different representation, so it has its own tag, and a 304 must vary as the 200 does.
+        compression.addVaryHeader(he);
+        String gzipETag = page.gzippedBody != null ? ConditionalRequests.gzipETag(page.eTag) : null;
+        he.getResponseHeaders().add("ETag", compression.sendsPrecompressed(he, page.body, page.gzippedBody) ? gzipETag : page.eTag);
+        if (cacheControl != null) {
+            he.getResponseHeaders().add("Cache-Control", cacheControl);
+        }
+        
+        if (ConditionalRequests.isNotModified(he.getRequestHeaders(), page.eTag, gzipETag, -1)) {
+            ConditionalRequests.sendNotModified(he);
+            return;
+        }
+        
+        compression.sendPrecompressedResponse(he, 200, page.body, page.gzippedBody);
+    }
+    
+    private EncodedPage encode(String contents) throws IOException {
+        EncodedPage page = encodedPage;
+        // Comparing the strings is far cheaper than encoding, hashing and compressing them again.
+        if (page != null && (page.contents == contents || page.contents.equals(contents))) {
+            return page;
+        }
+        
+        byte[] body = contents.getBytes(StandardCharsets.UTF_8);
+        String eTag = FileCache.strongETag(body);
+        if (page != null && page.eTag.equals(eTag)) {
+            return page;
+        }
+        
+        byte[] gzippedBody = null;
+        if (compression.isCompressible(getMimeType()) && body.length >= compression.getMinimumSize()) {
+            gzippedBody = compression.gzip(body);
+            if (gzippedBody.length >= body.length) {
+                gzippedBody = null;
+            }
+        }
+        
+        page = new EncodedPage(contents, body, gzippedBody, eTag);
+        encodedPage = page;
+        return page;
+    }
+    
+    private static String contentType(String mimeType) {
+        // The page is always encoded as UTF-8, so text without a declared charset must be labelled as such.
+        if (mimeType != null && mimeType.startsWith("text/") && !mimeType.toLowerCase().contains("charset")) {
+            return mimeType + "; charset=utf-8";
+        }
+        return mimeType;
     }
 
 }
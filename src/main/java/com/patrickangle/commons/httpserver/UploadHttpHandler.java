@@ -0,0 +1,445 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.httpserver;
+
+import com.patrickangle.commons.logging.Logging;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Accepts file uploads into a document directory, streaming each one to disk
+ * so that memory use is the same however large the upload is.
+ *
+ * A PUT, or a POST that is not multipart, stores its body at the request
+ * path. A multipart/form-data POST stores every part that has a file name in
+ * the directory at the request path, under that file name. Each file is
+ * written to a temporary file beside its destination through a FileChannel,
+ * using per-thread buffers, and its checksum is computed as it is written.
+ * Only once the whole upload has arrived, every part of a multipart body
+ * included, are the files moved into place, each atomically, so a failed or
+ * oversized upload never replaces an existing file and readers never see a
+ * partial one. Should a move itself fail, as when a file appears at a
+ * destination during the upload while overwriting is disabled, the files
+ * already moved stay in place and the rest are discarded.
+ *
+ * Responds 201 with a JSON description of the stored files, or an error: 403
+ * for a path outside the document directory, 405 for other methods, 409 for
+ * an existing file when overwriting is disabled, 413 for an upload larger
+ * than the maximum size, and 415 for a multipart body without a boundary or
+ * an unsupported Content-Encoding.
+ *
+ * @author Patrick Angle
+ */
+public class UploadHttpHandler implements HttpHandler {
+
+    public static final long DEFAULT_MAXIMUM_SIZE = 1024L * 1024 * 1024;
+    public static final String DEFAULT_CHECKSUM_ALGORITHM = "SHA-256";
+
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+    private static final int MULTIPART_BUFFER_SIZE = 16 * 1024;
+
+    private static class Buffers {
+
+        private final ByteBuffer transfer = ByteBuffer.allocate(TRANSFER_BUFFER_SIZE);
+        private final byte[] multipart = new byte[MULTIPART_BUFFER_SIZE];
+    }
+
+    // Uploads are handled one per thread, so each thread keeps one set of buffers for all of them.
+    private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+    protected File documentDirectory;
+    protected long maximumSize = DEFAULT_MAXIMUM_SIZE;
+    protected String checksumAlgorithm = DEFAULT_CHECKSUM_ALGORITHM;
+    protected boolean overwrite = true;
+    protected boolean sync = false;
+    protected HttpMetrics metrics = null;
+
+    public UploadHttpHandler(File documentDirectory) {
+        this.documentDirectory = documentDirectory;
+    }
+
+    public File getDocumentDirectory() {
+        return documentDirectory;
+    }
+
+    public void setDocumentDirectory(File documentDirectory) {
+        this.documentDirectory = documentDirectory;
+    }
+
+    public long getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * Set the largest request body, after decompression, that will be
+     * accepted. For a multipart upload this is the size of the whole body.
+     * Long.MAX_VALUE effectively removes the limit.
+     *
+     * @param maximumSize
+     */
+    public void setMaximumSize(long maximumSize) {
+        if (maximumSize < 0) {
+            throw new IllegalArgumentException("Maximum size must not be negative.");
+        }
+        this.maximumSize = maximumSize;
+    }
+
+    public String getChecksumAlgorithm() {
+        return checksumAlgorithm;
+    }
+
+    /**
+     * Set the MessageDigest algorithm used to compute the checksum reported
+     * for each file, or null to compute none.
+     *
+     * @param checksumAlgorithm
+     */
+    public void setChecksumAlgorithm(String checksumAlgorithm) {
+        this.checksumAlgorithm = checksumAlgorithm;
+    }
+
+    public boolean isOverwrite() {
+        return overwrite;
+    }
+
+    /**
+     * Set whether an upload may replace an existing file. If not, uploads to
+     * an existing file are refused with 409.
+     *
+     * @param overwrite
+     */
+    public void setOverwrite(boolean overwrite) {
+        this.overwrite = overwrite;
+    }
+
+    public boolean isSync() {
+        return sync;
+    }
+
+    /**
+     * Set whether each file is forced to the storage device before it is
+     * moved into place, so that a stored file survives a crash of the
+     * machine, at the cost of waiting for the device on every upload.
+     *
+     * @param sync
+     */
+    public void setSync(boolean sync) {
+        this.sync = sync;
+    }
+
+    public HttpMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Set the registry that requests are recorded in, under the context path,
+     * or null to record nothing.
+     *
+     * @param metrics
+     */
+    public void setMetrics(HttpMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void handle(HttpExchange he) throws IOException {
+        HttpMetrics metrics = this.metrics;
+        if (metrics == null) {
+            serve(he);
+            return;
+        }
+
+        long startNanos = System.nanoTime();
+        ResponseStatistics statistics = ResponseStatistics.begin();
+        boolean completed = false;
+        try {
+            serve(he);
+            completed = true;
+        } finally {
+            long elapsedNanos = System.nanoTime() - startNanos;
+            long writeNanos = statistics.getWriteNanos();
+            metrics.route(he.getHttpContext().getPath()).record(completed ? he.getResponseCode() : -1, elapsedNanos, HttpMetrics.requestContentLength(he), statistics.getBodyBytes(), statistics.getWireBytes(), elapsedNanos - writeNanos, writeNanos);
+        }
+    }
+
+    protected void serve(HttpExchange he) throws IOException {
+        try {
+            String method = he.getRequestMethod();
+            if (!method.equals("PUT") && !method.equals("POST")) {
+                he.getResponseHeaders().add("Allow", "PUT, POST");
+                throw new HttpStatusException(405, "Uploads must be sent with PUT or POST.");
+            }
+
+            String requestPath = he.getRequestURI().getPath();
+            if (requestPath.startsWith(he.getHttpContext().getPath())) {
+                requestPath = requestPath.substring(he.getHttpContext().getPath().length());
+            }
+
+            List<StagedFile> staged = new ArrayList<>();
+            List<Map<String, Object>> files = new ArrayList<>();
+            try {
+                String contentType = he.getRequestHeaders().getFirst("Content-Type");
+                if (method.equals("POST") && contentType != null && contentType.toLowerCase(Locale.ROOT).startsWith("multipart/")) {
+                    String boundary = MultipartStream.boundary(contentType);
+                    if (boundary == null) {
+                        throw new HttpStatusException(415, "The multipart body has no boundary.");
+                    }
+                    Path directory = resolve(requestPath);
+                    try (InputStream body = RequestBodies.open(he, maximumSize)) {
+                        MultipartStream parts = new MultipartStream(body, boundary, BUFFERS.get().multipart);
+                        while (parts.nextPart()) {
+                            String fileName = fileName(MultipartStream.dispositionParameter(parts.header("content-disposition"), "filename"));
+                            if (fileName != null) {
+                                Path target = directory.resolve(fileName);
+                                staged.add(stage(parts::read, target, requestPath.endsWith("/") ? requestPath + fileName : requestPath + "/" + fileName));
+                            }
+                        }
+                    }
+                } else {
+                    if (requestPath.isEmpty() || requestPath.endsWith("/")) {
+                        throw new HttpStatusException(403, "Uploads must name a file.");
+                    }
+                    Path target = resolve(requestPath);
+                    try (InputStream body = RequestBodies.open(he, maximumSize)) {
+                        staged.add(stage(body::read, target, requestPath));
+                    }
+                    he.getResponseHeaders().add("Location", he.getRequestURI().getPath());
+                }
+
+                // Nothing is moved into place until the whole body has been read, so a failure part way leaves no file replaced.
+                for (StagedFile file : staged) {
+                    move(file.temporary, file.target, file.requestPath);
+                    file.moved = true;
+                    files.add(file.describe());
+                }
+            } finally {
+                for (StagedFile file : staged) {
+                    file.discard();
+                }
+            }
+
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("files", files);
+            sendJson(he, 201, result);
+        } catch (HttpStatusException ex) {
+            sendJson(he, ex.getStatusCode(), new ApiError(ex.getMessage()));
+        } finally {
+            he.close();
+        }
+    }
+
+    /**
+     * @param requestPath A path relative to the document directory.
+     * @return The absolute path that a request path refers to.
+     * @throws HttpStatusException With status 403 if the path is outside of
+     * the document directory.
+     */
+    protected Path resolve(String requestPath) {
+        Path root = documentDirectory.toPath().toAbsolutePath().normalize();
+        String relativePath = requestPath;
+        while (relativePath.startsWith("/")) {
+            relativePath = relativePath.substring(1);
+        }
+        Path path = root.resolve(relativePath).normalize();
+        if (!path.startsWith(root)) {
+            throw new HttpStatusException(403, "The path is outside of the document directory.");
+        }
+        return path;
+    }
+
+    /**
+     * @param fileName A file name sent by the client, which may include a path.
+     * @return The last element of a file name, or null if it has none.
+     */
+    private static String fileName(String fileName) {
+        if (fileName == null) {
+            return null;
+        }
+        fileName = fileName.substring(Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\')) + 1).trim();
+        if (fileName.isEmpty() || fileName.equals(".") || fileName.equals("..")) {
+            return null;
+        }
+        return fileName;
+    }
+
+    @FunctionalInterface
+    private interface Source {
+
+        int read(byte[] b, int off, int len) throws IOException;
+    }
+
+    /**
+     * A file written to its temporary location, awaiting the move into
+     * place.
+     */
+    private class StagedFile {
+
+        private final Path temporary;
+        private final Path target;
+        private final String requestPath;
+        private long size;
+        private String checksum;
+        private boolean moved = false;
+
+        StagedFile(Path temporary, Path target, String requestPath) {
+            this.temporary = temporary;
+            this.target = target;
+            this.requestPath = requestPath;
+        }
+
+        Map<String, Object> describe() {
+            Map<String, Object> file = new LinkedHashMap<>();
+            file.put("path", requestPath);
+            file.put("size", size);
+            if (checksum != null) {
+                file.put(checksumAlgorithm.toLowerCase(Locale.ROOT).replace("-", ""), checksum);
+            }
+            return file;
+        }
+
+        void discard() {
+            if (!moved) {
+                try {
+                    Files.deleteIfExists(temporary);
+                } catch (IOException ex) {
+                    Logging.exception(UploadHttpHandler.class, ex);
+                }
+            }
+        }
+    }
+
+    private StagedFile stage(Source source, Path target, String requestPath) throws IOException {
+        if (target.equals(documentDirectory.toPath().toAbsolutePath().normalize()) || Files.isDirectory(target)) {
+            throw new HttpStatusException(409, "A directory exists at " + requestPath + ".");
+        }
+        if (!overwrite && Files.exists(target)) {
+            throw new HttpStatusException(409, "A file already exists at " + requestPath + ".");
+        }
+        Files.createDirectories(target.getParent());
+
+        MessageDigest digest = null;
+        if (checksumAlgorithm != null) {
+            try {
+                digest = MessageDigest.getInstance(checksumAlgorithm);
+            } catch (NoSuchAlgorithmException ex) {
+                Logging.exception(UploadHttpHandler.class, ex);
+                throw new HttpStatusException(500, "The checksum algorithm " + checksumAlgorithm + " is not available.", ex);
+            }
+        }
+
+        // The temporary file is beside the target, so that moving it into place is a rename on the same file system.
+        // It is created with the default permissions, rather than through createTempFile, so the stored file is readable as usual.
+        Path temporary = target.resolveSibling(".upload-" + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".part");
+        StagedFile staged = new StagedFile(temporary, target, requestPath);
+        boolean written = false;
+        try {
+            long size = 0;
+            ByteBuffer buffer = BUFFERS.get().transfer;
+            byte[] bytes = buffer.array();
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+                int n;
+                while ((n = source.read(bytes, 0, bytes.length)) >= 0) {
+                    if (digest != null) {
+                        digest.update(bytes, 0, n);
+                    }
+                    buffer.clear().limit(n);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    size += n;
+                }
+                if (sync) {
+                    channel.force(true);
+                }
+            }
+            staged.size = size;
+            staged.checksum = digest != null ? hex(digest.digest()) : null;
+            written = true;
+            return staged;
+        } finally {
+            if (!written) {
+                staged.discard();
+            }
+        }
+    }
+
+    private void move(Path temporary, Path target, String requestPath) throws IOException {
+        try {
+            if (overwrite) {
+                try {
+                    Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException ex) {
+                    Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } else {
+                // Creating a link fails atomically if the target exists, where a move checks and then renames.
+                try {
+                    Files.createLink(target, temporary);
+                } catch (FileAlreadyExistsException ex) {
+                    throw ex;
+                } catch (UnsupportedOperationException | FileSystemException ex) {
+                    // File systems without hard links fall back to a move, which may replace a file created in the meantime.
+                    Files.move(temporary, target);
+                    return;
+                }
+                Files.delete(temporary);
+            }
+        } catch (FileAlreadyExistsException ex) {
+            throw new HttpStatusException(409, "A file already exists at " + requestPath + ".", ex);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        char[] digits = "0123456789abcdef".toCharArray();
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = digits[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = digits[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private static void sendJson(HttpExchange he, int statusCode, Object object) throws IOException {
+        byte[] body = CallbackJsonHttpHandler.JSON_WRITER.writeValueAsBytes(object);
+        he.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        he.sendResponseHeaders(statusCode, body.length);
+        try (OutputStream out = he.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.json;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Reads the elements of a JSON array one at a time, as they are iterated
+ * over, so that memory use is bounded by the size of an element rather than
+ * the size of the array. The underlying parser is closed once the last
+ * element has been read, or when the iterator is closed, which should be done
+ * when iteration stops early.
+ *
+ * Failures to read are thrown from hasNext() and next() as
+ * UncheckedIOExceptions.
+ *
+ * @author Patrick Angle
+ * @param <T>
+ */
+public class JsonArrayIterator<T> implements Iterator<T>, Closeable {
+
+    private final JsonParser parser;
+    private final ObjectReader reader;
+    private boolean advanced = false;
+    private boolean finished = false;
+
+    /**
+     * @param parser A parser positioned before the array's opening bracket.
+     * @param reader A reader for the type of the elements.
+     * @throws IOException If the parser is not at the start of an array.
+     */
+    public JsonArrayIterator(JsonParser parser, ObjectReader reader) throws IOException {
+        this.parser = parser;
+        this.reader = reader;
+        JsonToken token = parser.nextToken();
+        if (token != JsonToken.START_ARRAY) {
+            parser.close();
+            throw new JsonParseException(parser, "Expected a JSON array, but found " + token + ".");
+        }
+    }
+
+    /**
+     * @param <T>
+     * @param reader A reader for the type of the elements.
+     * @param file
+     * @return An iterator over the elements of the array in a file.
+     * @throws IOException
+     */
+    public static <T> JsonArrayIterator<T> open(ObjectReader reader, File file) throws IOException {
+        return new JsonArrayIterator<>(reader.createParser(file), reader);
+    }
+
+    /**
+     * @param <T>
+     * @param reader A reader for the type of the elements.
+     * @param in A stream, which is closed along with the iterator.
+     * @return An iterator over the elements of the array in a stream.
+     * @throws IOException
+     */
+    public static <T> JsonArrayIterator<T> open(ObjectReader reader, InputStream in) throws IOException {
+        return new JsonArrayIterator<>(reader.createParser(in), reader);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (finished) {
+            return false;
+        }
+        if (!advanced) {
+            try {
+                JsonToken token = parser.nextToken();
+                if (token == null) {
+                    throw new JsonParseException(parser, "Unexpected end of input within a JSON array.");
+                } else if (token == JsonToken.END_ARRAY) {
+                    close();
+                    return false;
+                }
+            } catch (IOException ex) {
+                closeQuietly();
+                throw new UncheckedIOException(ex);
+            }
+            advanced = true;
+        }
+        return true;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        advanced = false;
+        try {
+            return reader.readValue(parser);
+        } catch (IOException ex) {
+            closeQuietly();
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * @return A sequential Stream over the remaining elements, which closes
+     * this iterator when it is closed.
+     */
+    public Stream<T> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED), false).onClose(this::closeQuietly);
+    }
+
+    @Override
+    public void close() throws IOException {
+        finished = true;
+        parser.close();
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
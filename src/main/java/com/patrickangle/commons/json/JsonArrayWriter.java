@@ -0,0 +1,116 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.json;
+
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SequenceWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+/**
+ * Writes a JSON array one element at a time, so that an array of any length
+ * can be written without holding its elements in memory. The array is opened
+ * when the writer is created and closed, with its closing bracket, when the
+ * writer is closed.
+ *
+ * Output is buffered and only flushed when the buffer fills, when
+ * {@link #flush()} is called, and on close.
+ *
+ * @author Patrick Angle
+ * @param <T>
+ */
+public class JsonArrayWriter<T> implements Closeable, Flushable {
+
+    private final SequenceWriter sequence;
+    private long count = 0;
+
+    private JsonArrayWriter(SequenceWriter sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * @param <T>
+     * @param writer The writer to write elements with.
+     * @param file
+     * @return A writer of an array to a file, replacing its contents.
+     * @throws IOException
+     */
+    public static <T> JsonArrayWriter<T> open(ObjectWriter writer, File file) throws IOException {
+        return new JsonArrayWriter<>(unflushed(writer).writeValuesAsArray(file));
+    }
+
+    /**
+     * @param <T>
+     * @param writer The writer to write elements with.
+     * @param out A stream, which is closed along with the writer.
+     * @return A writer of an array to a stream.
+     * @throws IOException
+     */
+    public static <T> JsonArrayWriter<T> open(ObjectWriter writer, OutputStream out) throws IOException {
+        return new JsonArrayWriter<>(unflushed(writer).writeValuesAsArray(out));
+    }
+
+    private static ObjectWriter unflushed(ObjectWriter writer) {
+        // By default every value is flushed as it is written, which for a file is a system call per element.
+        return writer.without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    }
+
+    /**
+     * Append an element to the array.
+     *
+     * @param element
+     * @throws IOException
+     */
+    public void write(T element) throws IOException {
+        sequence.write(element);
+        count++;
+    }
+
+    /**
+     * Append every element of an iterator to the array.
+     *
+     * @param elements
+     * @throws IOException
+     */
+    public void writeAll(Iterator<? extends T> elements) throws IOException {
+        while (elements.hasNext()) {
+            write(elements.next());
+        }
+    }
+
+    /**
+     * @return The number of elements written so far.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        sequence.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        sequence.close();
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.json;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Reads the records of a JSON Lines file, one JSON value per line. The file is
+ * memory mapped, and records are parsed lazily as they are iterated over, so
+ * a file of any size can be read without holding its records in memory.
+ *
+ * Iteration can start at any byte offset, such as one saved from
+ * {@link RecordIterator#getNextOffset()}, or at any record by number. Finding
+ * a record by number uses a sparse index of the offset of every Nth record,
+ * which is built by a single scan for line breaks the first time it is
+ * needed, after which a record is found by scanning forward from the nearest
+ * indexed one.
+ *
+ * The reader sees the file as it was when opened; it must be reopened to see
+ * records appended since. A final line without a line break is taken to be a
+ * record still being written, and is ignored. Blank lines are skipped and are
+ * not counted as records. Any number of iterators may be used at once, each
+ * by a single thread.
+ *
+ * @author Patrick Angle
+ * @param <T>
+ */
+public class JsonLinesReader<T> implements Iterable<T>, Closeable {
+
+    public static final int DEFAULT_INDEX_INTERVAL = 1024;
+
+    private static final int SCAN_BLOCK_SIZE = 16 * 1024;
+
+    private final MappedFile file;
+    private final ObjectReader reader;
+    private final long end;
+
+    private long[] index = null;
+    private int indexInterval = 0;
+    private long recordCount = -1;
+
+    private JsonLinesReader(MappedFile file, ObjectReader reader) {
+        this.file = file;
+        this.reader = reader;
+        long position = file.size();
+        while (position > 0 && file.get(position - 1) != '\n') {
+            position--;
+        }
+        this.end = position;
+    }
+
+    /**
+     * @param <T>
+     * @param reader A reader for the type of the records.
+     * @param file
+     * @return A reader of the records in a file.
+     * @throws IOException
+     */
+    public static <T> JsonLinesReader<T> open(ObjectReader reader, File file) throws IOException {
+        return new JsonLinesReader<>(new MappedFile(file.toPath()), reader);
+    }
+
+    /**
+     * @return The number of bytes of complete lines in the file.
+     */
+    public long size() {
+        return end;
+    }
+
+    /**
+     * @return An iterator over every record in the file.
+     */
+    @Override
+    public RecordIterator iterator() {
+        return iterator(0);
+    }
+
+    /**
+     * @param offset A byte offset in the file. An offset within a line is
+     * moved forward to the start of the next line.
+     * @return An iterator over the records from an offset to the end of the
+     * file.
+     */
+    public RecordIterator iterator(long offset) {
+        long start = alignToLine(offset);
+        try {
+            return new RecordIterator(reader.createParser(file.open(start, end)), start);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * @param record The number of a record, counting from 0.
+     * @return An iterator over the records from a record to the end of the
+     * file.
+     * @throws IOException
+     */
+    public RecordIterator iteratorAtRecord(long record) throws IOException {
+        return iterator(getOffsetOfRecord(record));
+    }
+
+    /**
+     * @return A sequential Stream over every record in the file.
+     */
+    public Stream<T> stream() {
+        return iterator().stream();
+    }
+
+    /**
+     * @param record The number of a record, counting from 0.
+     * @return The record.
+     * @throws IOException
+     */
+    public T get(long record) throws IOException {
+        RecordIterator records = iteratorAtRecord(record);
+        try {
+            return records.next();
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        } finally {
+            records.close();
+        }
+    }
+
+    /**
+     * @return The number of records in the file, building the index if it has
+     * not been built.
+     * @throws IOException
+     */
+    public synchronized long getRecordCount() throws IOException {
+        if (index == null) {
+            buildIndex(DEFAULT_INDEX_INTERVAL);
+        }
+        return recordCount;
+    }
+
+    /**
+     * Build the index used to find records by number, replacing any index
+     * already built. A smaller interval finds records faster, at the cost of
+     * eight bytes per indexed record.
+     *
+     * @param interval The number of records between indexed records.
+     * @throws IOException
+     */
+    public synchronized void buildIndex(int interval) throws IOException {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("The index interval must be positive.");
+        }
+        long[] offsets = new long[64];
+        int offsetCount = 0;
+        long records = 0;
+        long lineStart = 0;
+        boolean content = false;
+        byte[] block = new byte[SCAN_BLOCK_SIZE];
+        try (InputStream in = file.open(0, end)) {
+            long blockStart = 0;
+            int n;
+            while ((n = in.read(block, 0, block.length)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    byte b = block[i];
+                    if (b == '\n') {
+                        if (content) {
+                            if (records % interval == 0) {
+                                if (offsetCount == offsets.length) {
+                                    offsets = Arrays.copyOf(offsets, offsetCount * 2);
+                                }
+                                offsets[offsetCount++] = lineStart;
+                            }
+                            records++;
+                            content = false;
+                        }
+                        lineStart = blockStart + i + 1;
+                    } else if (!content && !isWhitespace(b)) {
+                        content = true;
+                    }
+                }
+                blockStart += n;
+            }
+        }
+        this.index = Arrays.copyOf(offsets, offsetCount);
+        this.indexInterval = interval;
+        this.recordCount = records;
+    }
+
+    /**
+     * @param record The number of a record, counting from 0.
+     * @return The byte offset of the line holding a record.
+     * @throws IOException
+     * @throws IndexOutOfBoundsException If there is no such record.
+     */
+    public long getOffsetOfRecord(long record) throws IOException {
+        long[] index;
+        int interval;
+        synchronized (this) {
+            if (record < 0 || record >= getRecordCount()) {
+                throw new IndexOutOfBoundsException("Record " + record + " is not in a file of " + recordCount + " records.");
+            }
+            index = this.index;
+            interval = this.indexInterval;
+        }
+        long lineStart = index[(int) (record / interval)];
+        long remaining = record % interval;
+        if (remaining == 0) {
+            return lineStart;
+        }
+
+        boolean content = false;
+        byte[] block = new byte[SCAN_BLOCK_SIZE];
+        try (InputStream in = file.open(lineStart, end)) {
+            long blockStart = lineStart;
+            int n;
+            while ((n = in.read(block, 0, block.length)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    byte b = block[i];
+                    if (b == '\n') {
+                        if (content) {
+                            if (remaining == 0) {
+                                return lineStart;
+                            }
+                            remaining--;
+                            content = false;
+                        }
+                        lineStart = blockStart + i + 1;
+                    } else if (!content && !isWhitespace(b)) {
+                        content = true;
+                    }
+                }
+                blockStart += n;
+            }
+        }
+        throw new IOException("Record " + record + " was not found where the index placed it.");
+    }
+
+    /**
+     * Close the file. Iterators already created remain usable.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private long alignToLine(long offset) {
+        if (offset <= 0) {
+            return 0;
+        } else if (offset >= end) {
+            return end;
+        }
+        while (file.get(offset - 1) != '\n') {
+            offset++;
+        }
+        return offset;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\r' || b == '\t';
+    }
+
+    /**
+     * Reads records one at a time, as they are iterated over. Failures to read
+     * are thrown from hasNext() and next() as UncheckedIOExceptions.
+     */
+    public class RecordIterator implements Iterator<T>, Closeable {
+
+        private final JsonParser parser;
+        private final long start;
+        private long offset = -1;
+        private long nextOffset;
+        private boolean advanced = false;
+        private boolean finished = false;
+
+        private RecordIterator(JsonParser parser, long start) {
+            this.parser = parser;
+            this.start = start;
+            this.nextOffset = start;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (finished) {
+                return false;
+            }
+            if (!advanced) {
+                try {
+                    if (parser.nextToken() == null) {
+                        close();
+                        return false;
+                    }
+                } catch (IOException ex) {
+                    throw failure(ex);
+                }
+                advanced = true;
+            }
+            return true;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            advanced = false;
+            offset = start + tokenOffset();
+            try {
+                T record = reader.readValue(parser);
+                nextOffset = alignToLine(start + currentOffset());
+                return record;
+            } catch (IOException ex) {
+                throw failure(ex);
+            }
+        }
+
+        /**
+         * @return The byte offset of the record last returned by next(), or -1
+         * if none has been.
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return The byte offset from which iteration would continue after
+         * the record last returned by next(), which can be saved to resume
+         * reading later.
+         */
+        public long getNextOffset() {
+            return nextOffset;
+        }
+
+        /**
+         * @return A sequential Stream over the remaining records, which closes
+         * this iterator when it is closed.
+         */
+        public Stream<T> stream() {
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED), false).onClose(this::closeQuietly);
+        }
+
+        @Override
+        public void close() throws IOException {
+            finished = true;
+            parser.close();
+        }
+
+        private UncheckedIOException failure(IOException ex) {
+            closeQuietly();
+            long at = start + tokenOffset();
+            return new UncheckedIOException(new IOException("Invalid JSON Lines record at byte " + at + ": " + ex.getMessage(), ex));
+        }
+
+        // The location methods are deprecated in newer versions of Jackson, but their replacements are not in 2.9, which is still supported.
+        @SuppressWarnings("deprecation")
+        private long tokenOffset() {
+            return parser.getTokenLocation().getByteOffset();
+        }
+
+        @SuppressWarnings("deprecation")
+        private long currentOffset() {
+            return parser.getCurrentLocation().getByteOffset();
+        }
+
+        private void closeQuietly() {
+            try {
+                close();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.json;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * Appends records to a JSON Lines file, one JSON value per line. Records are
+ * serialized into a buffer and written to the file's channel when the buffer
+ * fills, when the writer is flushed, and on close, so appending a record
+ * rarely costs a system call.
+ *
+ * Records are only durable once they have been forced to the storage device.
+ * By default that is left to the operating system; a writer can instead
+ * force the file after a number of records, after an interval, or both, so
+ * that the cost of each force is shared by every record written since the
+ * last. All methods may be called from any number of threads.
+ *
+ * A file whose last line was left incomplete, as by a crash while a record
+ * was being written, has that line removed before anything is appended, just
+ * as {@link JsonLinesReader} ignores it, so that the new records stay
+ * readable.
+ *
+ * @author Patrick Angle
+ * @param <T>
+ */
+public class JsonLinesWriter<T> implements Closeable, Flushable {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private JsonGenerator generator;
+    private final ObjectWriter writer;
+    private final RecordBuffer buffer;
+
+    protected int bufferSize = DEFAULT_BUFFER_SIZE;
+    protected long syncRecords = 0;
+    protected Duration syncInterval = Duration.ZERO;
+
+    private long count = 0;
+    private long unsyncedRecords = 0;
+    private long lastSyncNanos = System.nanoTime();
+    private boolean closed = false;
+
+    private JsonLinesWriter(FileChannel channel, ObjectWriter writer) throws IOException {
+        this.channel = channel;
+        // Each record must fit on one line, and the line break between records is written here rather than by the generator.
+        this.writer = writer.without(SerializationFeature.INDENT_OUTPUT).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE).withRootValueSeparator("");
+        this.buffer = new RecordBuffer(DEFAULT_BUFFER_SIZE);
+        this.generator = this.writer.createGenerator(buffer);
+    }
+
+    /**
+     * Open a file for appending, creating it if it does not exist.
+     *
+     * @param <T>
+     * @param writer The writer to serialize records with. Indentation is
+     * always disabled.
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static <T> JsonLinesWriter<T> open(ObjectWriter writer, File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        try {
+            long size = channel.size();
+            if (size > 0) {
+                long complete = completeLength(file, size);
+                if (complete < size) {
+                    channel.truncate(complete);
+                }
+            }
+            return new JsonLinesWriter<>(channel, writer);
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * @return The length of a file up to and including its last line break.
+     */
+    private static long completeLength(File file, long size) throws IOException {
+        // A channel opened for appending cannot also be read from.
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer block = ByteBuffer.allocate(4096);
+            long end = size;
+            while (end > 0) {
+                long start = Math.max(0, end - block.capacity());
+                block.clear().limit((int) (end - start));
+                while (block.hasRemaining()) {
+                    if (channel.read(block, start + block.position()) < 0) {
+                        break;
+                    }
+                }
+                for (int i = (int) (end - start) - 1; i >= 0; i--) {
+                    if (block.get(i) == '\n') {
+                        return start + i + 1;
+                    }
+                }
+                end = start;
+            }
+            return 0;
+        }
+    }
+
+    public synchronized int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Set the number of bytes buffered before they are written to the file.
+     *
+     * @param bufferSize
+     */
+    public synchronized void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public synchronized long getSyncRecords() {
+        return syncRecords;
+    }
+
+    /**
+     * Set the number of records after which the file is forced to the
+     * storage device, or 0 not to force it by count.
+     *
+     * @param syncRecords
+     */
+    public synchronized void setSyncRecords(long syncRecords) {
+        this.syncRecords = syncRecords;
+    }
+
+    public synchronized Duration getSyncInterval() {
+        return syncInterval;
+    }
+
+    /**
+     * Set the time after which a record written since the last force causes
+     * the file to be forced again, or zero not to force it by time. The
+     * interval is checked as records are written, not by a timer.
+     *
+     * @param syncInterval
+     */
+    public synchronized void setSyncInterval(Duration syncInterval) {
+        this.syncInterval = syncInterval;
+    }
+
+    /**
+     * @return The number of records written by this writer.
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Append a record.
+     *
+     * @param record
+     * @throws IOException
+     */
+    public synchronized void write(T record) throws IOException {
+        ensureOpen();
+        int mark = buffer.size();
+        try {
+            writer.writeValue(generator, record);
+            generator.flush();
+        } catch (IOException | RuntimeException ex) {
+            // A record that fails to serialize is discarded whole, so the file never holds part of one. The generator is
+            // left inside the record, and may hold part of it in its own buffer, so it is abandoned for a new one.
+            buffer.truncate(mark);
+            generator = writer.createGenerator(buffer);
+            throw ex;
+        }
+        buffer.write('\n');
+        count++;
+        unsyncedRecords++;
+
+        boolean syncDue = (syncRecords > 0 && unsyncedRecords >= syncRecords)
+                || (!syncInterval.isZero() && System.nanoTime() - lastSyncNanos >= syncInterval.toNanos());
+        if (syncDue) {
+            sync();
+        } else if (buffer.size() >= bufferSize) {
+            writeBuffer();
+        }
+    }
+
+    /**
+     * Write any buffered records to the file, without forcing it to the
+     * storage device.
+     *
+     * @throws IOException
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        ensureOpen();
+        writeBuffer();
+    }
+
+    /**
+     * Write any buffered records to the file, and force it to the storage
+     * device.
+     *
+     * @throws IOException
+     */
+    public synchronized void sync() throws IOException {
+        ensureOpen();
+        writeBuffer();
+        channel.force(false);
+        unsyncedRecords = 0;
+        lastSyncNanos = System.nanoTime();
+    }
+
+    /**
+     * Write any buffered records and close the file, forcing it to the
+     * storage device first if a sync policy is set.
+     *
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            if (syncRecords > 0 || !syncInterval.isZero()) {
+                sync();
+            } else {
+                writeBuffer();
+            }
+        } finally {
+            closed = true;
+            channel.close();
+        }
+    }
+
+    private void writeBuffer() throws IOException {
+        ByteBuffer bytes = buffer.toByteBuffer();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        buffer.truncate(0);
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("The writer is closed.");
+        }
+    }
+
+    /**
+     * A growable byte array that the generator writes into.
+     */
+    private static class RecordBuffer extends OutputStream {
+
+        private byte[] bytes;
+        private int size = 0;
+
+        RecordBuffer(int capacity) {
+            this.bytes = new byte[capacity];
+        }
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(size + 1);
+            bytes[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(size + len);
+            System.arraycopy(b, off, bytes, size, len);
+            size += len;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void truncate(int size) {
+            this.size = size;
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(bytes, 0, size);
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.json;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.patrickangle.commons.json.serialization.ColorDeserializer;
+import com.patrickangle.commons.json.serialization.ColorSerializer;
+import com.patrickangle.commons.json.serialization.StreamSerializer;
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.BaseStream;
+
+/**
+ * A registry of shared ObjectReaders and ObjectWriters, one set per
+ * configuration profile. Building an ObjectMapper and introspecting types for
+ * the first time cost far more than reading or writing a small document, so
+ * each profile's mapper is built once, on first use, and the reader for each
+ * type is created once and kept. Readers and writers are immutable and
+ * thread-safe, and share their mapper's serializer and deserializer caches.
+ *
+ * The mappers themselves are never handed out, so that no caller can change
+ * the configuration others depend on. Use {@link #newMapper(Profile)} for a
+ * mapper of the same configuration that can be modified.
+ *
+ * @author Patrick Angle
+ */
+public final class JsonMappers {
+
+    public enum Profile {
+        /**
+         * The configuration of {@link JsonObjects}: indented output, "@class"
+         * type information for properties of type Object, only annotated
+         * properties and creators, unknown properties ignored, and Colors.
+         */
+        DEFAULT,
+        /**
+         * The configuration of {@link JsonUtils}: only annotated properties
+         * and creators, unknown properties ignored, and Colors.
+         */
+        UTILS,
+        /**
+         * The configuration of the httpserver package: compact output, only
+         * annotated properties and creators, unknown properties ignored,
+         * Colors, and Streams written as arrays.
+         */
+        HTTP,
+        /**
+         * Jackson's own defaults.
+         */
+        PLAIN
+    }
+
+    private static class Registry {
+
+        private final ObjectMapper mapper;
+        private final ObjectWriter writer;
+        private final ObjectWriter prettyWriter;
+        private final Map<JavaType, ObjectReader> readers = new ConcurrentHashMap<>();
+
+        Registry(ObjectMapper mapper) {
+            this.mapper = mapper;
+            this.writer = mapper.writer();
+            this.prettyWriter = mapper.writerWithDefaultPrettyPrinter();
+        }
+
+        ObjectReader reader(JavaType type) {
+            ObjectReader reader = readers.get(type);
+            if (reader == null) {
+                reader = readers.computeIfAbsent(type, mapper::readerFor);
+            }
+            return reader;
+        }
+    }
+
+    private static final AtomicReferenceArray<Registry> REGISTRIES = new AtomicReferenceArray<>(Profile.values().length);
+
+    private JsonMappers() {
+    }
+
+    /**
+     * Build a new mapper with the configuration of a profile, for callers
+     * that need to configure it further. The shared readers and writers
+     * should be preferred wherever they will do.
+     *
+     * @param profile
+     * @return
+     */
+    @SuppressWarnings("deprecation")
+    public static ObjectMapper newMapper(Profile profile) {
+        ObjectMapper mapper = new ObjectMapper();
+        SimpleModule module = new SimpleModule();
+        switch (profile) {
+            case DEFAULT:
+                mapper.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
+                mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+                mapper.enable(SerializationFeature.INDENT_OUTPUT);
+                mapper.enableDefaultTypingAsProperty(ObjectMapper.DefaultTyping.JAVA_LANG_OBJECT, "@class");
+                mapper.disable(MapperFeature.AUTO_DETECT_CREATORS, MapperFeature.AUTO_DETECT_FIELDS, MapperFeature.AUTO_DETECT_GETTERS, MapperFeature.AUTO_DETECT_IS_GETTERS);
+                module.addDeserializer(Color.class, new ColorDeserializer());
+                module.addSerializer(Color.class, new ColorSerializer());
+                break;
+            case UTILS:
+                mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+                mapper.disable(MapperFeature.AUTO_DETECT_CREATORS, MapperFeature.AUTO_DETECT_FIELDS, MapperFeature.AUTO_DETECT_GETTERS, MapperFeature.AUTO_DETECT_IS_GETTERS);
+                mapper.configure(MapperFeature.INFER_CREATOR_FROM_CONSTRUCTOR_PROPERTIES, false);
+                module.addDeserializer(Color.class, new ColorDeserializer());
+                break;
+            case HTTP:
+                mapper.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
+                mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+                mapper.disable(MapperFeature.AUTO_DETECT_CREATORS, MapperFeature.AUTO_DETECT_FIELDS, MapperFeature.AUTO_DETECT_GETTERS, MapperFeature.AUTO_DETECT_IS_GETTERS);
+                module.addSerializer(Color.class, new ColorSerializer());
+                module.addDeserializer(Color.class, new ColorDeserializer());
+                module.addSerializer(BaseStream.class, new StreamSerializer());
+                break;
+            case PLAIN:
+            default:
+                return mapper;
+        }
+        mapper.registerModule(module);
+        return mapper;
+    }
+
+    /**
+     * @param profile
+     * @return A copy of a profile's shared mapper, along with the serializers
+     * it has already built, for callers that derive a configuration from it.
+     */
+    public static ObjectMapper copyMapper(Profile profile) {
+        return registry(profile).mapper.copy();
+    }
+
+    /**
+     * @param profile
+     * @return The shared writer of a profile.
+     */
+    public static ObjectWriter writer(Profile profile) {
+        return registry(profile).writer;
+    }
+
+    /**
+     * @param profile
+     * @return The shared writer of a profile, indenting its output.
+     */
+    public static ObjectWriter prettyWriter(Profile profile) {
+        return registry(profile).prettyWriter;
+    }
+
+    /**
+     * @param profile
+     * @param type
+     * @return The shared reader of a profile for a type.
+     */
+    public static ObjectReader reader(Profile profile, Class<?> type) {
+        Registry registry = registry(profile);
+        return registry.reader(registry.mapper.constructType(type));
+    }
+
+    /**
+     * @param profile
+     * @param type
+     * @return The shared reader of a profile for a generic type.
+     */
+    public static ObjectReader reader(Profile profile, TypeReference<?> type) {
+        Registry registry = registry(profile);
+        return registry.reader(registry.mapper.getTypeFactory().constructType(type));
+    }
+
+    /**
+     * @param profile
+     * @param type
+     * @return The shared reader of a profile for a type.
+     */
+    public static ObjectReader reader(Profile profile, JavaType type) {
+        return registry(profile).reader(type);
+    }
+
+    /**
+     * @param profile
+     * @param elementType
+     * @return The shared reader of a profile for an ArrayList of a type.
+     */
+    public static ObjectReader listReader(Profile profile, Class<?> elementType) {
+        Registry registry = registry(profile);
+        return registry.reader(registry.mapper.getTypeFactory().constructCollectionType(ArrayList.class, elementType));
+    }
+
+    /**
+     * @param profile
+     * @return The shared reader of a profile for a HashMap of String to
+     * Object.
+     */
+    public static ObjectReader mapReader(Profile profile) {
+        Registry registry = registry(profile);
+        return registry.reader(registry.mapper.getTypeFactory().constructMapType(HashMap.class, String.class, Object.class));
+    }
+
+    private static Registry registry(Profile profile) {
+        Registry registry = REGISTRIES.get(profile.ordinal());
+        if (registry == null) {
+            // Two threads may both build a mapper the first time; only the first one kept is ever used.
+            REGISTRIES.compareAndSet(profile.ordinal(), null, new Registry(newMapper(profile)));
+            registry = REGISTRIES.get(profile.ordinal());
+        }
+        return registry;
+    }
+}
@@ -16,96 +16,141 @@
  */
 package com.patrickangle.commons.json;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.MapperFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
-import com.fasterxml.jackson.databind.module.SimpleModule;
-import com.fasterxml.jackson.databind.type.CollectionType;
-import com.patrickangle.commons.json.serialization.ColorDeserializer;
-import com.patrickangle.commons.json.serialization.ColorSerializer;
-import java.awt.Color;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
 /**
  *
  * @author Patrick Angle
  */
 public class JsonObjects {
+    /**
+     * @return A new mapper with the configuration used by this class, which
+     * may be configured further. The static helpers share a single instance
+     * through {@link JsonMappers}, rather than building one each time.
+     */
     public static ObjectMapper defaultMapper() {
-        ObjectMapper mapper = new ObjectMapper();
-        mapper.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
-        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-        mapper.enable(SerializationFeature.INDENT_OUTPUT);
-        mapper.enableDefaultTypingAsProperty(ObjectMapper.DefaultTyping.JAVA_LANG_OBJECT, "@class");
-        mapper.disable(MapperFeature.AUTO_DETECT_CREATORS, MapperFeature.AUTO_DETECT_FIELDS, MapperFeature.AUTO_DETECT_GETTERS, MapperFeature.AUTO_DETECT_IS_GETTERS);
-
-        SimpleModule module = new SimpleModule();
-        module.addDeserializer(Color.class, new ColorDeserializer());
-        module.addSerializer(Color.class, new ColorSerializer());
-        
-        mapper.registerModule(module);
-
-        return mapper;
+        return JsonMappers.newMapper(JsonMappers.Profile.DEFAULT);
     }
     
     public static <T extends Object> T deserialize(Class<T> objectClass, String json) throws IOException {
-        return JsonObjects.defaultMapper().readValue(json, objectClass);
+        return JsonMappers.reader(JsonMappers.Profile.DEFAULT, objectClass).readValue(json);
     }
     
     public static <T extends Object> T deserialize(Class<T> objectClass, File jsonFile) throws IOException {
-        return JsonObjects.defaultMapper().readValue(jsonFile, objectClass);
+        return JsonMappers.reader(JsonMappers.Profile.DEFAULT, objectClass).readValue(jsonFile);
     }
     
     public static Map<String, Object> deserializeMap(String json) throws IOException {
-        ObjectMapper mapper = new ObjectMapper();
-        TypeReference<HashMap<String, Object>> typeReference = new TypeReference<HashMap<String, Object>>() {};
-        
-        return mapper.readValue(json, typeReference);
+        return JsonMappers.mapReader(JsonMappers.Profile.PLAIN).readValue(json);
     }
     
     public static Map<String, Object> deserializeMap(File jsonFile) throws IOException {
-        ObjectMapper mapper = new ObjectMapper();
-        TypeReference<HashMap<String, Object>> typeReference = new TypeReference<HashMap<String, Object>>() {};
-        
-        return mapper.readValue(jsonFile, typeReference);
+        return JsonMappers.mapReader(JsonMappers.Profile.PLAIN).readValue(jsonFile);
     }
     
     public static <T extends Object> List<T> deserializeList(Class<T> listContentClass, String json) throws IOException {
-        ObjectMapper mapper = JsonObjects.defaultMapper();
-        CollectionType listType = mapper.getTypeFactory().constructCollectionType(ArrayList.class, listContentClass);
-        
-        return mapper.readValue(json, listType);
+        return JsonMappers.listReader(JsonMappers.Profile.DEFAULT, listContentClass).readValue(json);
     }
     
     public static <T extends Object> List<T> deserializeList(Class<T> listContentClass, File jsonFile) throws IOException {
-        ObjectMapper mapper = JsonObjects.defaultMapper();
-        CollectionType listType = mapper.getTypeFactory().constructCollectionType(ArrayList.class, listContentClass);
-        
-        return mapper.readValue(jsonFile, listType);
+        return JsonMappers.listReader(JsonMappers.Profile.DEFAULT, listContentClass).readValue(jsonFile);
+    }
+    
+    /**
+     * Read the elements of a JSON array in a file one at a time, rather than
+     * building the whole list in memory.
+     * 
+     * @param <T>
+     * @param listContentClass
+     * @param jsonFile
+     * @return An iterator over the elements, which should be closed if it is
+     * not read to the end.
+     * @throws IOException 
+     */
+    public static <T extends Object> JsonArrayIterator<T> iterateList(Class<T> listContentClass, File jsonFile) throws IOException {
+        return JsonArrayIterator.open(JsonMappers.reader(JsonMappers.Profile.DEFAULT, listContentClass), jsonFile);
+    }
+    
+    public static <T extends Object> JsonArrayIterator<T> iterateList(Class<T> listContentClass, InputStream json) throws IOException {
+        return JsonArrayIterator.open(JsonMappers.reader(JsonMappers.Profile.DEFAULT, listContentClass), json);
+    }
+    
+    /**
+     * @param <T>
+     * @param listContentClass
+     * @param jsonFile
+     * @return A Stream over the elements of a JSON array in a file, read as
+     * they are consumed, which should be closed when it is done with.
+     * @throws IOException 
+     */
+    public static <T extends Object> Stream<T> streamList(Class<T> listContentClass, File jsonFile) throws IOException {
+        return JsonObjects.iterateList(listContentClass, jsonFile).stream();
     }
     
     public static String serialize(Object object) throws IOException {
-        return JsonObjects.defaultMapper().writeValueAsString(object);
+        return JsonMappers.writer(JsonMappers.Profile.DEFAULT).writeValueAsString(object);
     }
     
     public static void serializeToFile(Object object, File file) throws IOException {
-        JsonObjects.defaultMapper().writeValue(file, object);
+        JsonMappers.writer(JsonMappers.Profile.DEFAULT).writeValue(file, object);
+    }
+    
+    /**
+     * Open a JSON array in a file, to which elements are written one at a
+     * time. The array is completed when the writer is closed.
+     * 
+     * @param <T>
+     * @param file
+     * @return
+     * @throws IOException 
+     */
+    public static <T extends Object> JsonArrayWriter<T> listWriter(File file) throws IOException {
+        return JsonArrayWriter.open(JsonMappers.writer(JsonMappers.Profile.DEFAULT), file);
+    }
+    
+    public static <T extends Object> JsonArrayWriter<T> listWriter(OutputStream out) throws IOException {
+        return JsonArrayWriter.open(JsonMappers.writer(JsonMappers.Profile.DEFAULT), out);
+    }
+    
+    /**
+     * Open a JSON Lines file for appending, creating it if it does not exist.
+     * Records are written one per line, without indentation.
+     * 
+     * @param <T>
+     * @param file
+     * @return
+     * @throws IOException 
+     */
+    public static <T extends Object> JsonLinesWriter<T> linesWriter(File file) throws IOException {
+        return JsonLinesWriter.open(JsonMappers.writer(JsonMappers.Profile.DEFAULT), file);
+    }
+    
+    /**
+     * @param <T>
+     * @param recordClass
+     * @param file
+     * @return A reader of the records in a JSON Lines file, which memory maps
+     * the file and should be closed when it is done with.
+     * @throws IOException 
+     */
+    public static <T extends Object> JsonLinesReader<T> linesReader(Class<T> recordClass, File file) throws IOException {
+        return JsonLinesReader.open(JsonMappers.reader(JsonMappers.Profile.DEFAULT, recordClass), file);
     }
     
     public static String prettyPrint(String json) {
         try {
-            ObjectMapper mapper = JsonObjects.defaultMapper();
-            Object obj = mapper.readValue(json, Object.class);
-            return mapper.writerWithDefaultPrettyPrinter().writeValueAsString(obj);
+            Object obj = JsonMappers.reader(JsonMappers.Profile.DEFAULT, Object.class).readValue(json);
+            return JsonMappers.prettyWriter(JsonMappers.Profile.DEFAULT).writeValueAsString(obj);
         } catch (IOException ex) {
             return json;
         }
@@ -119,14 +164,8 @@ public class JsonObjects {
 
     
     public static <T extends Object> List<T> getListFromJson(String json, Class<T> hint) {
-        ObjectMapper mapper = new ObjectMapper();
-        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-        mapper.disable(MapperFeature.AUTO_DETECT_CREATORS, MapperFeature.AUTO_DETECT_FIELDS, MapperFeature.AUTO_DETECT_GETTERS, MapperFeature.AUTO_DETECT_IS_GETTERS);
-        
-        
-        CollectionType listType = mapper.getTypeFactory().constructCollectionType(ArrayList.class, hint);
         try {
-            return mapper.readValue(json, listType);
+            return JsonMappers.listReader(JsonMappers.Profile.UTILS, hint).readValue(json);
         } catch (IOException ex) {
             ex.printStackTrace();
             return new ArrayList<T>();
@@ -134,14 +173,8 @@ public class JsonObjects {
     }
     
     public static <T extends Object> List<T> getListFromJson(File json, Class<T> hint) {
-        ObjectMapper mapper = new ObjectMapper();
-        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-        mapper.disable(MapperFeature.AUTO_DETECT_CREATORS, MapperFeature.AUTO_DETECT_FIELDS, MapperFeature.AUTO_DETECT_GETTERS, MapperFeature.AUTO_DETECT_IS_GETTERS);
-        
-        
-        CollectionType listType = mapper.getTypeFactory().constructCollectionType(ArrayList.class, hint);
         try {
-            return mapper.readValue(json, listType);
+            return JsonMappers.listReader(JsonMappers.Profile.UTILS, hint).readValue(json);
         } catch (IOException ex) {
             ex.printStackTrace();
             return new ArrayList<T>();
@@ -150,9 +183,8 @@ public class JsonObjects {
     
     public static String prettyPrintJson(String json) {
         try {
-            ObjectMapper mapper = new ObjectMapper();
-            Object obj = mapper.readValue(json, Object.class);
-            return mapper.writerWithDefaultPrettyPrinter().writeValueAsString(obj);
+            Object obj = JsonMappers.reader(JsonMappers.Profile.PLAIN, Object.class).readValue(json);
+            return JsonMappers.prettyWriter(JsonMappers.Profile.PLAIN).writeValueAsString(obj);
         } catch (IOException ex) {
             Logger.getLogger(JsonUtils.class.getName()).log(Level.SEVERE, null, ex);
             return json;
@@ -0,0 +1,177 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.json;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read-only file mapped into memory as a series of windows, since a single
+ * mapping is limited to 2 GB. Mapping only reserves address space; pages are
+ * read from disk as they are touched, and can be read from any number of
+ * threads at once.
+ *
+ * @author Patrick Angle
+ */
+final class MappedFile implements Closeable {
+
+    static final int DEFAULT_WINDOW_SHIFT = 30;
+
+    private final FileChannel channel;
+    private final long size;
+    private final int windowShift;
+    private final MappedByteBuffer[] windows;
+
+    MappedFile(Path path) throws IOException {
+        this(path, DEFAULT_WINDOW_SHIFT);
+    }
+
+    /**
+     * @param path
+     * @param windowShift The base two logarithm of the window size.
+     * @throws IOException
+     */
+    MappedFile(Path path, int windowShift) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            this.size = channel.size();
+            this.windowShift = windowShift;
+            long windowSize = 1L << windowShift;
+            this.windows = new MappedByteBuffer[(int) ((size + windowSize - 1) >> windowShift)];
+            for (int i = 0; i < windows.length; i++) {
+                long start = (long) i << windowShift;
+                windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, size - start));
+            }
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    long size() {
+        return size;
+    }
+
+    int getWindowCount() {
+        return windows.length;
+    }
+
+    /**
+     * @param index
+     * @return The window, whose position and limit must not be changed.
+     */
+    ByteBuffer getWindow(int index) {
+        return windows[index];
+    }
+
+    /**
+     * @param position
+     * @return The index of the window holding a position in the file.
+     */
+    int getWindowIndex(long position) {
+        return (int) (position >>> windowShift);
+    }
+
+    /**
+     * @param index
+     * @return The position in the file at which a window starts.
+     */
+    long getWindowStart(int index) {
+        return (long) index << windowShift;
+    }
+
+    byte get(long position) {
+        return windows[(int) (position >>> windowShift)].get((int) (position & ((1L << windowShift) - 1)));
+    }
+
+    /**
+     * @param start
+     * @param end
+     * @return A stream of the bytes between two positions, which may span
+     * windows.
+     */
+    InputStream open(long start, long end) {
+        return new RangeInputStream(start, end);
+    }
+
+    @Override
+    public void close() throws IOException {
+        // The mappings themselves are released when the buffers are collected.
+        channel.close();
+    }
+
+    private class RangeInputStream extends InputStream {
+
+        private long position;
+        private final long end;
+        private ByteBuffer window;
+        private int windowIndex = -1;
+
+        RangeInputStream(long start, long end) {
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            return get(position++) & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            int index = (int) (position >>> windowShift);
+            int offset = (int) (position & ((1L << windowShift) - 1));
+            if (windowIndex != index) {
+                // Each stream reads through its own view of the window, so streams do not disturb one another.
+                window = windows[index].duplicate();
+                windowIndex = index;
+            }
+            int n = (int) Math.min(len, Math.min(end - position, window.capacity() - offset));
+            window.position(offset);
+            window.get(b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+    }
+}
@@ -0,0 +1,411 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.json;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+
+/**
+ * Reads a file holding a top level JSON array, or JSON Lines, on many threads
+ * at once. The file is memory mapped and split into chunks of whole elements
+ * by a structural scan, which tracks only brackets, braces and strings and so
+ * runs many times faster than parsing. Each chunk is then parsed on a
+ * ForkJoinPool while the scan continues.
+ *
+ * Elements are delivered either in the order they appear, on the calling
+ * thread, or as soon as their chunk is parsed, on the pool's threads, in
+ * which case the consumer must be thread-safe. Only a bounded number of
+ * chunks are in flight at once, so memory use depends on the chunk size and
+ * parallelism rather than on the size of the file.
+ *
+ * @author Patrick Angle
+ * @param <T>
+ */
+public class ParallelJsonArrayLoader<T> {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    public enum Format {
+        /**
+         * A single JSON array, whose elements are loaded.
+         */
+        ARRAY,
+        /**
+         * One JSON value per line.
+         */
+        JSON_LINES
+    }
+
+    private static final byte[] ARRAY_START = new byte[]{'['};
+    private static final byte[] ARRAY_END = new byte[]{']'};
+    private static final int SCAN_BLOCK_SIZE = 16 * 1024;
+
+    protected final ObjectReader reader;
+    protected Format format = Format.ARRAY;
+    protected boolean ordered = true;
+    protected int chunkSize = DEFAULT_CHUNK_SIZE;
+    protected ForkJoinPool pool = ForkJoinPool.commonPool();
+    protected int maximumChunksInFlight = 0;
+
+    /**
+     * Create a loader that reads elements with the configuration of
+     * {@link JsonObjects}.
+     *
+     * @param elementType
+     */
+    public ParallelJsonArrayLoader(Class<T> elementType) {
+        this(JsonMappers.reader(JsonMappers.Profile.DEFAULT, elementType));
+    }
+
+    /**
+     * @param reader A reader for the type of the elements.
+     */
+    public ParallelJsonArrayLoader(ObjectReader reader) {
+        this.reader = reader;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    public void setFormat(Format format) {
+        this.format = format;
+    }
+
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    /**
+     * Set whether elements are delivered in the order they appear in the
+     * file, on the thread calling {@link #load(File, Consumer)}, or as soon as
+     * they are parsed, on the pool's threads.
+     *
+     * @param ordered
+     */
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Set the approximate number of bytes parsed by each task. A chunk always
+     * ends at the end of an element, so it may be larger.
+     *
+     * @param chunkSize
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public int getMaximumChunksInFlight() {
+        return maximumChunksInFlight;
+    }
+
+    /**
+     * Set the number of chunks that may be parsed or awaiting delivery at
+     * once, or 0 for four times the pool's parallelism.
+     *
+     * @param maximumChunksInFlight
+     */
+    public void setMaximumChunksInFlight(int maximumChunksInFlight) {
+        this.maximumChunksInFlight = maximumChunksInFlight;
+    }
+
+    /**
+     * Load every element of a file.
+     *
+     * @param file
+     * @param consumer Receives each element, and must be thread-safe unless
+     * delivery is ordered.
+     * @return The number of elements loaded.
+     * @throws IOException If the file could not be read or is not valid JSON,
+     * in which case some elements may already have been delivered, though
+     * none are delivered once this has thrown.
+     */
+    public long load(File file, Consumer<? super T> consumer) throws IOException {
+        return load(file, consumer, ordered);
+    }
+
+    /**
+     * Load every element of a file into a list, in order.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public List<T> loadList(File file) throws IOException {
+        List<T> elements = new ArrayList<>();
+        load(file, elements::add, true);
+        return elements;
+    }
+
+    private long load(File file, Consumer<? super T> consumer, boolean ordered) throws IOException {
+        try (MappedFile mappedFile = new MappedFile(file.toPath())) {
+            Load load = new Load(mappedFile, consumer, ordered);
+            try {
+                if (format == Format.ARRAY) {
+                    load.scanArray();
+                } else {
+                    load.scanLines();
+                }
+                load.finish();
+            } finally {
+                load.cancel();
+            }
+            return load.count;
+        }
+    }
+
+    /**
+     * The state of a single call to load.
+     */
+    private class Load {
+
+        private final MappedFile file;
+        private final Consumer<? super T> consumer;
+        private final boolean ordered;
+        private final int maximumInFlight;
+        private final Deque<ForkJoinTask<List<T>>> inFlight = new ArrayDeque<>();
+        private long count = 0;
+        // Set when the load ends, so that chunks still being delivered on the pool stop.
+        private volatile boolean stopped = false;
+
+        Load(MappedFile file, Consumer<? super T> consumer, boolean ordered) {
+            this.file = file;
+            this.consumer = consumer;
+            this.ordered = ordered;
+            this.maximumInFlight = maximumChunksInFlight > 0 ? maximumChunksInFlight : pool.getParallelism() * 4;
+        }
+
+        void scanArray() throws IOException {
+            long size = file.size();
+            long position = skipWhitespace(0);
+            if (position >= size || file.get(position) != '[') {
+                throw new IOException("Expected a JSON array at byte " + position + ".");
+            }
+
+            long chunkStart = position + 1;
+            long end = -1;
+            int depth = 1;
+            boolean inString = false;
+            boolean escaped = false;
+            // The file is scanned through a small array, since reading a mapped buffer a byte at a time is several times slower.
+            byte[] block = new byte[SCAN_BLOCK_SIZE];
+            InputStream in = file.open(chunkStart, size);
+            long blockStart = chunkStart;
+            int n;
+            scan:
+            while ((n = in.read(block, 0, block.length)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    byte b = block[i];
+                    if (inString) {
+                        if (escaped) {
+                            escaped = false;
+                        } else if (b == '\\') {
+                            escaped = true;
+                        } else if (b == '"') {
+                            inString = false;
+                        }
+                    } else if (b == '"') {
+                        inString = true;
+                    } else if (b == '[' || b == '{') {
+                        depth++;
+                    } else if (b == ']' || b == '}') {
+                        depth--;
+                        if (depth == 0) {
+                            end = blockStart + i;
+                            break scan;
+                        }
+                    } else if (b == ',' && depth == 1 && blockStart + i - chunkStart >= chunkSize) {
+                        submit(chunkStart, blockStart + i, true);
+                        chunkStart = blockStart + i + 1;
+                    }
+                }
+                blockStart += n;
+            }
+            if (end < 0) {
+                throw new IOException("The JSON array is not closed before the end of the file.");
+            }
+            if (!isBlank(chunkStart, end)) {
+                submit(chunkStart, end, true);
+            }
+            long trailing = skipWhitespace(end + 1);
+            if (trailing < size) {
+                throw new IOException("Unexpected content after the JSON array at byte " + trailing + ".");
+            }
+        }
+
+        void scanLines() throws IOException {
+            long chunkStart = 0;
+            for (int w = 0; w < file.getWindowCount(); w++) {
+                ByteBuffer window = file.getWindow(w);
+                long windowStart = file.getWindowStart(w);
+                long windowEnd = windowStart + window.limit();
+                // A value cannot contain a raw line break, even within a string, so no structural scan is needed, and
+                // the bytes before the first line break that could end a chunk are skipped entirely.
+                for (long p = Math.max(windowStart, chunkStart + chunkSize); p < windowEnd; p++) {
+                    if (window.get((int) (p - windowStart)) == '\n') {
+                        submit(chunkStart, p, false);
+                        chunkStart = p + 1;
+                        p = Math.max(p, chunkStart + chunkSize - 1);
+                    }
+                }
+            }
+            if (!isBlank(chunkStart, file.size())) {
+                submit(chunkStart, file.size(), false);
+            }
+        }
+
+        private void submit(long start, long end, boolean arrayElements) throws IOException {
+            while (inFlight.size() >= maximumInFlight) {
+                deliver(inFlight.removeFirst());
+            }
+            inFlight.addLast(pool.submit(() -> {
+                List<T> elements = parse(start, end, arrayElements);
+                if (!ordered) {
+                    for (T element : elements) {
+                        if (stopped) {
+                            break;
+                        }
+                        consumer.accept(element);
+                    }
+                }
+                return elements;
+            }));
+        }
+
+        private List<T> parse(long start, long end, boolean arrayElements) {
+            InputStream in = file.open(start, end);
+            if (arrayElements) {
+                // A chunk of array elements is still separated by commas, so it is parsed as an array of its own.
+                in = new SequenceInputStream(new ByteArrayInputStream(ARRAY_START), new SequenceInputStream(in, new ByteArrayInputStream(ARRAY_END)));
+            }
+            List<T> elements = new ArrayList<>();
+            try (JsonParser parser = reader.createParser(in)) {
+                if (arrayElements) {
+                    parser.nextToken();
+                    while (parser.nextToken() != JsonToken.END_ARRAY) {
+                        elements.add(reader.readValue(parser));
+                    }
+                } else {
+                    while (parser.nextToken() != null) {
+                        elements.add(reader.readValue(parser));
+                    }
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(new IOException("Invalid JSON in bytes " + start + " to " + end + ": " + ex.getMessage(), ex));
+            }
+            return elements;
+        }
+
+        private void deliver(ForkJoinTask<List<T>> task) throws IOException {
+            List<T> elements;
+            try {
+                elements = task.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while loading.");
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) cause).getCause();
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException(cause);
+            }
+            if (ordered) {
+                elements.forEach(consumer);
+            }
+            count += elements.size();
+        }
+
+        void finish() throws IOException {
+            while (!inFlight.isEmpty()) {
+                deliver(inFlight.removeFirst());
+            }
+        }
+
+        /**
+         * Cancel the chunks still in flight, and wait for those already
+         * running, so that none reads the file after it is closed or
+         * delivers an element after load has returned.
+         */
+        void cancel() {
+            stopped = true;
+            for (ForkJoinTask<List<T>> task : inFlight) {
+                task.cancel(false);
+            }
+            for (ForkJoinTask<List<T>> task : inFlight) {
+                task.quietlyJoin();
+            }
+            inFlight.clear();
+        }
+
+        private long skipWhitespace(long position) {
+            long size = file.size();
+            while (position < size && isWhitespace(file.get(position))) {
+                position++;
+            }
+            return position;
+        }
+
+        private boolean isBlank(long start, long end) {
+            for (long position = start; position < end; position++) {
+                if (!isWhitespace(file.get(position))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+}
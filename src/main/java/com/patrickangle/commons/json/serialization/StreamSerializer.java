@@ -0,0 +1,48 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.json.serialization;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.stream.BaseStream;
+
+/**
+ * Writes a Stream as a JSON array, one element at a time, and closes it.
+ *
+ * @author Patrick Angle
+ */
+@SuppressWarnings("rawtypes")
+public class StreamSerializer extends StdSerializer<BaseStream> {
+
+    public StreamSerializer() {
+        super(BaseStream.class);
+    }
+
+    @Override
+    public void serialize(BaseStream stream, JsonGenerator gen, SerializerProvider provider) throws IOException {
+        try (BaseStream<?, ?> elements = stream) {
+            gen.writeStartArray();
+            for (Iterator<?> iterator = elements.iterator(); iterator.hasNext();) {
+                provider.defaultSerializeValue(iterator.next(), gen);
+            }
+            gen.writeEndArray();
+        }
+    }
+}
@@ -5,11 +5,8 @@
  */
 package com.patrickangle.commons.util;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.Arrays;
 import javax.activation.MimetypesFileTypeMap;
 
 /**
@@ -19,7 +16,6 @@ import javax.activation.MimetypesFileTypeMap;
 public class Files {
 
     public static String mimeTypeFromFile(File file) throws IOException {
-        System.out.println(file.getName());
         if (file.getName().endsWith(".m3u") || file.getName().endsWith(".m3u8")) {
             return "application/x-mpegurl";
         } else if (file.getName().endsWith(".3gp")) {
@@ -52,14 +48,6 @@ public class Files {
     }
 
     public static byte[] bytesFromFile(File file) throws IOException {
-        byte[] bytearray = new byte[(int) file.length()];
-
-        BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file));
-        bis.read(bytearray, 0, bytearray.length);
-        bis.close();
-
-        System.out.println(file.getName() + ": " + Arrays.toString(bytearray));
-        
-        return bytearray;
+        return java.nio.file.Files.readAllBytes(file.toPath());
     }
 }
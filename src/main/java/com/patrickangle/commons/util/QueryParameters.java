@@ -0,0 +1,477 @@
+/*
+ * Patrick Angle Commons Library
+ * Copyright 2018 Patrick Angle
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.patrickangle.commons.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The parameters of a raw, still percent-encoded query string, as a map from
+ * each name to its last value, with {@link #getAll(String)} for names that
+ * are repeated. Keeping the last value matches the HashMap that
+ * {@link URIs#queryStringToMap(String)} used to build.
+ *
+ * The query is split in a single pass that only records where each name and
+ * value starts and ends. Names and values are decoded when first read, and
+ * names are matched and numbers parsed straight from the query when they
+ * contain no escapes. Everything after the first '=' of a parameter is its
+ * value, and a parameter without '=' has an empty value. Malformed escapes
+ * are kept as they are.
+ *
+ * The map may be modified, as handlers are used to doing with the parameters
+ * they are given. The first modification copies the parameters into an
+ * ordinary map, which every accessor reads from afterwards; a repeated name
+ * then has only the single value the map holds for it. The index-based
+ * accessors always describe the original query.
+ *
+ * @author Patrick Angle
+ */
+public class QueryParameters extends AbstractMap<String, String> {
+
+    private static final int[] NO_BOUNDS = new int[0];
+
+    private final CharSequence query;
+    // For each parameter: the start of its name, the end of its name, and the end of its value.
+    private final int[] bounds;
+    private final int count;
+
+    private String[] names;
+    private String[] values;
+    private Set<Map.Entry<String, String>> entrySet;
+    private Map<String, String> modified;
+
+    private QueryParameters(CharSequence query, int[] bounds, int count) {
+        this.query = query;
+        this.bounds = bounds;
+        this.count = count;
+    }
+
+    /**
+     * @param query A raw query string, without its leading '?', or null.
+     * @return The parameters of the query.
+     */
+    public static QueryParameters parse(CharSequence query) {
+        if (query == null || query.length() == 0) {
+            return new QueryParameters("", NO_BOUNDS, 0);
+        }
+
+        int length = query.length();
+        int[] bounds = new int[12];
+        int count = 0;
+        int start = 0;
+        int nameEnd = -1;
+        for (int i = 0; i <= length; i++) {
+            char c = i < length ? query.charAt(i) : '&';
+            if (c == '=' && nameEnd < 0) {
+                nameEnd = i;
+            } else if (c == '&') {
+                if (i > start) {
+                    if (count * 3 == bounds.length) {
+                        bounds = Arrays.copyOf(bounds, bounds.length * 2);
+                    }
+                    bounds[count * 3] = start;
+                    bounds[count * 3 + 1] = nameEnd < 0 ? i : nameEnd;
+                    bounds[count * 3 + 2] = i;
+                    count++;
+                }
+                start = i + 1;
+                nameEnd = -1;
+            }
+        }
+        return new QueryParameters(query, bounds, count);
+    }
+
+    /**
+     * @return The number of parameters in the original query, counting
+     * repeated names each time.
+     */
+    public int getParameterCount() {
+        return count;
+    }
+
+    /**
+     * @param index
+     * @return The decoded name of the parameter at an index.
+     */
+    public String getName(int index) {
+        if (names == null) {
+            names = new String[count];
+        }
+        String name = names[index];
+        if (name == null) {
+            name = decode(query, bounds[index * 3], bounds[index * 3 + 1]);
+            names[index] = name;
+        }
+        return name;
+    }
+
+    /**
+     * @param index
+     * @return The decoded value of the parameter at an index.
+     */
+    public String getValue(int index) {
+        if (values == null) {
+            values = new String[count];
+        }
+        String value = values[index];
+        if (value == null) {
+            value = decode(query, valueStart(index), bounds[index * 3 + 2]);
+            values[index] = value;
+        }
+        return value;
+    }
+
+    /**
+     * @param name
+     * @return Every value of a parameter, in the order they appear, or an
+     * empty list if the parameter is absent.
+     */
+    public List<String> getAll(String name) {
+        if (modified != null) {
+            String value = modified.get(name);
+            return value != null ? Collections.singletonList(value) : Collections.<String>emptyList();
+        }
+        List<String> all = null;
+        for (int i = 0; i < count; i++) {
+            if (nameEquals(i, name)) {
+                if (all == null) {
+                    all = new ArrayList<>(2);
+                }
+                all.add(getValue(i));
+            }
+        }
+        return all != null ? all : Collections.<String>emptyList();
+    }
+
+    /**
+     * @param name
+     * @param defaultValue
+     * @return The last value of a parameter as an int, or the default if it
+     * is absent or not an int.
+     */
+    public int getInt(String name, int defaultValue) {
+        long value = getLong(name, Long.MIN_VALUE);
+        return value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE && value != Long.MIN_VALUE ? (int) value : defaultValue;
+    }
+
+    /**
+     * @param name
+     * @param defaultValue
+     * @return The last value of a parameter as a long, or the default if it
+     * is absent or not a long.
+     */
+    public long getLong(String name, long defaultValue) {
+        if (modified != null) {
+            String value = modified.get(name);
+            if (value == null) {
+                return defaultValue;
+            }
+            value = value.trim();
+            return parseLong(value, 0, value.length(), defaultValue);
+        }
+        int index = indexOf(name);
+        if (index < 0) {
+            return defaultValue;
+        }
+        int start = valueStart(index);
+        int end = bounds[index * 3 + 2];
+        if (hasEscapes(query, start, end)) {
+            try {
+                return Long.parseLong(getValue(index).trim());
+            } catch (NumberFormatException ex) {
+                return defaultValue;
+            }
+        }
+        return parseLong(query, start, end, defaultValue);
+    }
+
+    /**
+     * @param name
+     * @param defaultValue
+     * @return The last value of a parameter as a boolean, or the default if
+     * it is absent or not a boolean. "true", "1", "yes" and "on" are true, as
+     * is a parameter given without a value; "false", "0", "no" and "off" are
+     * false.
+     */
+    public boolean getBoolean(String name, boolean defaultValue) {
+        String value = get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value.isEmpty() || value.equalsIgnoreCase("true") || value.equals("1") || value.equalsIgnoreCase("yes") || value.equalsIgnoreCase("on")) {
+            return true;
+        } else if (value.equalsIgnoreCase("false") || value.equals("0") || value.equalsIgnoreCase("no") || value.equalsIgnoreCase("off")) {
+            return false;
+        }
+        return defaultValue;
+    }
+
+    /**
+     * @param name
+     * @param defaultValue
+     * @return The last value of a parameter, or the default if it is absent.
+     */
+    public String getString(String name, String defaultValue) {
+        String value = get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    @Override
+    public String get(Object key) {
+        if (modified != null) {
+            return modified.get(key);
+        }
+        if (!(key instanceof String)) {
+            return null;
+        }
+        int index = indexOf((String) key);
+        return index >= 0 ? getValue(index) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (modified != null) {
+            return modified.containsKey(key);
+        }
+        return key instanceof String && indexOf((String) key) >= 0;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return modified != null ? modified.isEmpty() : count == 0;
+    }
+
+    @Override
+    public int size() {
+        return entrySet().size();
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        if (modified != null) {
+            return modified.entrySet();
+        }
+        if (entrySet == null) {
+            entrySet = createEntrySet();
+        }
+        return entrySet;
+    }
+
+    @Override
+    public String put(String key, String value) {
+        return modifiable().put(key, value);
+    }
+
+    @Override
+    public String remove(Object key) {
+        return modifiable().remove(key);
+    }
+
+    @Override
+    public void clear() {
+        modifiable().clear();
+    }
+
+    private Map<String, String> modifiable() {
+        if (modified == null) {
+            Set<Map.Entry<String, String>> parameters = entrySet();
+            Map<String, String> copy = new LinkedHashMap<>(parameters.size() * 2);
+            for (Map.Entry<String, String> entry : parameters) {
+                copy.put(entry.getKey(), entry.getValue());
+            }
+            modified = copy;
+        }
+        return modified;
+    }
+
+    private Set<Map.Entry<String, String>> createEntrySet() {
+        // The index of the last parameter of each distinct name, in the order the names first appear.
+        int[] lasts = new int[count];
+        int distinct = 0;
+        Map<String, Integer> positions = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            Integer position = positions.putIfAbsent(getName(i), distinct);
+            if (position == null) {
+                lasts[distinct++] = i;
+            } else {
+                lasts[position] = i;
+            }
+        }
+        int size = distinct;
+
+        return new AbstractSet<Map.Entry<String, String>>() {
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                return new Iterator<Map.Entry<String, String>>() {
+                    private int next = 0;
+                    private int last = -1;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < size;
+                    }
+
+                    @Override
+                    public Map.Entry<String, String> next() {
+                        if (next >= size) {
+                            throw new NoSuchElementException();
+                        }
+                        last = lasts[next++];
+                        return new SimpleImmutableEntry<>(getName(last), getValue(last));
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (last < 0) {
+                            throw new IllegalStateException();
+                        }
+                        // Iteration continues over the original parameters, while the removal goes to the copy.
+                        modifiable().remove(getName(last));
+                        last = -1;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private int indexOf(String name) {
+        for (int i = count - 1; i >= 0; i--) {
+            if (nameEquals(i, name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean nameEquals(int index, String name) {
+        if (names != null && names[index] != null) {
+            return names[index].equals(name);
+        }
+        int start = bounds[index * 3];
+        int end = bounds[index * 3 + 1];
+        if (hasEscapes(query, start, end)) {
+            return getName(index).equals(name);
+        }
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (query.charAt(i) != name.charAt(i - start)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int valueStart(int index) {
+        int nameEnd = bounds[index * 3 + 1];
+        return nameEnd < bounds[index * 3 + 2] ? nameEnd + 1 : nameEnd;
+    }
+
+    private static boolean hasEscapes(CharSequence s, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '%' || c == '+') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long parseLong(CharSequence s, int start, int end, long defaultValue) {
+        if (start == end) {
+            return defaultValue;
+        }
+        boolean negative = s.charAt(start) == '-';
+        int i = negative || s.charAt(start) == '+' ? start + 1 : start;
+        if (i == end) {
+            return defaultValue;
+        }
+        // Accumulated negatively, as Long.parseLong does, so that Long.MIN_VALUE can be represented.
+        long result = 0;
+        for (; i < end; i++) {
+            int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || result < (Long.MIN_VALUE + digit) / 10) {
+                return defaultValue;
+            }
+            result = result * 10 - digit;
+        }
+        if (!negative) {
+            if (result == Long.MIN_VALUE) {
+                return defaultValue;
+            }
+            return -result;
+        }
+        return result;
+    }
+
+    /**
+     * Decode a percent-encoded region as UTF-8, with '+' as a space.
+     *
+     * @param s
+     * @param start
+     * @param end
+     * @return
+     */
+    static String decode(CharSequence s, int start, int end) {
+        if (!hasEscapes(s, start, end)) {
+            return s.subSequence(start, end).toString();
+        }
+
+        byte[] bytes = null;
+        int byteCount = 0;
+        StringBuilder builder = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            int high;
+            int low;
+            if (c == '%' && i + 2 < end && (high = Character.digit(s.charAt(i + 1), 16)) >= 0 && (low = Character.digit(s.charAt(i + 2), 16)) >= 0) {
+                if (bytes == null) {
+                    bytes = new byte[(end - i) / 3];
+                }
+                bytes[byteCount++] = (byte) ((high << 4) | low);
+                i += 2;
+                continue;
+            }
+            if (byteCount > 0) {
+                builder.append(new String(bytes, 0, byteCount, StandardCharsets.UTF_8));
+                byteCount = 0;
+            }
+            builder.append(c == '+' ? ' ' : c);
+        }
+        if (byteCount > 0) {
+            builder.append(new String(bytes, 0, byteCount, StandardCharsets.UTF_8));
+        }
+        return builder.toString();
+    }
+}
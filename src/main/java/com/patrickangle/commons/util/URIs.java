@@ -43,22 +43,16 @@ public class URIs {
         }
     }
     
+    /**
+     * Decode a raw query string into a mutable map. Where a parameter is
+     * repeated, its last value is kept; use {@link QueryParameters} to read
+     * every value, or to avoid decoding parameters that are never read.
+     *
+     * @param query
+     * @return
+     */
     public static Map<String, String> queryStringToMap(String query) {
-        Map<String, String> result = new HashMap<>();
-        
-        if (query == null) {
-            return result;
-        }
-        
-        for (String param : query.split("&")) {
-            String[] entry = param.split("=");
-            if (entry.length > 1) {
-                result.put(decodeQueryStringValue(entry[0]), decodeQueryStringValue(entry[1]));
-            } else {
-                result.put(decodeQueryStringValue(entry[0]), "");
-            }
-        }
-        return result;
+        return new HashMap<>(QueryParameters.parse(query));
     }
     
     public static String decodeQueryStringValue(String query) {